@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker;
+
+/**
+ * Decides how many audit messages {@link AuditLogConsumer} fetches per batch, and how often it polls the audit topic.
+ * <p>
+ * The batch size starts at the configured limit and stays between the limit divided and multiplied by
+ * {@link #BATCH_SIZE_FACTOR}. It doubles after a full batch, which means there is a backlog, as long as a batch
+ * stays well within the transaction timeout, and halves when a single batch takes a large part of it. Polling backs
+ * off exponentially while the topic has no new messages, and resumes on every tick once it has.
+ */
+final class AuditFetchPolicy {
+  // The batch size adapts between the configured limit divided and multiplied by this factor
+  static final int BATCH_SIZE_FACTOR = 16;
+  // A single batch should not take more than this fraction of the transaction timeout
+  static final int BATCHES_PER_TRANSACTION = 4;
+  // Weight of the last batch in the moving average of the processing time per message
+  static final double LATENCY_WEIGHT = 0.3;
+  // Maximum number of ticks skipped between polls while the audit topic has no new messages
+  static final int MAX_IDLE_DELAY_TICKS = 8;
+
+  private final int minBatchSize;
+  private final int maxBatchSize;
+  private int batchSize;
+  private double millisPerMessage;
+  private int idleDelayTicks;
+  private int ticksToSkip;
+
+  AuditFetchPolicy(int limit) {
+    this.batchSize = limit;
+    this.minBatchSize = Math.max(1, limit / BATCH_SIZE_FACTOR);
+    this.maxBatchSize = limit * BATCH_SIZE_FACTOR;
+  }
+
+  int getBatchSize() {
+    return batchSize;
+  }
+
+  double getMillisPerMessage() {
+    return millisPerMessage;
+  }
+
+  int getIdleDelayTicks() {
+    return idleDelayTicks;
+  }
+
+  /**
+   * Returns the number of messages to fetch in the next batch: the current batch size, reduced to what can be
+   * processed in the remaining time of the transaction, based on the observed processing time per message.
+   */
+  int getBatchLimit(long remainingMillis) {
+    if (remainingMillis <= 0) {
+      return 0;
+    }
+    if (millisPerMessage <= 0) {
+      return batchSize;
+    }
+    return (int) Math.min(batchSize, (long) (remainingMillis / millisPerMessage));
+  }
+
+  /**
+   * Adapts the batch size to the processing time of a batch.
+   *
+   * @param fetched the number of messages the batch fetched, which is positive
+   * @param batchLimit the number of messages the batch was allowed to fetch
+   * @param batchMillis the time the batch took
+   * @param budgetMillis the time a transaction can take
+   */
+  void onBatch(int fetched, int batchLimit, long batchMillis, long budgetMillis) {
+    double observed = (double) batchMillis / fetched;
+    millisPerMessage = millisPerMessage <= 0 ? observed : (1 - LATENCY_WEIGHT) * millisPerMessage +
+      LATENCY_WEIGHT * observed;
+
+    long maxBatchMillis = budgetMillis / BATCHES_PER_TRANSACTION;
+    if (batchMillis > maxBatchMillis) {
+      batchSize = Math.max(minBatchSize, batchSize / 2);
+    } else if (fetched == batchLimit && batchLimit == batchSize && 2 * batchSize * millisPerMessage < maxBatchMillis) {
+      batchSize = Math.min(maxBatchSize, batchSize * 2);
+    }
+  }
+
+  /**
+   * @return whether to skip a tick, because polling backs off while the audit topic has no new messages
+   */
+  boolean skipTick() {
+    if (ticksToSkip > 0) {
+      ticksToSkip--;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Backs off polling after a poll that fetched no message, and resets the back off after one that did.
+   */
+  void onPoll(boolean fetchedAny) {
+    if (fetchedAny) {
+      idleDelayTicks = 0;
+    } else {
+      idleDelayTicks = Math.min(Math.max(1, idleDelayTicks * 2), MAX_IDLE_DELAY_TICKS);
+    }
+    ticksToSkip = idleDelayTicks;
+  }
+}
@@ -27,18 +27,43 @@ import co.cask.cdap.api.messaging.Message;
 import co.cask.cdap.api.messaging.MessageFetcher;
 import co.cask.cdap.api.messaging.TopicNotFoundException;
 import co.cask.tracker.config.AuditLogConfig;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 /**
  * Subscribes to TMS messages published by the CDAP Platform that contains the Audit log records.
+ * <p>
+ * Every instance fetches the audit topic from its own offset, and only emits the messages of the entities it owns,
+ * determined by the same entity hash that partitions the messages among the {@link AuditLogPublisher} instances.
+ * All messages of an entity are thus emitted by one instance, in order. TMS topics are not partitioned, so every
+ * instance reads the whole topic, but only parses each message up to its entity. When the number of instances
+ * changes, a new {@link ConsumerGeneration} hands the offsets of the previous instances over to the new ones, so
+ * that no message is skipped or emitted twice.
+ * <p>
+ * The number of messages fetched per batch and the polling frequency adapt to the backlog and to the observed
+ * processing time, as decided by {@link AuditFetchPolicy}, so that catching up is fast without risking transaction
+ * timeouts.
  */
 public final class AuditLogConsumer extends AbstractFlowlet {
   private static final Logger LOG = LoggerFactory.getLogger(AuditLogConsumer.class);
-  private static final String OFFSET = "tms.offset";
+  private static final String GENERATION = "tms.generation";
+  private static final Gson GSON = new Gson();
+  private static final JsonParser JSON_PARSER = new JsonParser();
+  private static final String ENTITY_FIELD = "entity";
 
   // TODO: Add a way to reset the offset
   private KeyValueTable offsetStore;
@@ -56,7 +81,11 @@ public final class AuditLogConsumer extends AbstractFlowlet {
   private Stopwatch stopwatch;
   private MessageFetcher messageFetcher;
   private long timeout;
-  private boolean emptyIterator;
+  private AuditFetchPolicy fetchPolicy;
+  private int instanceId;
+  private int instanceCount;
+  private ConsumerGeneration generation;
+  private String offsetKey;
 
   public AuditLogConsumer(AuditLogConfig auditLogConfig) {
     this.offsetDatasetName = auditLogConfig.getOffsetDataset();
@@ -83,49 +112,136 @@ public final class AuditLogConsumer extends AbstractFlowlet {
     // Reduce 10s from the tx timeout
     timeout = Long.parseLong(shortTxTimeout) - 10;
     stopwatch = new Stopwatch();
-    emptyIterator = false;
+    fetchPolicy = new AuditFetchPolicy(limit);
     messageFetcher = getContext().getMessageFetcher();
   }
 
   @Tick(delay = 1L, unit = TimeUnit.SECONDS)
   protected void pollAuditTopic() throws Exception {
-    String newOffset = null;
-    byte[] logOffset = offsetStore.read(OFFSET);
-    String fromOffset = null;
-
-    if (logOffset != null) {
-      fromOffset = Bytes.toString(logOffset);
+    // Back off while the audit topic has no new messages
+    if (fetchPolicy.skipTick()) {
+      return;
     }
+    // The number of instances can change while the flowlet is running
+    instanceId = getContext().getInstanceId();
+    instanceCount = getContext().getInstanceCount();
+    generation = getGeneration();
+    offsetKey = generation.getOffsetKey(instanceId);
+
+    String newOffset = null;
+    byte[] ownOffset = offsetStore.read(offsetKey);
+    String fromOffset = ownOffset == null ? generation.getStartOffset() : Bytes.toString(ownOffset);
+    long budgetMillis = TimeUnit.SECONDS.toMillis(timeout);
+    boolean fetchedAny = false;
 
-    // Keep fetching in batches of 'limit' number of messages until, no messages are left or
-    // the stopWatch timeout expires
+    // Keep fetching in batches of adaptive size until no messages are left, or
+    // the stopWatch timeout expires, or there is no time left in the transaction for another batch
     stopwatch.reset();
     stopwatch.start();
     do {
-      emptyIterator = true;
-      try (CloseableIterator<Message> auditMessages = messageFetcher.fetch(namespace, topic, limit, fromOffset)) {
+      int batchLimit = fetchPolicy.getBatchLimit(budgetMillis - stopwatch.elapsedTime(TimeUnit.MILLISECONDS));
+      if (batchLimit == 0) {
+        break;
+      }
+      long batchStartMillis = stopwatch.elapsedTime(TimeUnit.MILLISECONDS);
+      int fetched = 0;
+      try (CloseableIterator<Message> auditMessages =
+             messageFetcher.fetch(namespace, topic, batchLimit, fromOffset)) {
         while (auditMessages.hasNext()) {
           Message message = auditMessages.next();
           newOffset = message.getId();
-          emitter.emit(message.getPayloadAsString());
-          emptyIterator = false;
+          String payload = message.getPayloadAsString();
+          Integer entityHash = getEntityHash(payload);
+          if (entityHash == null) {
+            // Skipped rather than emitted, so that it cannot fail the batch it would be published in
+            if (isOwned(0)) {
+              LOG.warn("Skipping malformed audit message {}: {}", message.getId(), payload);
+            }
+          } else if (isOwned(entityHash) && !generation.isEmitted(message.getId(), entityHash)) {
+            emitter.emit(payload, AuditLogPublisher.ENTITY_HASH_KEY, entityHash);
+          }
+          fetched++;
         }
       } catch (TopicNotFoundException ex) {
         LOG.warn("Audit Topic {} was not found.", topic, ex);
       } finally {
-        if (!emptyIterator) {
+        if (fetched > 0) {
           // If some messages were fetched in this loop, update the new offset and
           // set fromOffset to the last fetched messageId
-          offsetStore.write(OFFSET, newOffset);
+          offsetStore.write(offsetKey, newOffset);
           fromOffset = newOffset;
         }
       }
 
       // If no messages were found in this iteration, then break out of the loop
-      if (emptyIterator) {
+      if (fetched == 0) {
+        break;
+      }
+      fetchedAny = true;
+      fetchPolicy.onBatch(fetched, batchLimit, stopwatch.elapsedTime(TimeUnit.MILLISECONDS) - batchStartMillis,
+                          budgetMillis);
+      // A partial batch means that the consumer caught up with the topic
+      if (fetched < batchLimit) {
         break;
       }
     } while (stopwatch.elapsedTime(TimeUnit.SECONDS) < timeout);
     stopwatch.stop();
+
+    fetchPolicy.onPoll(fetchedAny);
+  }
+
+  private boolean isOwned(int entityHash) {
+    return ConsumerGeneration.getOwner(entityHash, instanceCount) == instanceId;
+  }
+
+  /**
+   * Returns the current generation of consumer instances. When the number of instances changed, the first instance
+   * that polls starts the next generation from the offsets of the instances of the current one. All instances
+   * compute the same generation, and all but one of them fail to store it and retry on their next tick.
+   */
+  private ConsumerGeneration getGeneration() {
+    byte[] stored = offsetStore.read(GENERATION);
+    ConsumerGeneration current = stored == null
+      ? ConsumerGeneration.initial() : GSON.fromJson(Bytes.toString(stored), ConsumerGeneration.class);
+    if (current.getInstanceCount() == instanceCount) {
+      return current;
+    }
+    Map<Integer, String> offsets = new HashMap<>();
+    for (int id = 0; id < current.getInstanceCount(); id++) {
+      byte[] offset = offsetStore.read(current.getOffsetKey(id));
+      if (offset != null) {
+        offsets.put(id, Bytes.toString(offset));
+      }
+    }
+    ConsumerGeneration next = current.next(offsets, instanceCount);
+    offsetStore.write(GENERATION, GSON.toJson(next));
+    LOG.info("Audit log consumer instances changed from {} to {}, starting generation {} from offset {}",
+             current.getInstanceCount(), instanceCount, next.getEpoch(), next.getStartOffset());
+    return next;
+  }
+
+  /**
+   * Computes the partitioning hash of an audit message, so that all messages of an entity are processed by the
+   * same {@link AuditLogPublisher} instance. Only the message up to its entity is parsed.
+   *
+   * @return the hash of the entity of the message, or null if the message is not a JSON object with an entity
+   */
+  @VisibleForTesting
+  @Nullable
+  static Integer getEntityHash(String payload) {
+    try {
+      JsonReader reader = new JsonReader(new StringReader(payload));
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (ENTITY_FIELD.equals(reader.nextName())) {
+          JsonElement entity = JSON_PARSER.parse(reader);
+          return entity.isJsonObject() ? entity.toString().hashCode() : null;
+        }
+        reader.skipValue();
+      }
+      return null;
+    } catch (IOException | JsonParseException | IllegalStateException e) {
+      return null;
+    }
   }
 }
@@ -17,6 +17,7 @@
 package co.cask.tracker;
 
 import co.cask.cdap.api.flow.AbstractFlow;
+import co.cask.tracker.config.AuditLogConfig;
 import co.cask.tracker.config.TrackerAppConfig;
 
 import javax.annotation.Nullable;
@@ -37,8 +38,9 @@ public class AuditLogFlow extends AbstractFlow {
   public void configure() {
     setName(FLOW_NAME);
     setDescription("Flow that subscribes to TMS audit messages and stores them in the AuditLog");
-    addFlowlet("auditLogConsumer", new AuditLogConsumer(trackerAppConfig.getAuditLogConfig()), 1);
-    addFlowlet("auditLogPublisher", new AuditLogPublisher());
+    AuditLogConfig auditLogConfig = trackerAppConfig.getAuditLogConfig();
+    addFlowlet("auditLogConsumer", new AuditLogConsumer(auditLogConfig), auditLogConfig.getConsumerInstances());
+    addFlowlet("auditLogPublisher", new AuditLogPublisher(), auditLogConfig.getPublisherInstances());
     connect("auditLogConsumer", "auditLogPublisher");
   }
 }
@@ -21,15 +21,19 @@ import co.cask.cdap.api.service.http.HttpServiceContext;
 import co.cask.cdap.api.service.http.HttpServiceRequest;
 import co.cask.cdap.api.service.http.HttpServiceResponder;
 import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.tracker.entity.AuditLogEntry;
+import co.cask.tracker.entity.AuditLogFilter;
 import co.cask.tracker.entity.AuditLogResponse;
 import co.cask.tracker.entity.AuditLogTable;
 import co.cask.tracker.utils.ParameterCheck;
+import com.google.common.base.Strings;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.NoSuchElementException;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -63,7 +67,11 @@ public final class AuditLogHandler extends AbstractHttpServiceHandler {
                     @QueryParam("offset") int offset,
                     @QueryParam("limit") @DefaultValue(DEFAULT_PAGE_SIZE) int limit,
                     @QueryParam("startTime") @DefaultValue("0") String startTime,
-                    @QueryParam("endTime") @DefaultValue("now") String endTime) {
+                    @QueryParam("endTime") @DefaultValue("now") String endTime,
+                    @QueryParam("cursor") String cursor,
+                    @QueryParam("user") String user,
+                    @QueryParam("auditType") String auditType,
+                    @QueryParam("accessType") String accessType) {
     if (!ParameterCheck.isLimitValid(limit)) {
       responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(), ParameterCheck.LIMIT_INVALID,
                            StandardCharsets.UTF_8);
@@ -86,35 +94,123 @@ public final class AuditLogHandler extends AbstractHttpServiceHandler {
                            ParameterCheck.STARTTIME_GREATER_THAN_ENDTIME, StandardCharsets.UTF_8);
       return;
     }
+    AuditType auditTypeFilter = null;
+    if (auditType != null) {
+      try {
+        auditTypeFilter = AuditType.valueOf(auditType.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(), ParameterCheck.INVALID_AUDIT_TYPE,
+                             StandardCharsets.UTF_8);
+        return;
+      }
+    }
+    AccessType accessTypeFilter = null;
+    if (accessType != null) {
+      try {
+        accessTypeFilter = AccessType.valueOf(accessType.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(), ParameterCheck.INVALID_ACCESS_TYPE,
+                             StandardCharsets.UTF_8);
+        return;
+      }
+    }
+    AuditLogFilter filter = new AuditLogFilter(user, auditTypeFilter, accessTypeFilter);
+
+    // Requests with a cursor page by row key, an empty cursor asks for the first page
+    if (cursor != null) {
+      try {
+        responder.sendJson(200, auditLogTable.getPage(namespace, entityType, name,
+                                                      startTimeLongMillis, endTimeLongMillis, filter,
+                                                      cursor.isEmpty() ? null : cursor, limit));
+      } catch (IllegalArgumentException e) {
+        responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(), ParameterCheck.CURSOR_INVALID,
+                             StandardCharsets.UTF_8);
+      }
+      return;
+    }
     List<AuditMessage> logList = new ArrayList<>();
     int totalResults = 0;
-    AuditMessage message;
-    try (CloseableIterator<AuditMessage> messageIter = auditLogTable.scan(namespace,
-                                                                          entityType,
-                                                                          name,
-                                                                          startTimeLongMillis,
-                                                                          endTimeLongMillis)) {
+    // Skipped and counted rows are never decoded, only the rows of the requested page are
+    try (CloseableIterator<AuditLogEntry> entryIter = auditLogTable.scanEntries(namespace,
+                                                                                entityType,
+                                                                                name,
+                                                                                startTimeLongMillis,
+                                                                                endTimeLongMillis,
+                                                                                filter)) {
       // First skip to the offset
-      if (offset > 0) {
-        while (totalResults < offset && messageIter.next() != null) {
-          totalResults++;
-        }
+      while (totalResults < offset && entryIter.hasNext()) {
+        entryIter.next();
+        totalResults++;
       }
-      while ((message = messageIter.next()) != null) {
+      while (entryIter.hasNext()) {
+        AuditLogEntry entry = entryIter.next();
         totalResults++;
         if (totalResults <= (limit + offset)) {
-          logList.add(message);
+          logList.add(entry.getMessage());
         }
         // End early if there are too many results to scan.
         if (totalResults >= (MAX_RESULTS_TO_SCAN + offset)) {
           break;
         }
       }
-    } catch (NoSuchElementException e) {
-      //no-op
     }
     AuditLogResponse resp = new AuditLogResponse(totalResults, logList, offset);
     responder.sendJson(200, resp);
   }
-}
 
+  @Path("v1/activity/user/{user}")
+  @GET
+  public void userActivity(HttpServiceRequest request, HttpServiceResponder responder,
+                           @PathParam("user") String user,
+                           @QueryParam("limit") @DefaultValue(DEFAULT_PAGE_SIZE) int limit,
+                           @QueryParam("startTime") @DefaultValue("0") String startTime,
+                           @QueryParam("endTime") @DefaultValue("now") String endTime,
+                           @QueryParam("cursor") String cursor) {
+    activity(responder, AuditLogTable.Activity.USER, user, limit, startTime, endTime, cursor);
+  }
+
+  /**
+   * Returns the accesses of a program or a system service, identified by its entity id string, for example
+   * program:ns1.app1.flow.flow1 or system_service:explore.
+   */
+  @Path("v1/activity/accessor/{accessor}")
+  @GET
+  public void accessorActivity(HttpServiceRequest request, HttpServiceResponder responder,
+                               @PathParam("accessor") String accessor,
+                               @QueryParam("limit") @DefaultValue(DEFAULT_PAGE_SIZE) int limit,
+                               @QueryParam("startTime") @DefaultValue("0") String startTime,
+                               @QueryParam("endTime") @DefaultValue("now") String endTime,
+                               @QueryParam("cursor") String cursor) {
+    activity(responder, AuditLogTable.Activity.ACCESSOR, accessor, limit, startTime, endTime, cursor);
+  }
+
+  private void activity(HttpServiceResponder responder, AuditLogTable.Activity activity, String value,
+                        int limit, String startTime, String endTime, String cursor) {
+    if (!ParameterCheck.isLimitValid(limit)) {
+      responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(), ParameterCheck.LIMIT_INVALID,
+                           StandardCharsets.UTF_8);
+      return;
+    }
+    long startTimeLong = ParameterCheck.parseTime(startTime);
+    long endTimeLong = ParameterCheck.parseTime(endTime);
+    if (!ParameterCheck.isTimeFormatValid(startTimeLong, endTimeLong)) {
+      responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(), ParameterCheck.INVALID_TIME_FORMAT,
+                           StandardCharsets.UTF_8);
+      return;
+    }
+    if (!ParameterCheck.isTimeFrameValid(startTimeLong, endTimeLong)) {
+      responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(),
+                           ParameterCheck.STARTTIME_GREATER_THAN_ENDTIME, StandardCharsets.UTF_8);
+      return;
+    }
+    try {
+      responder.sendJson(200, auditLogTable.getActivity(activity, namespace, value,
+                                                        startTimeLong * 1000, endTimeLong * 1000,
+                                                        Strings.isNullOrEmpty(cursor) ? null : cursor, limit));
+    } catch (IllegalArgumentException e) {
+      responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(), e.getMessage(), StandardCharsets.UTF_8);
+    } catch (IllegalStateException e) {
+      responder.sendString(HttpResponseStatus.NOT_IMPLEMENTED.getCode(), e.getMessage(), StandardCharsets.UTF_8);
+    }
+  }
+}
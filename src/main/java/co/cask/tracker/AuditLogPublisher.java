@@ -15,6 +15,8 @@
  */
 package co.cask.tracker;
 
+import co.cask.cdap.api.annotation.Batch;
+import co.cask.cdap.api.annotation.HashPartition;
 import co.cask.cdap.api.annotation.ProcessInput;
 import co.cask.cdap.api.annotation.UseDataSet;
 import co.cask.cdap.api.common.Bytes;
@@ -25,21 +27,35 @@ import co.cask.cdap.proto.audit.AuditMessage;
 import co.cask.cdap.proto.codec.AuditMessageTypeAdapter;
 import co.cask.cdap.proto.codec.EntityIdTypeAdapter;
 import co.cask.cdap.proto.id.EntityId;
+import co.cask.tracker.entity.AuditLeaderboardTable;
 import co.cask.tracker.entity.AuditLogTable;
 import co.cask.tracker.entity.AuditMetricsCube;
+import co.cask.tracker.entity.EntityTotalsTable;
+import co.cask.tracker.entity.IngestWatermarkTable;
 import co.cask.tracker.entity.LatestEntityTable;
+import co.cask.tracker.entity.TagIndexTable;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * A flowlet to write Audit Log data to a table (Audit Log) and a cube (Audit Metrics).
+ * Events are processed in batches, and are hash partitioned by entity across the flowlet instances,
+ * so that all events of an entity are written by the same instance.
  */
 public final class AuditLogPublisher extends AbstractFlowlet {
+  public static final String ENTITY_HASH_KEY = "entityHash";
+
   private static final Logger LOG = LoggerFactory.getLogger(AuditLogPublisher.class);
+  private static final int BATCH_SIZE = 100;
   private static final Gson GSON = new GsonBuilder()
           .registerTypeAdapter(AuditMessage.class, new AuditMessageTypeAdapter())
           .registerTypeAdapter(EntityId.class, new EntityIdTypeAdapter())
@@ -51,45 +67,104 @@ public final class AuditLogPublisher extends AbstractFlowlet {
   @UseDataSet(TrackerApp.AUDIT_METRICS_DATASET_NAME)
   private AuditMetricsCube auditMetrics;
 
+  @UseDataSet(TrackerApp.AUDIT_LEADERBOARD_DATASET_NAME)
+  private AuditLeaderboardTable leaderboards;
+
+  @UseDataSet(TrackerApp.ENTITY_TOTALS_DATASET_NAME)
+  private EntityTotalsTable entityTotals;
+
   @UseDataSet(TrackerApp.ENTITY_LATEST_TIMESTAMP_DATASET_NAME)
   private LatestEntityTable latestEntityTable;
 
+  @UseDataSet(TrackerApp.TAG_INDEX_DATASET_NAME)
+  private TagIndexTable tagIndex;
+
+  @UseDataSet(TrackerApp.INGEST_WATERMARK_DATASET_NAME)
+  private IngestWatermarkTable ingestWatermarks;
+
+  // Set once this instance read that no legacy rows are left to migrate in the TimeSince table
+  private boolean legacyTimeSinceRowsMigrated;
+
   @ProcessInput
   public void process(StreamEvent event) {
-    process(Bytes.toString(event.getBody()));
+    process(Collections.singletonList(Bytes.toString(event.getBody())).iterator());
   }
 
+  @Batch(BATCH_SIZE)
+  @HashPartition(ENTITY_HASH_KEY)
   @ProcessInput
-  public void process(String event) {
-    if (!event.isEmpty()) {
-      AuditMessage message = GSON.fromJson(event, AuditMessage.class);
-      String currentNamespace = this.getContext().getNamespace();
-      MetadataEntity metadataEntity = message.getEntity();
-      if (!metadataEntity.containsKey(MetadataEntity.NAMESPACE)) {
-        throw new IllegalStateException(String.format("Entity '%s' in event '%s' does not have a namespace " +
-                                                        "and was not written to Tracker",
-                                                      metadataEntity, event));
-      }
-      if (!(metadataEntity.getValue(MetadataEntity.NAMESPACE).equals(currentNamespace))) {
-        return;
+  public void process(Iterator<String> events) {
+    String currentNamespace = this.getContext().getNamespace();
+    List<AuditMessage> messages = new ArrayList<>();
+    while (events.hasNext()) {
+      String event = events.next();
+      if (event.isEmpty()) {
+        continue;
       }
+      AuditMessage message;
       try {
-        auditLog.write(message);
-      } catch (IOException e) {
-        LOG.warn("Writing audit event to audit log failed due to exception", event, e);
+        message = GSON.fromJson(event, AuditMessage.class);
+      } catch (JsonParseException | IllegalArgumentException e) {
+        // A single malformed event must not fail, and thus endlessly retry, the whole batch
+        LOG.warn("Skipping malformed audit event '{}'", event, e);
+        continue;
       }
-
-      try {
-        auditMetrics.write(message);
-      } catch (IOException e) {
-        LOG.warn("Writing audit event to audit metrics {} failed due to exception", event, e);
+      MetadataEntity metadataEntity = message == null ? null : message.getEntity();
+      if (metadataEntity == null || !metadataEntity.containsKey(MetadataEntity.NAMESPACE)) {
+        LOG.warn("Skipping audit event '{}', as its entity does not have a namespace", event);
+        continue;
+      }
+      if (metadataEntity.getValue(MetadataEntity.NAMESPACE).equals(currentNamespace)) {
+        messages.add(message);
       }
+    }
+    if (messages.isEmpty()) {
+      return;
+    }
 
-      try {
-        latestEntityTable.write(message);
-      } catch (IOException e) {
-        LOG.warn("Writing audit event to the TimeSince table {} failed due to exception", event, e);
+    try {
+      auditLog.write(messages, getContext().getInstanceId());
+    } catch (IOException e) {
+      LOG.warn("Writing {} audit events to audit log failed due to exception", messages.size(), e);
+    }
+
+    try {
+      leaderboards.write(messages, getContext().getInstanceId());
+    } catch (IOException e) {
+      LOG.warn("Writing {} audit events to audit leaderboards failed due to exception", messages.size(), e);
+    }
+
+    try {
+      entityTotals.write(messages, getContext().getInstanceId());
+    } catch (IOException e) {
+      LOG.warn("Writing {} audit events to entity totals failed due to exception", messages.size(), e);
+    }
+
+    try {
+      auditMetrics.write(messages);
+    } catch (IOException e) {
+      LOG.warn("Writing {} audit events to audit metrics failed due to exception", messages.size(), e);
+    }
+
+    try {
+      latestEntityTable.write(messages);
+    } catch (IOException e) {
+      LOG.warn("Writing {} audit events to the TimeSince table failed due to exception", messages.size(), e);
+    }
+
+    tagIndex.write(messages);
+
+    // Migrates the TimeSince table to its current keys a few rows at a time. A single instance does it, so that
+    // migrations never conflict, and only stops once it reads the marker written when nothing was left to migrate,
+    // which is then known to be committed.
+    if (!legacyTimeSinceRowsMigrated && getContext().getInstanceId() == 0) {
+      legacyTimeSinceRowsMigrated = latestEntityTable.isLegacyMigrated();
+      if (!legacyTimeSinceRowsMigrated) {
+        latestEntityTable.migrateLegacyRows(BATCH_SIZE);
       }
     }
+
+    // Lets the TrackerWorker know that the scores computed before this batch are stale
+    ingestWatermarks.advance(getContext().getInstanceId());
   }
 }
@@ -15,22 +15,32 @@
  */
 package co.cask.tracker;
 
+import co.cask.cdap.api.metrics.Metrics;
 import co.cask.cdap.api.service.http.AbstractHttpServiceHandler;
 import co.cask.cdap.api.service.http.HttpServiceContext;
 import co.cask.cdap.api.service.http.HttpServiceRequest;
 import co.cask.cdap.api.service.http.HttpServiceResponder;
 import co.cask.tracker.entity.AuditHistogramResult;
+import co.cask.tracker.entity.AuditLeaderboardTable;
 import co.cask.tracker.entity.AuditMetricsCube;
 import co.cask.tracker.entity.LatestEntityTable;
-import co.cask.tracker.entity.TimeSinceResult;
 import co.cask.tracker.entity.TopApplicationsResult;
+import co.cask.tracker.entity.TopDatasetsResult;
 import co.cask.tracker.entity.TopProgramsResult;
 import co.cask.tracker.utils.ParameterCheck;
+import co.cask.tracker.utils.TimeMathParser;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -42,18 +52,31 @@ import javax.ws.rs.QueryParam;
  * This class handles requests to the AuditLog API.
  */
 public final class AuditMetricsHandler extends AbstractHttpServiceHandler {
+  // Results are cached per handler instance, keyed by the query and, for queries that reach into the current hour,
+  // by that hour
+  private static final long CACHE_MAX_SIZE = 1000;
+  private static final long CACHE_EXPIRY_SECONDS = TimeUnit.MINUTES.toSeconds(5L);
+  private static final long CACHE_WATERMARK_SECONDS = TimeUnit.HOURS.toSeconds(1L);
+  private static final long TOP_ENTITIES_RESOLUTION_SECONDS = TimeUnit.HOURS.toSeconds(1L);
+
   private AuditMetricsCube auditMetricsCube;
+  private AuditLeaderboardTable leaderboards;
   private LatestEntityTable latestEntityTable;
   private String namespace;
-
+  private Cache<List<Object>, Object> resultCache;
+  private Metrics metrics;
 
   @Override
   public void initialize(HttpServiceContext context) throws Exception {
     super.initialize(context);
     namespace = context.getNamespace();
     auditMetricsCube = context.getDataset(TrackerApp.AUDIT_METRICS_DATASET_NAME);
+    leaderboards = context.getDataset(TrackerApp.AUDIT_LEADERBOARD_DATASET_NAME);
     latestEntityTable = context.getDataset(TrackerApp.ENTITY_LATEST_TIMESTAMP_DATASET_NAME);
-
+    resultCache = CacheBuilder.newBuilder()
+      .maximumSize(CACHE_MAX_SIZE)
+      .expireAfterWrite(CACHE_EXPIRY_SECONDS, TimeUnit.SECONDS)
+      .build();
   }
 
   @Path("v1/auditmetrics/top-entities/{entity-name}")
@@ -83,28 +106,56 @@ public final class AuditMetricsHandler extends AbstractHttpServiceHandler {
       return;
     }
 
+    // The leaderboards count messages in hour buckets, so the range is aligned to whole hours, which also lets
+    // polls that end at different times within the same hour share a cache entry
+    long[] aligned = ParameterCheck.alignTimeRange(startTime, endTime, TOP_ENTITIES_RESOLUTION_SECONDS);
+    final long start = aligned[0];
+    final long end = aligned[1];
+    final int topN = limit;
+    final boolean entitySpecified = ParameterCheck.isDatasetSpecified(entityType, entityName);
+    final String type = entityType;
+    final String name = entityName;
+    List<Object> key = Arrays.<Object>asList("top-entities", topEntity, start, end, type, name, topN);
     switch (topEntity) {
       case "applications":
-        List<TopApplicationsResult> appResult;
-        if (ParameterCheck.isDatasetSpecified(entityType, entityName)) {
-          appResult = auditMetricsCube.getTopNApplications(limit, startTime, endTime,
-                                                           namespace, entityType, entityName);
-        } else {
-          appResult = auditMetricsCube.getTopNApplications(limit, startTime, endTime, namespace);
-        }
-        responder.sendJson(appResult);
+        responder.sendJson(getCached(key, end, new Supplier<List<TopApplicationsResult>>() {
+          @Override
+          public List<TopApplicationsResult> get() {
+            if (entitySpecified) {
+              return auditMetricsCube.getTopNApplications(topN, start, end, namespace, type, name);
+            }
+            // Until the leaderboards are seeded by the TrackerWorker, they miss the history of the cube
+            if (!leaderboards.isSeeded(namespace)) {
+              return auditMetricsCube.getTopNApplications(topN, start, end, namespace);
+            }
+            return leaderboards.getTopNApplications(topN, start, end, namespace);
+          }
+        }));
         break;
       case "programs":
-        List<TopProgramsResult> progResult;
-        if (ParameterCheck.isDatasetSpecified(entityType, entityName)) {
-          progResult = auditMetricsCube.getTopNPrograms(limit, startTime, endTime, namespace, entityType, entityName);
-        } else {
-          progResult = auditMetricsCube.getTopNPrograms(limit, startTime, endTime, namespace);
-        }
-        responder.sendJson(progResult);
+        responder.sendJson(getCached(key, end, new Supplier<List<TopProgramsResult>>() {
+          @Override
+          public List<TopProgramsResult> get() {
+            if (entitySpecified) {
+              return auditMetricsCube.getTopNPrograms(topN, start, end, namespace, type, name);
+            }
+            if (!leaderboards.isSeeded(namespace)) {
+              return auditMetricsCube.getTopNPrograms(topN, start, end, namespace);
+            }
+            return leaderboards.getTopNPrograms(topN, start, end, namespace);
+          }
+        }));
         break;
       case "datasets":
-        responder.sendJson(auditMetricsCube.getTopNDatasets(limit, startTime, endTime, namespace));
+        responder.sendJson(getCached(key, end, new Supplier<List<TopDatasetsResult>>() {
+          @Override
+          public List<TopDatasetsResult> get() {
+            if (!leaderboards.isSeeded(namespace)) {
+              return auditMetricsCube.getTopNDatasets(topN, start, end, namespace);
+            }
+            return leaderboards.getTopNDatasets(topN, start, end, namespace);
+          }
+        }));
         break;
       default:
         responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(),
@@ -121,8 +172,8 @@ public final class AuditMetricsHandler extends AbstractHttpServiceHandler {
                            ParameterCheck.SPECIFY_ENTITY_NAME_AND_TYPE, StandardCharsets.UTF_8);
       return;
     }
-    TimeSinceResult result = latestEntityTable.read(namespace, entityType, entityName);
-    responder.sendJson(result.getTimeSinceEvents());
+    // Not cached, as the latest events of an entity change as soon as new messages are ingested
+    responder.sendJson(latestEntityTable.read(namespace, entityType, entityName).getTimeSinceEvents());
   }
 
   @Path("v1/auditmetrics/audit-histogram")
@@ -131,7 +182,8 @@ public final class AuditMetricsHandler extends AbstractHttpServiceHandler {
                                 @QueryParam("entityName") @DefaultValue("") String entityName,
                                 @QueryParam("entityType") @DefaultValue("") String entityType,
                                 @QueryParam("startTime") @DefaultValue("0") String startTimeString,
-                                @QueryParam("endTime") @DefaultValue("now") String endTimeString) {
+                                @QueryParam("endTime") @DefaultValue("now") String endTimeString,
+                                @QueryParam("align") @DefaultValue("false") final boolean align) {
     long endTime = ParameterCheck.parseTime(endTimeString);
     long startTime = ParameterCheck.parseTime(startTimeString);
     if (!ParameterCheck.isTimeFormatValid(startTime, endTime)) {
@@ -144,12 +196,88 @@ public final class AuditMetricsHandler extends AbstractHttpServiceHandler {
                            StandardCharsets.UTF_8);
       return;
     }
-    AuditHistogramResult result;
-    if (ParameterCheck.isDatasetSpecified(entityType, entityName)) {
-      result = auditMetricsCube.getAuditHistogram(startTime, endTime, namespace, entityType, entityName);
+    final long start;
+    final long end;
+    if (align) {
+      // Snap the window to whole buckets of the resolution the histogram is computed at, so that
+      // nearby windows share a cache entry and the first and last buckets are not partially counted
+      long[] aligned = ParameterCheck.alignHistogramTimeRange(startTime, endTime);
+      start = aligned[0];
+      end = aligned[1];
     } else {
-      result = auditMetricsCube.getAuditHistogram(startTime, endTime, namespace);
+      start = startTime;
+      end = endTime;
+    }
+    final boolean entitySpecified = ParameterCheck.isDatasetSpecified(entityType, entityName);
+    final String type = entityType;
+    final String name = entityName;
+    AuditMetricsCube.Bucket bucket = AuditMetricsCube.getResolutionBucket(start, end);
+    long resolution = bucket.getResolutionsSeconds();
+    long[] buckets = getCoveredBuckets(start, end, resolution);
+    List<Object> key = Arrays.<Object>asList("audit-histogram", bucket, buckets[0], buckets[1], type, name, align);
+    responder.sendJson(getCached(key, buckets[1] + resolution - 1, new Supplier<AuditHistogramResult>() {
+      @Override
+      public AuditHistogramResult get() {
+        AuditHistogramResult result = entitySpecified
+          ? auditMetricsCube.getAuditHistogram(start, end, namespace, type, name)
+          : auditMetricsCube.getAuditHistogram(start, end, namespace);
+        if (align) {
+          result.setAlignment(start, end);
+        }
+        return result;
+      }
+    }));
+  }
+
+  /**
+   * Returns the start times of the first and the last bucket of a resolution that a time range covers. The cube
+   * keys its buckets by the time they start at, so the histograms of time ranges that cover the same buckets are
+   * the same, and they share a cache entry.
+   *
+   * @return the start times of the first and the last bucket, in seconds
+   */
+  @VisibleForTesting
+  static long[] getCoveredBuckets(long startTime, long endTime, long resolution) {
+    return new long[] { TimeMathParser.alignStart(startTime + resolution - 1, resolution),
+      TimeMathParser.alignStart(endTime, resolution) };
+  }
+
+  /**
+   * Returns the cached result of a query, or computes and caches it.
+   *
+   * @param endTime the last time the result of the query depends on, in seconds
+   */
+  private <T> T getCached(List<Object> queryKey, long endTime, Supplier<T> query) {
+    List<Object> key = getCacheKey(queryKey, endTime, System.currentTimeMillis() / 1000);
+    @SuppressWarnings("unchecked")
+    T result = (T) resultCache.getIfPresent(key);
+    if (result != null) {
+      metrics.count("query.cache.hits", 1);
+      return result;
+    }
+    metrics.count("query.cache.misses", 1);
+    result = query.get();
+    resultCache.put(key, result);
+    return result;
+  }
+
+  /**
+   * Returns the cache key of a query. Messages are bucketed by their ingest time, so the result of a query that
+   * ends before the current hour never changes. The key of a query that reaches into the current hour is extended
+   * with the start of that hour, so that its result is computed again every hour, and is otherwise at most
+   * {@link #CACHE_EXPIRY_SECONDS} old.
+   *
+   * @param endTime the end of the time range of the query, in seconds
+   * @param now the current time in seconds
+   */
+  @VisibleForTesting
+  static List<Object> getCacheKey(List<Object> queryKey, long endTime, long now) {
+    long watermark = TimeMathParser.alignStart(now, CACHE_WATERMARK_SECONDS);
+    if (endTime < watermark) {
+      return queryKey;
     }
-    responder.sendJson(result);
+    List<Object> key = new ArrayList<>(queryKey);
+    key.add(watermark);
+    return key;
   }
 }
@@ -16,7 +16,11 @@
 
 package co.cask.tracker;
 
+import co.cask.cdap.api.TxRunnable;
 import co.cask.cdap.api.annotation.Property;
+import co.cask.cdap.api.annotation.TransactionControl;
+import co.cask.cdap.api.annotation.TransactionPolicy;
+import co.cask.cdap.api.data.DatasetContext;
 import co.cask.cdap.api.service.http.AbstractHttpServiceHandler;
 import co.cask.cdap.api.service.http.HttpServiceContext;
 import co.cask.cdap.api.service.http.HttpServiceRequest;
@@ -28,17 +32,24 @@ import co.cask.cdap.internal.guava.reflect.TypeToken;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.security.spi.authorization.UnauthorizedException;
 import co.cask.tracker.entity.AuditTagsTable;
+import co.cask.tracker.entity.Entity;
+import co.cask.tracker.entity.TagIndexTable;
+import co.cask.tracker.entity.TagsResult;
 import co.cask.tracker.utils.DiscoveryMetadataClient;
+import co.cask.tracker.utils.ParameterCheck;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.gson.Gson;
+import org.apache.tephra.TransactionFailureException;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nullable;
 import javax.ws.rs.DELETE;
@@ -68,6 +79,9 @@ public final class AuditTagsHandler extends AbstractHttpServiceHandler {
   private String zookeeperQuorum;
 
   private AuditTagsTable auditTagsTable;
+  private TagIndexTable tagIndex;
+  // Whether the tag index of the namespace is known to be seeded, which never changes back
+  private boolean tagIndexSeeded;
 
   public AuditTagsHandler(@Nullable String zookeeperQuorum) {
     this.zookeeperQuorum = zookeeperQuorum;
@@ -77,6 +91,7 @@ public final class AuditTagsHandler extends AbstractHttpServiceHandler {
   public void initialize(HttpServiceContext context) throws Exception {
     super.initialize(context);
     auditTagsTable = context.getDataset(TrackerApp.AUDIT_TAGS_DATASET_NAME);
+    tagIndex = context.getDataset(TrackerApp.TAG_INDEX_DATASET_NAME);
   }
 
   @Path("v1/tags/demote")
@@ -94,20 +109,33 @@ public final class AuditTagsHandler extends AbstractHttpServiceHandler {
 
   @Path("v1/tags/preferred")
   @DELETE
+  @TransactionPolicy(TransactionControl.EXPLICIT)
   public void deleteTagsWithoutEntities(HttpServiceRequest request, HttpServiceResponder responder,
-                                        @QueryParam("tag") String tag) throws Exception {
+                                        @QueryParam("tag") final String tag) throws Exception {
     if (Strings.isNullOrEmpty(tag)) {
       responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(), NO_TAGS_RECEIVED, Charsets.UTF_8);
       return;
     }
-    int num = DiscoveryMetadataClient.getInstance(request, zookeeperQuorum).
-      getEntityNum(tag, new NamespaceId(getContext().getNamespace()));
-    if (num > 0) {
+    final String namespace = getContext().getNamespace();
+    // Until the index is seeded, it misses the entities that had the tag before it was maintained
+    seedTagIndex(request, namespace);
+    final HttpResponseStatus[] status = new HttpResponseStatus[1];
+    getContext().execute(new TxRunnable() {
+      @Override
+      public void run(DatasetContext context) throws Exception {
+        AuditTagsTable auditTagsTable = context.getDataset(TrackerApp.AUDIT_TAGS_DATASET_NAME);
+        TagIndexTable tagIndex = context.getDataset(TrackerApp.TAG_INDEX_DATASET_NAME);
+        Integer num = tagIndex.getTagCounts(namespace, Collections.singleton(tag)).get(tag);
+        if (num > 0) {
+          status[0] = HttpResponseStatus.BAD_REQUEST;
+        } else {
+          status[0] = auditTagsTable.deleteTag(tag) ? HttpResponseStatus.OK : HttpResponseStatus.NOT_FOUND;
+        }
+      }
+    });
+    if (status[0] == HttpResponseStatus.BAD_REQUEST) {
       responder.sendString(HttpResponseStatus.BAD_REQUEST.getCode(), DELETE_TAGS_WITH_ENTITIES, Charsets.UTF_8);
-      return;
-    }
-
-    if (auditTagsTable.deleteTag(tag)) {
+    } else if (status[0] == HttpResponseStatus.OK) {
       responder.sendStatus(HttpResponseStatus.OK.getCode());
     } else {
       responder.sendString(HttpResponseStatus.NOT_FOUND.getCode(), PREFERRED_TAG_NOTFOUND, Charsets.UTF_8);
@@ -143,44 +171,84 @@ public final class AuditTagsHandler extends AbstractHttpServiceHandler {
 
   @Path("v1/tags")
   @GET
+  @TransactionPolicy(TransactionControl.EXPLICIT)
   public void getTags(HttpServiceRequest request, HttpServiceResponder responder,
-                      @QueryParam("type") @DefaultValue("all") String type,
-                      @QueryParam("prefix") @DefaultValue("") String prefix)
-    throws IOException, NotFoundException, UnauthenticatedException, BadRequestException, UnauthorizedException {
-    NamespaceId namespace = new NamespaceId(getContext().getNamespace());
-    switch (type) {
-      case "user":
-        responder.sendJson(HttpResponseStatus.OK.getCode(),
-                           auditTagsTable.getUserTags(DiscoveryMetadataClient.getInstance(request, zookeeperQuorum),
-                                                      prefix, namespace));
-        break;
-      case "preferred":
-        responder.sendJson(HttpResponseStatus.OK.getCode(), auditTagsTable.
-          getPreferredTags(DiscoveryMetadataClient.getInstance(request, zookeeperQuorum), prefix, namespace));
-        break;
-      case "all":
-        responder.sendJson(HttpResponseStatus.OK.getCode(),
-                           auditTagsTable.getTags(DiscoveryMetadataClient.getInstance(request, zookeeperQuorum),
-                                                  prefix, namespace));
-        break;
-      default:
-        responder.sendJson(HttpResponseStatus.BAD_REQUEST.getCode(), INVALID_TYPE_PARAMETER);
-        break;
+                      @QueryParam("type") @DefaultValue("all") final String type,
+                      @QueryParam("prefix") @DefaultValue("") final String prefix,
+                      @QueryParam("limit") Integer limit,
+                      @QueryParam("cursor") String cursor) throws Exception {
+    if (limit != null && !ParameterCheck.isLimitValid(limit)) {
+      responder.sendJson(HttpResponseStatus.BAD_REQUEST.getCode(), ParameterCheck.LIMIT_INVALID);
+      return;
     }
+    if (!type.equals("user") && !type.equals("preferred") && !type.equals("all")) {
+      responder.sendJson(HttpResponseStatus.BAD_REQUEST.getCode(), INVALID_TYPE_PARAMETER);
+      return;
+    }
+    final int pageSize = limit == null ? Integer.MAX_VALUE : limit;
+    final String pageCursor = Strings.isNullOrEmpty(cursor) ? null : cursor;
+    final String namespace = getContext().getNamespace();
+    // Until the index is seeded, it misses the tags that entities had before it was maintained
+    seedTagIndex(request, namespace);
+    final TagsResult[] result = new TagsResult[1];
+    getContext().execute(new TxRunnable() {
+      @Override
+      public void run(DatasetContext context) throws Exception {
+        AuditTagsTable auditTagsTable = context.getDataset(TrackerApp.AUDIT_TAGS_DATASET_NAME);
+        TagIndexTable tagIndex = context.getDataset(TrackerApp.TAG_INDEX_DATASET_NAME);
+        switch (type) {
+          case "user":
+            result[0] = auditTagsTable.getUserTags(tagIndex, namespace, prefix, pageCursor, pageSize);
+            break;
+          case "preferred":
+            List<String> preferredTags = auditTagsTable.getPreferredTags(prefix, pageCursor, pageSize);
+            result[0] = auditTagsTable.getPreferredTags(preferredTags, tagIndex.getTagCounts(namespace, preferredTags),
+                                                        pageSize);
+            break;
+          default:
+            result[0] = auditTagsTable.getTags(tagIndex.getTagCounts(namespace, prefix, pageCursor, pageSize),
+                                               auditTagsTable.getPreferredTags(prefix, pageCursor, pageSize),
+                                               pageSize);
+            break;
+        }
+      }
+    });
+    responder.sendJson(HttpResponseStatus.OK.getCode(), result[0]);
+  }
+
+  /**
+   * Seeds the tag index of the namespace with the tags that its datasets and streams had before the index was
+   * maintained. The index is also seeded by the first request that reads it, so this only lets it be seeded ahead of
+   * that, after upgrading from a version without the index. It does nothing once the namespace is seeded.
+   */
+  @Path("v1/tags/index/seed")
+  @POST
+  @TransactionPolicy(TransactionControl.EXPLICIT)
+  public void seedTagIndex(HttpServiceRequest request, HttpServiceResponder responder) throws Exception {
+    seedTagIndex(request, getContext().getNamespace());
+    responder.sendStatus(HttpResponseStatus.OK.getCode());
   }
 
   @Path("v1/tags/{type}/{name}")
   @GET
+  @TransactionPolicy(TransactionControl.EXPLICIT)
   public void getAttachedTags(HttpServiceRequest request, HttpServiceResponder responder,
-                              @PathParam("type") String entityType,
-                              @PathParam("name") String entityName)
-    throws UnauthenticatedException, BadRequestException, NotFoundException, IOException, UnauthorizedException {
-    DiscoveryMetadataClient discoveryMetadataClient = DiscoveryMetadataClient.getInstance(request, zookeeperQuorum);
+                              @PathParam("type") final String entityType,
+                              @PathParam("name") final String entityName) throws Exception {
     if (entityType.toLowerCase().equals("dataset") || entityType.toLowerCase().equals("stream")) {
-      responder.sendJson(HttpResponseStatus.OK.getCode(),
-                         auditTagsTable.getEntityTags(
-                           discoveryMetadataClient, new NamespaceId(getContext().getNamespace()),
-                           entityType, entityName));
+      final String namespace = getContext().getNamespace();
+      seedTagIndex(request, namespace);
+      final TagsResult[] result = new TagsResult[1];
+      getContext().execute(new TxRunnable() {
+        @Override
+        public void run(DatasetContext context) throws Exception {
+          AuditTagsTable auditTagsTable = context.getDataset(TrackerApp.AUDIT_TAGS_DATASET_NAME);
+          TagIndexTable tagIndex = context.getDataset(TrackerApp.TAG_INDEX_DATASET_NAME);
+          Set<String> entityTags = tagIndex.getEntityTags(namespace, entityType, entityName);
+          result[0] = auditTagsTable.getEntityTags(entityTags, tagIndex.getTagCounts(namespace, entityTags));
+        }
+      });
+      responder.sendJson(HttpResponseStatus.OK.getCode(), result[0]);
     } else {
       responder.sendJson(HttpResponseStatus.BAD_REQUEST.getCode(), INVALID_TYPE_PARAMETER);
     }
@@ -202,6 +270,8 @@ public final class AuditTagsHandler extends AbstractHttpServiceHandler {
     List<String> tagsList = GSON.fromJson(tags, STRING_LIST);
     if (entityType.toLowerCase().equals("dataset") || entityType.toLowerCase().equals("stream")) {
       discoveryMetadataClient.addTags(new NamespaceId(getContext().getNamespace()), entityType, entityName, tagsList);
+      // Apply the change right away rather than waiting for its audit message to reach the flow
+      tagIndex.addTags(getContext().getNamespace(), entityType, entityName, tagsList);
       responder.sendStatus(HttpResponseStatus.OK.getCode());
     } else {
       responder.sendJson(HttpResponseStatus.BAD_REQUEST.getCode(), INVALID_TYPE_PARAMETER);
@@ -222,6 +292,7 @@ public final class AuditTagsHandler extends AbstractHttpServiceHandler {
       if (set.contains(tagName)) {
         if (discoveryMetadataClient.deleteTag(new NamespaceId(getContext().getNamespace()),
                                               entityType, entityName, tagName)) {
+          tagIndex.removeTags(getContext().getNamespace(), entityType, entityName, Collections.singleton(tagName));
           responder.sendStatus(HttpResponseStatus.OK.getCode());
         } else {
           responder.sendStatus(HttpResponseStatus.BAD_REQUEST.getCode());
@@ -234,4 +305,46 @@ public final class AuditTagsHandler extends AbstractHttpServiceHandler {
       responder.sendJson(HttpResponseStatus.BAD_REQUEST.getCode(), INVALID_TYPE_PARAMETER);
     }
   }
+
+  /**
+   * Seeds the tag index of a namespace with the tags that its datasets and streams had before the index was
+   * maintained, unless it is seeded already. The tags are looked up outside of any transaction, and written in a
+   * short one. Concurrent requests may both seed the index, in which case only one of them commits.
+   */
+  private void seedTagIndex(HttpServiceRequest request, final String namespace) throws Exception {
+    if (tagIndexSeeded || isTagIndexSeeded(namespace)) {
+      tagIndexSeeded = true;
+      return;
+    }
+    final Map<Entity, Set<String>> entityTags = DiscoveryMetadataClient.getInstance(request, zookeeperQuorum)
+      .getEntityTags(new NamespaceId(namespace));
+    try {
+      getContext().execute(new TxRunnable() {
+        @Override
+        public void run(DatasetContext context) throws Exception {
+          TagIndexTable tagIndex = context.getDataset(TrackerApp.TAG_INDEX_DATASET_NAME);
+          if (!tagIndex.isSeeded(namespace)) {
+            tagIndex.seed(namespace, entityTags);
+          }
+        }
+      });
+    } catch (TransactionFailureException e) {
+      if (!isTagIndexSeeded(namespace)) {
+        throw e;
+      }
+    }
+    tagIndexSeeded = true;
+  }
+
+  private boolean isTagIndexSeeded(final String namespace) throws TransactionFailureException {
+    final boolean[] seeded = new boolean[1];
+    getContext().execute(new TxRunnable() {
+      @Override
+      public void run(DatasetContext context) throws Exception {
+        TagIndexTable tagIndex = context.getDataset(TrackerApp.TAG_INDEX_DATASET_NAME);
+        seeded[0] = tagIndex.isSeeded(namespace);
+      }
+    });
+    return seeded[0];
+  }
 }
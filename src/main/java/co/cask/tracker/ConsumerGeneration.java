@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A set of {@link AuditLogConsumer} instances that run with the same number of instances, and what the sets of
+ * instances before it already emitted.
+ * <p>
+ * Every instance of a generation stores the offset of the last message it fetched. When the number of instances
+ * changes, the next generation starts from the lowest offset the current one reached, and keeps the offsets of the
+ * current one. An instance only emits a message when no instance of an earlier generation that owned the message
+ * fetched past it, so that every message is emitted exactly once across changes of the number of instances.
+ * <p>
+ * Generation 0 is the single instance that stores its offset under the {@code tms.offset} key.
+ */
+final class ConsumerGeneration {
+  private static final String OFFSET = "tms.offset";
+
+  private final int epoch;
+  private final int instanceCount;
+  // Offset the instances start from, null to start from the beginning of the topic
+  private final String startOffset;
+  // The offsets reached by the instances of earlier generations, from the most recent, that are past startOffset
+  private final List<Level> previous;
+
+  private ConsumerGeneration(int epoch, int instanceCount, @Nullable String startOffset, List<Level> previous) {
+    this.epoch = epoch;
+    this.instanceCount = instanceCount;
+    this.startOffset = startOffset;
+    this.previous = previous;
+  }
+
+  /**
+   * @return the generation of a single instance that stores its offset under the {@code tms.offset} key
+   */
+  static ConsumerGeneration initial() {
+    return new ConsumerGeneration(0, 1, null, Collections.<Level>emptyList());
+  }
+
+  int getEpoch() {
+    return epoch;
+  }
+
+  int getInstanceCount() {
+    return instanceCount;
+  }
+
+  @Nullable
+  String getStartOffset() {
+    return startOffset;
+  }
+
+  /**
+   * @return the key an instance of this generation stores its offset under
+   */
+  String getOffsetKey(int instanceId) {
+    return epoch == 0 ? OFFSET : String.format("%s.%d.%d", OFFSET, epoch, instanceId);
+  }
+
+  /**
+   * @return whether an instance of an earlier generation already emitted a message
+   */
+  boolean isEmitted(String messageId, int entityHash) {
+    for (Level level : previous) {
+      String offset = level.getOffset(entityHash);
+      if (offset != null && messageId.compareTo(offset) <= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the generation that follows this one when the number of instances changes.
+   *
+   * @param offsets the offset stored by each instance of this generation. Instances that did not store one did not
+   *                fetch past the start offset.
+   */
+  ConsumerGeneration next(Map<Integer, String> offsets, int newInstanceCount) {
+    List<String> reached = new ArrayList<>(instanceCount);
+    String newStartOffset = null;
+    for (int instanceId = 0; instanceId < instanceCount; instanceId++) {
+      String offset = offsets.containsKey(instanceId) ? offsets.get(instanceId) : startOffset;
+      reached.add(offset);
+      if (instanceId == 0 || compare(offset, newStartOffset) < 0) {
+        newStartOffset = offset;
+      }
+    }
+    List<Level> levels = new ArrayList<>();
+    levels.add(new Level(instanceCount, reached));
+    levels.addAll(previous);
+    // Messages up to the new start offset are not fetched again, so levels that do not go past it are dropped
+    List<Level> newPrevious = new ArrayList<>();
+    for (Level level : levels) {
+      if (level.isPast(newStartOffset)) {
+        newPrevious.add(level);
+      }
+    }
+    return new ConsumerGeneration(epoch + 1, newInstanceCount, newStartOffset, newPrevious);
+  }
+
+  // Compares offsets, where null is before any message
+  private static int compare(@Nullable String offset1, @Nullable String offset2) {
+    if (offset1 == null || offset2 == null) {
+      return offset1 == null ? (offset2 == null ? 0 : -1) : 1;
+    }
+    return offset1.compareTo(offset2);
+  }
+
+  static int getOwner(int entityHash, int instanceCount) {
+    return Math.abs(entityHash % instanceCount);
+  }
+
+  /**
+   * The offsets reached by the instances of a generation.
+   */
+  private static final class Level {
+    private final int instanceCount;
+    private final List<String> offsets;
+
+    private Level(int instanceCount, List<String> offsets) {
+      this.instanceCount = instanceCount;
+      this.offsets = offsets;
+    }
+
+    @Nullable
+    private String getOffset(int entityHash) {
+      return offsets.get(getOwner(entityHash, instanceCount));
+    }
+
+    private boolean isPast(@Nullable String offset) {
+      for (String reached : offsets) {
+        if (compare(reached, offset) > 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
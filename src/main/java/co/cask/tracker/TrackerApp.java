@@ -21,10 +21,15 @@ import co.cask.cdap.api.dataset.DatasetProperties;
 import co.cask.cdap.api.dataset.lib.KeyValueTable;
 import co.cask.cdap.api.dataset.table.Table;
 import co.cask.tracker.config.TrackerAppConfig;
+import co.cask.tracker.entity.AuditLeaderboardTable;
 import co.cask.tracker.entity.AuditLogTable;
 import co.cask.tracker.entity.AuditMetricsCube;
 import co.cask.tracker.entity.AuditTagsTable;
+import co.cask.tracker.entity.EntityTotalsTable;
+import co.cask.tracker.entity.IngestWatermarkTable;
 import co.cask.tracker.entity.LatestEntityTable;
+import co.cask.tracker.entity.TagIndexTable;
+import co.cask.tracker.entity.TrackerScoreTable;
 
 import java.util.concurrent.TimeUnit;
 
@@ -37,8 +42,13 @@ public class TrackerApp extends AbstractApplication<TrackerAppConfig> {
   public static final String APP_NAME = "_Tracker";
   public static final String AUDIT_LOG_DATASET_NAME = "_auditLog";
   public static final String AUDIT_METRICS_DATASET_NAME = "_auditMetrics";
+  public static final String AUDIT_LEADERBOARD_DATASET_NAME = "_auditLeaderboards";
+  public static final String INGEST_WATERMARK_DATASET_NAME = "_ingestWatermarks";
+  public static final String ENTITY_TOTALS_DATASET_NAME = "_entityTotals";
+  public static final String TRACKER_SCORES_DATASET_NAME = "_trackerScores";
   public static final String ENTITY_LATEST_TIMESTAMP_DATASET_NAME = "_timeSinceTable";
   public static final String AUDIT_TAGS_DATASET_NAME = "_auditTagsTable";
+  public static final String TAG_INDEX_DATASET_NAME = "_tagIndex";
   public static final String DATA_DICTIONARY_DATASET_NAME = "_dataDictionary";
   public static final String CONFIG_DATASET_NAME = "_configurationTable";
 
@@ -46,7 +56,9 @@ public class TrackerApp extends AbstractApplication<TrackerAppConfig> {
   public void configure() {
     setName(APP_NAME);
     setDescription("A CDAP Extension that provides the ability to track data throughout the CDAP platform.");
-    createDataset(AUDIT_LOG_DATASET_NAME, AuditLogTable.class);
+    createDataset(AUDIT_LOG_DATASET_NAME, AuditLogTable.class, DatasetProperties.builder()
+      .add(AuditLogTable.ACTIVITY_INDEX_PROPERTY, "true")
+      .build());
     String resolutions = String.format("%s,%s,%s",
             TimeUnit.HOURS.toSeconds(1L),
             TimeUnit.DAYS.toSeconds(1L),
@@ -60,11 +72,23 @@ public class TrackerApp extends AbstractApplication<TrackerAppConfig> {
                       "program_name,app_name,program_type,accessor_namespace")
             .build();
     createDataset(AUDIT_METRICS_DATASET_NAME, AuditMetricsCube.class, prop);
+    createDataset(AUDIT_LEADERBOARD_DATASET_NAME, AuditLeaderboardTable.class, DatasetProperties.builder()
+      .add(Table.PROPERTY_READLESS_INCREMENT, "true")
+      .build());
+    createDataset(ENTITY_TOTALS_DATASET_NAME, EntityTotalsTable.class, DatasetProperties.builder()
+      .add(Table.PROPERTY_READLESS_INCREMENT, "true")
+      .build());
+    createDataset(INGEST_WATERMARK_DATASET_NAME, IngestWatermarkTable.class, DatasetProperties.builder()
+      .add(Table.PROPERTY_READLESS_INCREMENT, "true")
+      .build());
     createDataset(ENTITY_LATEST_TIMESTAMP_DATASET_NAME, LatestEntityTable.class);
+    createDataset(TRACKER_SCORES_DATASET_NAME, TrackerScoreTable.class);
     createDataset(AUDIT_TAGS_DATASET_NAME, AuditTagsTable.class);
+    createDataset(TAG_INDEX_DATASET_NAME, TagIndexTable.class);
     createDataset(DATA_DICTIONARY_DATASET_NAME, Table.class);
     createDataset(CONFIG_DATASET_NAME, KeyValueTable.class);
     addFlow(new AuditLogFlow(getConfig()));
     addService(new TrackerService(getConfig()));
+    addWorker(new TrackerWorker());
   }
 }
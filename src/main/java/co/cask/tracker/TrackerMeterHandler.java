@@ -22,38 +22,47 @@ import co.cask.cdap.api.service.http.HttpServiceResponder;
 import co.cask.cdap.proto.element.EntityType;
 import co.cask.tracker.entity.AuditMetricsCube;
 import co.cask.tracker.entity.Entity;
+import co.cask.tracker.entity.EntityTotalsTable;
 import co.cask.tracker.entity.LatestEntityTable;
 import co.cask.tracker.entity.TrackerMeterRequest;
 import co.cask.tracker.entity.TrackerMeterResult;
+import co.cask.tracker.entity.TrackerScoreResult;
+import co.cask.tracker.entity.TrackerScoreTable;
+import co.cask.tracker.utils.ParameterCheck;
+import co.cask.tracker.utils.TrackerMeterScorer;
 import com.google.gson.Gson;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
 
 /**
  * This class handles requests to the Tracker TruthMeter API
+ * <p>
+ * Scores are only read here. They are computed by the {@link TrackerWorker} whenever new audit messages are
+ * ingested, so that requests neither conflict with each other nor wait for a refresh. Until the worker first computes
+ * the scores of the namespace, they are computed for each request instead.
  */
 public final class TrackerMeterHandler extends AbstractHttpServiceHandler {
 
+  private TrackerScoreTable trackerScores;
+  private EntityTotalsTable entityTotals;
   private AuditMetricsCube auditMetricsCube;
   private LatestEntityTable latestEntityTable;
   private String namespace;
 
-  // Score % parameters
-  private static final float LOG_MESSAGES_WEIGHT = 40.0f;
-  private static final float UNIQUE_PROGRAM_WEIGHT = 40.0f;
-  private static final float TIME_SINCE_READ_WEIGHT = 20.0f;
-
   private static final Gson GSON = new Gson();
   private static final String DATASET = EntityType.DATASET.name().toLowerCase();
   private static final String STREAM = EntityType.STREAM.name().toLowerCase();
@@ -65,6 +74,8 @@ public final class TrackerMeterHandler extends AbstractHttpServiceHandler {
   public void initialize(HttpServiceContext context) throws Exception {
     super.initialize(context);
     namespace = context.getNamespace();
+    trackerScores = context.getDataset(TrackerApp.TRACKER_SCORES_DATASET_NAME);
+    entityTotals = context.getDataset(TrackerApp.ENTITY_TOTALS_DATASET_NAME);
     auditMetricsCube = context.getDataset(TrackerApp.AUDIT_METRICS_DATASET_NAME);
     latestEntityTable = context.getDataset(TrackerApp.ENTITY_LATEST_TIMESTAMP_DATASET_NAME);
   }
@@ -85,17 +96,54 @@ public final class TrackerMeterHandler extends AbstractHttpServiceHandler {
     }
     responder.sendJson(getTrackerScoreMap(trackerMeterRequest));
   }
+
+  @Path("v1/tracker-meter/top")
+  @GET
+  public void topScores(HttpServiceRequest request, HttpServiceResponder responder,
+                        @QueryParam("limit") @DefaultValue("10") int limit) {
+    if (!ParameterCheck.isLimitValid(limit)) {
+      responder.sendError(HttpResponseStatus.BAD_REQUEST.getCode(), ParameterCheck.LIMIT_INVALID);
+      return;
+    }
+    if (!isRefreshed()) {
+      responder.sendJson(sortScores(computeScores(), true, limit));
+      return;
+    }
+    responder.sendJson(trackerScores.getTopScores(namespace, limit));
+  }
+
+  @Path("v1/tracker-meter/bottom")
+  @GET
+  public void bottomScores(HttpServiceRequest request, HttpServiceResponder responder,
+                           @QueryParam("limit") @DefaultValue("10") int limit) {
+    if (!ParameterCheck.isLimitValid(limit)) {
+      responder.sendError(HttpResponseStatus.BAD_REQUEST.getCode(), ParameterCheck.LIMIT_INVALID);
+      return;
+    }
+    if (!isRefreshed()) {
+      responder.sendJson(sortScores(computeScores(), false, limit));
+      return;
+    }
+    responder.sendJson(trackerScores.getBottomScores(namespace, limit));
+  }
+
   // Gets the score and modifies the result to the format expected by the UI
   private TrackerMeterResult getTrackerScoreMap(TrackerMeterRequest truthMeterRequest) {
-    long totalProgramsCount = auditMetricsCube.getTotalProgramsCount(namespace);
-    // program read activity is analyzed independently, so subtracting it here
-    long totalActivity = auditMetricsCube.getTotalActivity(namespace) - totalProgramsCount;
-
     List<Entity> requestList = getUniqueEntityList(truthMeterRequest.getDatasets(), DATASET);
     requestList.addAll(getUniqueEntityList(truthMeterRequest.getStreams(), STREAM));
 
     // Get the score map, and divide entities into datasets and streams
-    Map<Entity, Integer> scoreMap = trackerMeterHelper(requestList, totalActivity, totalProgramsCount);
+    Map<Entity, Integer> scoreMap;
+    if (isRefreshed()) {
+      scoreMap = trackerScores.getScores(namespace, requestList);
+    } else {
+      Map<Entity, Integer> scores = computeScores();
+      scoreMap = new HashMap<>();
+      for (Entity entity : requestList) {
+        Integer score = scores.get(entity);
+        scoreMap.put(entity, score == null ? 0 : score);
+      }
+    }
     Map<String, Integer> datasetMap = new HashMap<>();
     Map<String, Integer> streamMap = new HashMap<>();
     for (Map.Entry<Entity, Integer> entry : scoreMap.entrySet()) {
@@ -108,71 +156,36 @@ public final class TrackerMeterHandler extends AbstractHttpServiceHandler {
     return new TrackerMeterResult(datasetMap, streamMap);
   }
 
-  // Calculates score for each entity
-  private Map<Entity, Integer> trackerMeterHelper(List<Entity> requestList,
-                                                  long totalActivity, long totalProgramsCount) {
-    Map<Entity, Integer> resultMap = new HashMap<>();
-    for (Entity uniqueEntity : requestList) {
-      long entityProgramCount =
-        auditMetricsCube.getTotalProgramsCount(namespace, uniqueEntity.getEntityType(), uniqueEntity.getEntityName());
-      long entityActivity = auditMetricsCube.getTotalActivity(namespace, uniqueEntity.getEntityType(),
-                                                              uniqueEntity.getEntityName()) - entityProgramCount;
-      float logScore = 0;
-      float programScore = 0;
-      // Activity and programs count determine following % each of the final score
-      if (totalActivity != 0) {
-        logScore = ((float) entityActivity / (float) totalActivity) * LOG_MESSAGES_WEIGHT;
-      }
-      if (totalProgramsCount != 0) {
-        programScore = ((float) entityProgramCount / (float) totalProgramsCount) * UNIQUE_PROGRAM_WEIGHT;
-      }
-      int score = (int) (logScore + programScore);
-      resultMap.put(uniqueEntity, score);
-    }
+  private boolean isRefreshed() {
+    return trackerScores.getRefreshTime(namespace) != null;
+  }
 
-    /*
-     * Score calculation using time since last read
-     */
-    // Get a list of all datasets and streams stored so far
-    List<Entity> metricsQuery =
-      getUniqueEntityList(auditMetricsCube.getEntities(namespace, DATASET), DATASET);
-    metricsQuery.addAll(getUniqueEntityList(auditMetricsCube.getEntities(namespace, STREAM), STREAM));
-
-    Map<Entity, Integer> rankMap
-      = getRankMap(sortMapByValue(latestEntityTable.getReadTimestamps(namespace, metricsQuery)));
-    int size = rankMap.size();
-    int rank = size;
-    for (Map.Entry<Entity, Integer> entry : rankMap.entrySet()) {
-      // Updates score for entities for which score was requested
-      if (resultMap.containsKey(entry.getKey())) {
-        Entity entity = entry.getKey();
-        int newScore = resultMap.get(entity) + (int) ((float) rank / (float) size * TIME_SINCE_READ_WEIGHT);
-        resultMap.put(entity, newScore);
-      }
-    }
-    return resultMap;
+  private Map<Entity, Integer> computeScores() {
+    return TrackerMeterScorer.computeScores(namespace, entityTotals, auditMetricsCube, latestEntityTable,
+                                            System.currentTimeMillis() / 1000);
   }
 
-  // Returns same rank for entities with equal timestamp.
-  private Map<Entity, Integer> getRankMap(Map<Entity, Long> sortedTimeMap) {
-    Map<Entity, Integer> resultMap = new LinkedHashMap<>();
-    // If two entities with same timestamp is given a rank n, the entity after them should have rank n-2 and not
-    // n-1. rankChangeStep stores the number of consecutive equal timestamps and fixes this.
-    int rank = sortedTimeMap.size();
-    int rankChangeStep = 1;
-    long lastTimestamp = -1L;
-    for (Map.Entry<Entity, Long> entry : sortedTimeMap.entrySet()) {
-      resultMap.put(entry.getKey(), rank);
-      if (lastTimestamp == entry.getValue()) {
-        rankChangeStep += 1;
-      } else {
-        // Reset rankChangeStep to 1 after subtracting rank to its correct value
-        lastTimestamp = entry.getValue();
-        rank -= rankChangeStep;
-        rankChangeStep = 1;
-      }
+  // Orders scores the way the indexes of the TrackerScoreTable do, by score and then by entity
+  private static List<TrackerScoreResult> sortScores(Map<Entity, Integer> scores, final boolean descending,
+                                                     int limit) {
+    List<TrackerScoreResult> results = new ArrayList<>();
+    for (Map.Entry<Entity, Integer> entry : scores.entrySet()) {
+      results.add(new TrackerScoreResult(entry.getKey().getEntityType(), entry.getKey().getEntityName(),
+                                         entry.getValue()));
     }
-    return resultMap;
+    Collections.sort(results, new Comparator<TrackerScoreResult>() {
+      @Override
+      public int compare(TrackerScoreResult o1, TrackerScoreResult o2) {
+        int compare = descending ? Integer.compare(o2.getScore(), o1.getScore())
+          : Integer.compare(o1.getScore(), o2.getScore());
+        if (compare != 0) {
+          return compare;
+        }
+        compare = o1.getEntityType().compareTo(o2.getEntityType());
+        return compare != 0 ? compare : o1.getEntityName().compareTo(o2.getEntityName());
+      }
+    });
+    return results.subList(0, Math.min(limit, results.size()));
   }
 
   private static List<Entity> getUniqueEntityList(List<String> entityList, String entityType) {
@@ -182,19 +195,4 @@ public final class TrackerMeterHandler extends AbstractHttpServiceHandler {
     }
     return resultList;
   }
-
-  private static Map<Entity, Long> sortMapByValue(Map<Entity, Long> map) {
-    List<Map.Entry<Entity, Long>> list = new LinkedList<>(map.entrySet());
-    Collections.sort(list, new Comparator<Map.Entry<Entity, Long>>() {
-      @Override
-      public int compare(Map.Entry<Entity, Long> o1, Map.Entry<Entity, Long> o2) {
-        return o1.getValue().compareTo(o2.getValue());
-      }
-    });
-    Map<Entity, Long> result = new LinkedHashMap<>();
-    for (Map.Entry<Entity, Long> entry : list) {
-      result.put(entry.getKey(), entry.getValue());
-    }
-    return result;
-  }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker;
+
+import co.cask.cdap.api.TxRunnable;
+import co.cask.cdap.api.data.DatasetContext;
+import co.cask.cdap.api.worker.AbstractWorker;
+import co.cask.tracker.entity.AuditLeaderboardTable;
+import co.cask.tracker.entity.AuditMetricsCube;
+import co.cask.tracker.entity.AuditTagsTable;
+import co.cask.tracker.entity.Entity;
+import co.cask.tracker.entity.EntityTotalsTable;
+import co.cask.tracker.entity.IngestWatermarkTable;
+import co.cask.tracker.entity.LatestEntityTable;
+import co.cask.tracker.entity.TrackerScoreTable;
+import co.cask.tracker.utils.TrackerMeterScorer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the tables that are precomputed from the audit metrics up to date, outside of the transactions of the
+ * {@link AuditLogFlow} and of the requests to the {@link TrackerService}. Every round runs each task in its own
+ * transaction, so that a long task never stalls ingestion, and concurrent requests never conflict.
+ */
+public class TrackerWorker extends AbstractWorker {
+  public static final String WORKER_NAME = "TrackerWorker";
+  private static final Logger LOG = LoggerFactory.getLogger(TrackerWorker.class);
+  private static final long ROUND_INTERVAL_SECONDS = 10L;
+  private static final int MIGRATION_BATCH_SIZE = 1000;
+  private static final int SCORE_BATCH_SIZE = 1000;
+
+  private volatile boolean running;
+  private String namespace;
+  // Whether the leaderboards are known to be seeded, so that seeding is no longer attempted
+  private boolean leaderboardsSeeded;
+  // Whether the entity totals are known to be seeded
+  private boolean totalsSeeded;
+  // Whether no preferred tags are left under their legacy keys
+  private boolean legacyPreferredTagsMigrated;
+
+  @Override
+  public void configure() {
+    setName(WORKER_NAME);
+    setDescription("A worker that seeds and refreshes the tables that Tracker precomputes from the audit metrics.");
+    setInstances(1);
+  }
+
+  @Override
+  public void run() {
+    namespace = getContext().getNamespace();
+    running = true;
+    while (running) {
+      if (!leaderboardsSeeded) {
+        leaderboardsSeeded = seedLeaderboards();
+      }
+      if (!totalsSeeded) {
+        totalsSeeded = seedTotals();
+      }
+      if (!legacyPreferredTagsMigrated) {
+        legacyPreferredTagsMigrated = migrateLegacyPreferredTags();
+      }
+      refreshScores();
+      try {
+        TimeUnit.SECONDS.sleep(ROUND_INTERVAL_SECONDS);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+  }
+
+  /**
+   * Seeds the next chunk of the history of the audit metrics into the leaderboards.
+   *
+   * @return whether the leaderboards are seeded
+   */
+  private boolean seedLeaderboards() {
+    final boolean[] seeded = new boolean[1];
+    boolean committed = execute("seed the audit leaderboards", new TxRunnable() {
+      @Override
+      public void run(DatasetContext context) throws Exception {
+        AuditLeaderboardTable leaderboards = context.getDataset(TrackerApp.AUDIT_LEADERBOARD_DATASET_NAME);
+        AuditMetricsCube auditMetrics = context.getDataset(TrackerApp.AUDIT_METRICS_DATASET_NAME);
+        seeded[0] = leaderboards.seed(namespace, auditMetrics);
+      }
+    });
+    return committed && seeded[0];
+  }
+
+  /**
+   * Seeds the next chunk of the history of the audit metrics into the entity totals.
+   *
+   * @return whether the entity totals are seeded
+   */
+  private boolean seedTotals() {
+    final boolean[] seeded = new boolean[1];
+    boolean committed = execute("seed the entity totals", new TxRunnable() {
+      @Override
+      public void run(DatasetContext context) throws Exception {
+        EntityTotalsTable entityTotals = context.getDataset(TrackerApp.ENTITY_TOTALS_DATASET_NAME);
+        AuditMetricsCube auditMetrics = context.getDataset(TrackerApp.AUDIT_METRICS_DATASET_NAME);
+        seeded[0] = entityTotals.seed(namespace, auditMetrics);
+      }
+    });
+    return committed && seeded[0];
+  }
+
+  /**
+   * Moves the next batch of preferred tags stored under their legacy keys. The worker has a single instance, so
+   * this is the only writer that migrates them.
+   *
+   * @return whether a transaction saw no tags left to move
+   */
+  private boolean migrateLegacyPreferredTags() {
+    final int[] migrated = new int[1];
+    boolean committed = execute("migrate the legacy preferred tags", new TxRunnable() {
+      @Override
+      public void run(DatasetContext context) throws Exception {
+        AuditTagsTable auditTagsTable = context.getDataset(TrackerApp.AUDIT_TAGS_DATASET_NAME);
+        migrated[0] = auditTagsTable.migrateLegacyTags(MIGRATION_BATCH_SIZE);
+      }
+    });
+    return committed && migrated[0] == 0;
+  }
+
+  /**
+   * Recomputes the tracker meter scores of the namespace if anything was ingested since they were computed, so that
+   * scores are at most one round behind ingestion. Scores are computed in one transaction, which only reads, and
+   * written in chunks of {@link #SCORE_BATCH_SIZE} entities, each in its own transaction.
+   */
+  private void refreshScores() {
+    final long[] version = new long[1];
+    final boolean[] stale = new boolean[1];
+    final Map<Entity, Integer> scores = new HashMap<>();
+    boolean committed = execute("compute the tracker meter scores", new TxRunnable() {
+      @Override
+      public void run(DatasetContext context) throws Exception {
+        IngestWatermarkTable ingestWatermarks = context.getDataset(TrackerApp.INGEST_WATERMARK_DATASET_NAME);
+        TrackerScoreTable trackerScores = context.getDataset(TrackerApp.TRACKER_SCORES_DATASET_NAME);
+        version[0] = ingestWatermarks.getVersion();
+        Long scoredVersion = trackerScores.getVersion(namespace);
+        if (scoredVersion != null && scoredVersion == version[0]) {
+          return;
+        }
+        stale[0] = true;
+        EntityTotalsTable entityTotals = context.getDataset(TrackerApp.ENTITY_TOTALS_DATASET_NAME);
+        AuditMetricsCube auditMetrics = context.getDataset(TrackerApp.AUDIT_METRICS_DATASET_NAME);
+        LatestEntityTable latestEntityTable = context.getDataset(TrackerApp.ENTITY_LATEST_TIMESTAMP_DATASET_NAME);
+        scores.clear();
+        scores.putAll(TrackerMeterScorer.computeScores(namespace, entityTotals, auditMetrics, latestEntityTable,
+                                                       System.currentTimeMillis() / 1000));
+      }
+    });
+    if (!committed || !stale[0]) {
+      return;
+    }
+    final boolean[] replaced = new boolean[1];
+    while (running && !replaced[0]) {
+      committed = execute("write the tracker meter scores", new TxRunnable() {
+        @Override
+        public void run(DatasetContext context) throws Exception {
+          TrackerScoreTable trackerScores = context.getDataset(TrackerApp.TRACKER_SCORES_DATASET_NAME);
+          replaced[0] = trackerScores.replace(namespace, version[0], scores, SCORE_BATCH_SIZE);
+        }
+      });
+      if (!committed) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Runs a task in its own transaction. A task that fails is logged, and runs again in the next round.
+   *
+   * @return whether the transaction committed
+   */
+  private boolean execute(String task, TxRunnable runnable) {
+    try {
+      getContext().execute(runnable);
+      return true;
+    } catch (Exception e) {
+      LOG.warn("Failed to {}, retrying in {} seconds", task, ROUND_INTERVAL_SECONDS, e);
+      return false;
+    }
+  }
+}
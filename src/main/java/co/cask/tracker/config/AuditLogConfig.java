@@ -31,27 +31,34 @@ public class AuditLogConfig {
   public static final String DEFAULT_TOPIC = "audit";
   private static final String DEFAULT_NAMESPACE = "system";
   private static final int DEFAULT_LIMIT = 120;
+  private static final int DEFAULT_PUBLISHER_INSTANCES = 1;
+  private static final int DEFAULT_CONSUMER_INSTANCES = 1;
 
   private final String zookeeperString;
   private final String namespace;
   private final String topic;
   private final String offsetDataset;
   private final Integer limit;
+  private final Integer publisherInstances;
+  private final Integer consumerInstances;
 
   public AuditLogConfig() {
-    this.zookeeperString = null;
-    this.namespace = null;
-    this.topic = null;
-    this.offsetDataset = null;
-    this.limit = null;
+    this(null, null, null, null, null);
   }
 
   public AuditLogConfig(String zookeeperString, String namespace, String topic, String offsetDataset, Integer limit) {
+    this(zookeeperString, namespace, topic, offsetDataset, limit, null, null);
+  }
+
+  public AuditLogConfig(String zookeeperString, String namespace, String topic, String offsetDataset, Integer limit,
+                        Integer publisherInstances, Integer consumerInstances) {
     this.zookeeperString = zookeeperString;
     this.namespace = namespace;
     this.topic = topic;
     this.offsetDataset = offsetDataset;
     this.limit = limit;
+    this.publisherInstances = publisherInstances;
+    this.consumerInstances = consumerInstances;
   }
 
   @Nullable
@@ -75,6 +82,20 @@ public class AuditLogConfig {
     return limit == null ? DEFAULT_LIMIT : limit;
   }
 
+  /**
+   * @return the number of instances of the flowlet that writes audit messages to the Tracker datasets
+   */
+  public int getPublisherInstances() {
+    return (publisherInstances == null || publisherInstances < 1) ? DEFAULT_PUBLISHER_INSTANCES : publisherInstances;
+  }
+
+  /**
+   * @return the number of instances of the flowlet that subscribes to the audit topic
+   */
+  public int getConsumerInstances() {
+    return (consumerInstances == null || consumerInstances < 1) ? DEFAULT_CONSUMER_INSTANCES : consumerInstances;
+  }
+
   @Override
   public String toString() {
     return Objects.toStringHelper(this)
@@ -83,6 +104,8 @@ public class AuditLogConfig {
       .add("topic", getTopic())
       .add("offsetDataset", getOffsetDataset())
       .add("limit", getLimit())
+      .add("publisherInstances", getPublisherInstances())
+      .add("consumerInstances", getConsumerInstances())
       .toString();
   }
 }
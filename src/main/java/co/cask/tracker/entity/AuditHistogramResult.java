@@ -20,6 +20,7 @@ import co.cask.cdap.api.dataset.lib.cube.TimeValue;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import javax.annotation.Nullable;
 
 /**
  * A POJO to hold the results for the TopN query.
@@ -27,6 +28,9 @@ import java.util.Collection;
 public class AuditHistogramResult {
   private final Collection<TimeValue> results;
   private final String bucketInterval;
+  // Set when the time range of the query was aligned to the bucket interval
+  private Long alignedStartTime;
+  private Long alignedEndTime;
 
   public AuditHistogramResult(String bucketInterval, Collection<TimeValue> results) {
     this.bucketInterval = bucketInterval;
@@ -45,4 +49,19 @@ public class AuditHistogramResult {
   public String getBucketInterval() {
     return bucketInterval;
   }
+
+  @Nullable
+  public Long getAlignedStartTime() {
+    return alignedStartTime;
+  }
+
+  @Nullable
+  public Long getAlignedEndTime() {
+    return alignedEndTime;
+  }
+
+  public void setAlignment(long alignedStartTime, long alignedEndTime) {
+    this.alignedStartTime = alignedStartTime;
+    this.alignedEndTime = alignedEndTime;
+  }
 }
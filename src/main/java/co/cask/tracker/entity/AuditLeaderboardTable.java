@@ -0,0 +1,485 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.lib.AbstractDataset;
+import co.cask.cdap.api.dataset.lib.cube.AggregationFunction;
+import co.cask.cdap.api.dataset.lib.cube.CubeFact;
+import co.cask.cdap.api.dataset.lib.cube.CubeQuery;
+import co.cask.cdap.api.dataset.lib.cube.Measurement;
+import co.cask.cdap.api.dataset.lib.cube.TimeSeries;
+import co.cask.cdap.api.dataset.lib.cube.TimeValue;
+import co.cask.cdap.api.dataset.module.EmbeddedDataset;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scan;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.cdap.proto.element.EntityType;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leaderboards of the most accessed datasets, programs and applications of each namespace, kept up to date as audit
+ * messages are ingested.
+ * <p>
+ * Each row holds the access counts of one board in one hour or day bucket, as written by one publisher instance:
+ * <pre>
+ *   board \1 namespace \1 resolution \1 bucket start \1 shard
+ * </pre>
+ * Columns are the members of the board and hold counters. Reading a board over a time range merges the day
+ * buckets inside the range with the hour buckets at its edges. Buckets use the ingest time of the messages, like
+ * the {@link AuditMetricsCube}.
+ * <p>
+ * The history of the cube before the live time of a namespace is seeded by {@link #seed}, as described in
+ * {@link LiveTimeSeeding}.
+ */
+public class AuditLeaderboardTable extends AbstractDataset {
+  private static final byte[] KEY_DELIMITER = Bytes.toBytes("\1");
+  private static final String MEMBER_DELIMITER = "\1";
+  // Seeding reads this much of the history of the cube per transaction, in whole days
+  private static final long SEED_CHUNK_SECONDS = TimeUnit.DAYS.toSeconds(7L);
+  private static final Set<String> ACCESS_MEASURES = ImmutableSet.of(AccessType.READ.name().toLowerCase(),
+                                                                     AccessType.WRITE.name().toLowerCase(),
+                                                                     AccessType.UNKNOWN.name().toLowerCase());
+
+  private enum Board {
+    DATASETS,
+    PROGRAMS,
+    APPLICATIONS
+  }
+
+  private enum Resolution {
+    HOUR(TimeUnit.HOURS),
+    DAY(TimeUnit.DAYS);
+
+    private final long seconds;
+
+    Resolution(TimeUnit timeUnit) {
+      this.seconds = timeUnit.toSeconds(1L);
+    }
+
+    long getBucket(long time) {
+      return time - (time % seconds);
+    }
+  }
+
+  private final Table leaderboards;
+  private final LiveTimeSeeding seeding;
+
+  public AuditLeaderboardTable(DatasetSpecification spec,
+                               @EmbeddedDataset("leaderboards") Table leaderboards) {
+    super(spec.getName(), leaderboards);
+    this.leaderboards = leaderboards;
+    this.seeding = new LiveTimeSeeding(leaderboards);
+  }
+
+  /**
+   * Counts a batch of audit messages in the leaderboards. Messages ingested before the live time of their namespace
+   * are not counted, as they are seeded from the audit metrics cube.
+   *
+   * @param auditMessages the messages to count
+   * @param shard the instance id of the writer, so that concurrent writers do not update the same rows
+   * @throws IOException if for some reason, it cannot find the name of an entity
+   */
+  public void write(Collection<AuditMessage> auditMessages, int shard) throws IOException {
+    Map<List<Object>, Map<String, Long>> counts = new HashMap<>();
+    // Live times set in this transaction, only cached once the transaction is known to have committed
+    Map<String, Long> liveTimesNow = new HashMap<>();
+    for (AuditMessage auditMessage : auditMessages) {
+      CubeFact fact = AuditMetricsCube.createFact(auditMessage);
+      if (fact == null) {
+        continue;
+      }
+      Map<String, String> dimensions = fact.getDimensionValues();
+      String namespace = dimensions.get("namespace");
+      if (fact.getTimestamp() < seeding.getLiveTime(namespace, liveTimesNow)) {
+        continue;
+      }
+
+      long accesses = 0;
+      String entityType = dimensions.get("entity_type");
+      for (Measurement measurement : fact.getMeasurements()) {
+        if (!ACCESS_MEASURES.contains(measurement.getName())) {
+          continue;
+        }
+        accesses += measurement.getValue();
+        if (isDatasetType(entityType) && !measurement.getName().equals(AccessType.UNKNOWN.name().toLowerCase())) {
+          add(counts, Board.DATASETS, namespace, fact.getTimestamp(),
+              getMember(entityType, dimensions.get("entity_name"), measurement.getName()), measurement.getValue());
+        }
+      }
+      if (accesses == 0) {
+        continue;
+      }
+      String appName = dimensions.get("app_name");
+      String programName = dimensions.get("program_name");
+      String programType = dimensions.get("program_type");
+      if (!Strings.isNullOrEmpty(appName) && !Strings.isNullOrEmpty(programName)
+        && !Strings.isNullOrEmpty(programType)) {
+        add(counts, Board.PROGRAMS, namespace, fact.getTimestamp(),
+            getMember(appName, programType, programName), accesses);
+      }
+      if (!Strings.isNullOrEmpty(appName)) {
+        add(counts, Board.APPLICATIONS, namespace, fact.getTimestamp(), appName, accesses);
+      }
+    }
+    increment(counts, shard);
+  }
+
+  /**
+   * @return whether the history of the audit metrics cube was seeded into the leaderboards of a namespace
+   */
+  public boolean isSeeded(String namespace) {
+    return seeding.isSeeded(namespace);
+  }
+
+  /**
+   * Seeds the leaderboards of a namespace with the next chunk of the history of the audit metrics cube, from the
+   * first hour it has data for up to the live time of the namespace. Seeding only starts a while after the live
+   * time, once the cube holds all the messages ingested before it.
+   *
+   * @param namespace the namespace to seed
+   * @param auditMetrics the cube to seed the leaderboards from
+   * @return whether seeding is complete
+   */
+  public boolean seed(final String namespace, final AuditMetricsCube auditMetrics) {
+    return seeding.seed(namespace, new LiveTimeSeeding.Seeder() {
+      @Override
+      public long getStartTime(long liveTime) {
+        return getFirstDay(namespace, liveTime, auditMetrics);
+      }
+
+      @Override
+      public long seed(long startTime, long liveTime) {
+        long endTime = Math.min(liveTime, startTime + SEED_CHUNK_SECONDS);
+        AuditLeaderboardTable.this.seed(
+          namespace, auditMetrics.query(getDatasetsSeedQuery(namespace, startTime, endTime)),
+          auditMetrics.query(getProgramsSeedQuery(namespace, startTime, endTime)),
+          auditMetrics.query(getApplicationsSeedQuery(namespace, startTime, endTime)));
+        return endTime;
+      }
+    });
+  }
+
+  /**
+   * Returns the top N datasets and streams with the most accesses.
+   *
+   * @return A list of entities and their stats sorted in DESC order by count
+   */
+  public List<TopDatasetsResult> getTopNDatasets(int topN, long startTime, long endTime, String namespace) {
+    Map<String, TopDatasetsResult> results = new HashMap<>();
+    for (Map.Entry<String, Long> entry : read(Board.DATASETS, namespace, startTime, endTime).entrySet()) {
+      Iterator<String> parts = Splitter.on(MEMBER_DELIMITER).split(entry.getKey()).iterator();
+      String entityType = parts.next();
+      String entityName = parts.next();
+      String measure = parts.next();
+      String key = getMember(entityType, entityName);
+      TopDatasetsResult result = results.get(key);
+      if (result == null) {
+        result = new TopDatasetsResult(entityName, entityType);
+        results.put(key, result);
+      }
+      if (measure.equals(AccessType.READ.name().toLowerCase())) {
+        result.setRead(entry.getValue());
+      } else {
+        result.setWrite(entry.getValue());
+      }
+    }
+    return AuditMetricsCube.selectTopN(results.values(), topN);
+  }
+
+  /**
+   * Returns the top N programs with the most accesses.
+   *
+   * @return A list of programs and their access counts sorted in DESC order by count
+   */
+  public List<TopProgramsResult> getTopNPrograms(int topN, long startTime, long endTime, String namespace) {
+    Map<String, TopProgramsResult> results = new HashMap<>();
+    for (Map.Entry<String, Long> entry : read(Board.PROGRAMS, namespace, startTime, endTime).entrySet()) {
+      Iterator<String> parts = Splitter.on(MEMBER_DELIMITER).split(entry.getKey()).iterator();
+      String appName = parts.next();
+      String programType = parts.next();
+      String programName = parts.next();
+      // Like the cube query, the accessor namespace is not part of the ranking
+      results.put(entry.getKey(), new TopProgramsResult(null, programName, appName, programType, entry.getValue()));
+    }
+    return AuditMetricsCube.selectTopN(results.values(), topN);
+  }
+
+  /**
+   * Returns the top N applications with the most accesses.
+   *
+   * @return A list of applications and their access counts sorted in DESC order by count
+   */
+  public List<TopApplicationsResult> getTopNApplications(int topN, long startTime, long endTime, String namespace) {
+    Map<String, TopApplicationsResult> results = new HashMap<>();
+    for (Map.Entry<String, Long> entry : read(Board.APPLICATIONS, namespace, startTime, endTime).entrySet()) {
+      results.put(entry.getKey(), new TopApplicationsResult(entry.getKey(), entry.getValue()));
+    }
+    return AuditMetricsCube.selectTopN(results.values(), topN);
+  }
+
+  /**
+   * Sums the counts of a board between a start and end time in seconds, both inclusive at the hour granularity.
+   */
+  private Map<String, Long> read(Board board, String namespace, long startTime, long endTime) {
+    Map<String, Long> counts = new HashMap<>();
+    long firstDay = Resolution.DAY.getBucket(startTime + Resolution.DAY.seconds - 1);
+    long lastDay = Resolution.DAY.getBucket(endTime);
+    if (firstDay < lastDay) {
+      scan(counts, board, namespace, Resolution.DAY, firstDay, lastDay);
+      scan(counts, board, namespace, Resolution.HOUR, Resolution.HOUR.getBucket(startTime), firstDay);
+      scan(counts, board, namespace, Resolution.HOUR, lastDay, endTime + 1);
+    } else {
+      scan(counts, board, namespace, Resolution.HOUR, Resolution.HOUR.getBucket(startTime), endTime + 1);
+    }
+    return counts;
+  }
+
+  /**
+   * Adds the counts of the buckets that start in [startBucket, stopBucket) to the given counts.
+   */
+  private void scan(Map<String, Long> counts, Board board, String namespace, Resolution resolution,
+                    long startBucket, long stopBucket) {
+    if (startBucket >= stopBucket) {
+      return;
+    }
+    byte[] prefix = getRowPrefix(board, namespace, resolution);
+    Scanner scanner = leaderboards.scan(new Scan(Bytes.add(prefix, Bytes.toBytes(startBucket)),
+                                                 Bytes.add(prefix, Bytes.toBytes(stopBucket))));
+    try {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        for (Map.Entry<byte[], byte[]> column : row.getColumns().entrySet()) {
+          addCount(counts, Bytes.toString(column.getKey()), Bytes.toLong(column.getValue()));
+        }
+      }
+    } finally {
+      scanner.close();
+    }
+  }
+
+  @VisibleForTesting
+  void setLiveTime(String namespace, long liveTime) {
+    seeding.setLiveTime(namespace, liveTime);
+  }
+
+  /**
+   * @return the start of the first day the cube has data for in a namespace before the given time, or that time if
+   * it has none
+   */
+  private long getFirstDay(String namespace, long endTime, AuditMetricsCube auditMetrics) {
+    CubeQuery query = CubeQuery.builder()
+      .select()
+      .measurement("count", AggregationFunction.SUM)
+      .from()
+      .resolution(TimeUnit.DAYS.toSeconds(365L), TimeUnit.SECONDS)
+      .where()
+      .dimension("namespace", namespace)
+      .timeRange(0L, endTime - 1)
+      .limit(1)
+      .build();
+    long firstDay = endTime;
+    for (TimeSeries t : auditMetrics.query(query)) {
+      for (TimeValue timeValue : t.getTimeValues()) {
+        firstDay = Math.min(firstDay, Resolution.DAY.getBucket(timeValue.getTimestamp()));
+      }
+    }
+    return firstDay;
+  }
+
+  /**
+   * Adds the hourly counts of the cube to both the hour and the day buckets of the leaderboards.
+   */
+  @VisibleForTesting
+  void seed(String namespace, Collection<TimeSeries> datasets, Collection<TimeSeries> programs,
+            Collection<TimeSeries> applications) {
+    Map<List<Object>, Map<String, Long>> counts = new HashMap<>();
+    for (TimeSeries t : datasets) {
+      String entityType = t.getDimensionValues().get("entity_type");
+      if (!isDatasetType(entityType)) {
+        continue;
+      }
+      String member = getMember(entityType, t.getDimensionValues().get("entity_name"), t.getMeasureName());
+      for (TimeValue timeValue : t.getTimeValues()) {
+        add(counts, Board.DATASETS, namespace, timeValue.getTimestamp(), member, timeValue.getValue());
+      }
+    }
+    for (TimeSeries t : programs) {
+      String appName = t.getDimensionValues().get("app_name");
+      String programType = t.getDimensionValues().get("program_type");
+      String programName = t.getDimensionValues().get("program_name");
+      if (Strings.isNullOrEmpty(appName) || Strings.isNullOrEmpty(programType)
+        || Strings.isNullOrEmpty(programName)) {
+        continue;
+      }
+      String member = getMember(appName, programType, programName);
+      for (TimeValue timeValue : t.getTimeValues()) {
+        add(counts, Board.PROGRAMS, namespace, timeValue.getTimestamp(), member, timeValue.getValue());
+      }
+    }
+    for (TimeSeries t : applications) {
+      String appName = t.getDimensionValues().get("app_name");
+      if (Strings.isNullOrEmpty(appName)) {
+        continue;
+      }
+      for (TimeValue timeValue : t.getTimeValues()) {
+        add(counts, Board.APPLICATIONS, namespace, timeValue.getTimestamp(), appName, timeValue.getValue());
+      }
+    }
+    increment(counts, LiveTimeSeeding.SEED_SHARD);
+  }
+
+  private CubeQuery getDatasetsSeedQuery(String namespace, long startTime, long endTime) {
+    return CubeQuery.builder()
+      .select()
+      .measurement(AccessType.READ.name().toLowerCase(), AggregationFunction.SUM)
+      .measurement(AccessType.WRITE.name().toLowerCase(), AggregationFunction.SUM)
+      .from()
+      .resolution(Resolution.HOUR.seconds, TimeUnit.SECONDS)
+      .where()
+      .dimension("namespace", namespace)
+      .dimension("audit_type", AuditType.ACCESS.name().toLowerCase())
+      .timeRange(startTime, endTime - 1)
+      .groupBy()
+      .dimension("entity_type")
+      .dimension("entity_name")
+      .limit(Integer.MAX_VALUE)
+      .build();
+  }
+
+  private CubeQuery getProgramsSeedQuery(String namespace, long startTime, long endTime) {
+    return CubeQuery.builder()
+      .select()
+      .measurement(AccessType.READ.name().toLowerCase(), AggregationFunction.SUM)
+      .measurement(AccessType.WRITE.name().toLowerCase(), AggregationFunction.SUM)
+      .measurement(AccessType.UNKNOWN.name().toLowerCase(), AggregationFunction.SUM)
+      .from()
+      .resolution(Resolution.HOUR.seconds, TimeUnit.SECONDS)
+      .where()
+      .dimension("namespace", namespace)
+      .dimension("audit_type", AuditType.ACCESS.name().toLowerCase())
+      .timeRange(startTime, endTime - 1)
+      .groupBy()
+      .dimension("program_name")
+      .dimension("app_name")
+      .dimension("program_type")
+      .limit(Integer.MAX_VALUE)
+      .build();
+  }
+
+  private CubeQuery getApplicationsSeedQuery(String namespace, long startTime, long endTime) {
+    return CubeQuery.builder()
+      .select()
+      .measurement(AccessType.READ.name().toLowerCase(), AggregationFunction.SUM)
+      .measurement(AccessType.WRITE.name().toLowerCase(), AggregationFunction.SUM)
+      .measurement(AccessType.UNKNOWN.name().toLowerCase(), AggregationFunction.SUM)
+      .from()
+      .resolution(Resolution.HOUR.seconds, TimeUnit.SECONDS)
+      .where()
+      .dimension("namespace", namespace)
+      .dimension("audit_type", AuditType.ACCESS.name().toLowerCase())
+      .timeRange(startTime, endTime - 1)
+      .groupBy()
+      .dimension("app_name")
+      .limit(Integer.MAX_VALUE)
+      .build();
+  }
+
+  /**
+   * Adds a count to both the hour and the day bucket of the given time.
+   */
+  private void add(Map<List<Object>, Map<String, Long>> counts, Board board, String namespace, long time,
+                   String member, long count) {
+    for (Resolution resolution : Resolution.values()) {
+      add(counts, board, resolution, namespace, resolution.getBucket(time), member, count);
+    }
+  }
+
+  private void add(Map<List<Object>, Map<String, Long>> counts, Board board, Resolution resolution,
+                   String namespace, long bucket, String member, long count) {
+    List<Object> row = Arrays.<Object>asList(board, resolution, namespace, bucket);
+    Map<String, Long> members = counts.get(row);
+    if (members == null) {
+      members = new HashMap<>();
+      counts.put(row, members);
+    }
+    addCount(members, member, count);
+  }
+
+  private void increment(Map<List<Object>, Map<String, Long>> counts, int shard) {
+    for (Map.Entry<List<Object>, Map<String, Long>> entry : counts.entrySet()) {
+      List<Object> row = entry.getKey();
+      byte[] rowKey = Bytes.add(getRowPrefix((Board) row.get(0), (String) row.get(2), (Resolution) row.get(1)),
+                                ByteBuffer.allocate(Bytes.SIZEOF_LONG + KEY_DELIMITER.length + Bytes.SIZEOF_INT)
+                                  .putLong((Long) row.get(3))
+                                  .put(KEY_DELIMITER)
+                                  .putInt(shard)
+                                  .array());
+      seeding.increment(rowKey, entry.getValue());
+    }
+  }
+
+  private static void addCount(Map<String, Long> counts, String member, long count) {
+    Long current = counts.get(member);
+    counts.put(member, current == null ? count : current + count);
+  }
+
+  private static boolean isDatasetType(String entityType) {
+    return EntityType.DATASET.name().equalsIgnoreCase(entityType)
+      || EntityType.STREAM.name().equalsIgnoreCase(entityType);
+  }
+
+  private static String getMember(String... parts) {
+    StringBuilder member = new StringBuilder(parts[0]);
+    for (int i = 1; i < parts.length; i++) {
+      member.append(MEMBER_DELIMITER).append(parts[i]);
+    }
+    return member.toString();
+  }
+
+  private static byte[] getRowPrefix(Board board, String namespace, Resolution resolution) {
+    byte[] boardBytes = Bytes.toBytes(board.name().toLowerCase());
+    byte[] namespaceBytes = Bytes.toBytes(namespace);
+    return ByteBuffer.allocate(boardBytes.length + namespaceBytes.length + 1 + (3 * KEY_DELIMITER.length))
+      .put(boardBytes)
+      .put(KEY_DELIMITER)
+      .put(namespaceBytes)
+      .put(KEY_DELIMITER)
+      .put((byte) resolution.name().charAt(0))
+      .put(KEY_DELIMITER)
+      .array();
+  }
+}
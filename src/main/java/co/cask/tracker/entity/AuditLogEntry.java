@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditPayload;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessPayload;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+
+import javax.annotation.Nullable;
+
+/**
+ * A row of the AuditLog table that only decodes the fields that are asked for. The timestamp, user and type
+ * can be read without decoding the entity and the payload of the audit message.
+ */
+public final class AuditLogEntry {
+  private final Row row;
+  // Null for rows written before the binary encoding
+  private final byte[] value;
+  private AuditMessage message;
+
+  AuditLogEntry(Row row) {
+    this.row = row;
+    this.value = row.get(AuditLogRowCodec.VALUE_COLUMN);
+  }
+
+  public byte[] getRowKey() {
+    return row.getRow();
+  }
+
+  public long getTime() {
+    if (message != null) {
+      return message.getTime();
+    }
+    return value == null ? row.getLong("timestamp") : AuditLogRowCodec.decodeTime(value);
+  }
+
+  public String getUser() {
+    if (message != null) {
+      return message.getUser();
+    }
+    return value == null ? row.getString("user") : AuditLogRowCodec.decodeUser(value);
+  }
+
+  public AuditType getType() {
+    if (message != null) {
+      return message.getType();
+    }
+    return value == null ? AuditType.valueOf(row.getString("actionType")) : AuditLogRowCodec.decodeType(value);
+  }
+
+  /**
+   * @return the access type of an access message, null for other messages
+   */
+  @Nullable
+  public AccessType getAccessType() {
+    if (message == null && value != null) {
+      return AuditLogRowCodec.decodeAccessType(value);
+    }
+    AuditPayload payload = getMessage().getPayload();
+    return payload instanceof AccessPayload ? ((AccessPayload) payload).getAccessType() : null;
+  }
+
+  /**
+   * @return the full audit message of this row, decoded on the first call
+   */
+  public AuditMessage getMessage() {
+    if (message == null) {
+      message = AuditLogTable.createAuditMessage(row);
+    }
+    return message;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import com.google.common.base.Predicate;
+
+import javax.annotation.Nullable;
+
+/**
+ * Selects the rows of an AuditLog table scan by user, audit type and access type. Each condition is only
+ * checked if it is set, and all of them are checked against the row header without decoding the full message.
+ */
+public final class AuditLogFilter implements Predicate<AuditLogEntry> {
+  public static final AuditLogFilter ALL = new AuditLogFilter(null, null, null);
+
+  private final String user;
+  private final AuditType auditType;
+  private final AccessType accessType;
+
+  public AuditLogFilter(@Nullable String user, @Nullable AuditType auditType, @Nullable AccessType accessType) {
+    this.user = user;
+    this.auditType = auditType;
+    this.accessType = accessType;
+  }
+
+  @Override
+  public boolean apply(AuditLogEntry entry) {
+    // Cheapest checks first, the access type needs to skip over the user
+    if (auditType != null && auditType != entry.getType()) {
+      return false;
+    }
+    if (user != null && !user.equals(entry.getUser())) {
+      return false;
+    }
+    return accessType == null || accessType == entry.getAccessType();
+  }
+}
@@ -19,6 +19,7 @@ package co.cask.tracker.entity;
 import co.cask.cdap.proto.audit.AuditMessage;
 
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * A class to represent the JSON response of the AuditLog API response.
@@ -27,11 +28,21 @@ public class AuditLogResponse {
   private final int totalResults;
   private final List<AuditMessage> results;
   private final int offset;
+  // Cursor to read the page following this one, null if this is the last page or the page was read by offset
+  private final String nextCursor;
 
   public AuditLogResponse(int numberOfResults, List<AuditMessage> results, int offset) {
     this.totalResults = numberOfResults;
     this.results = results;
     this.offset = offset;
+    this.nextCursor = null;
+  }
+
+  public AuditLogResponse(List<AuditMessage> results, @Nullable String nextCursor) {
+    this.totalResults = results.size();
+    this.results = results;
+    this.offset = 0;
+    this.nextCursor = nextCursor;
   }
 
   public int getTotalResults() {
@@ -45,4 +56,9 @@ public class AuditLogResponse {
   public int getOffset() {
     return offset;
   }
+
+  @Nullable
+  public String getNextCursor() {
+    return nextCursor;
+  }
 }
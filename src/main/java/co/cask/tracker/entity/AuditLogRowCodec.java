@@ -0,0 +1,303 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.metadata.MetadataEntity;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditPayload;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessPayload;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.cdap.proto.audit.payload.metadata.MetadataPayload;
+import co.cask.cdap.proto.codec.EntityIdTypeAdapter;
+import co.cask.cdap.proto.id.EntityId;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Encodes an audit message into the single value column of an {@link AuditLogTable} row, and decodes it back.
+ * <p>
+ * The value starts with a format version byte. Version 1 is laid out as:
+ * <pre>
+ *   timestamp (8 bytes) | audit type | user | payload kind | payload | entity
+ * </pre>
+ * Strings are written as a varint length followed by their UTF-8 bytes. Audit types, access types and entity keys
+ * are dictionary coded in a single byte. The namespace and the entity name are already part of the row key, so they
+ * are not repeated in the value.
+ */
+final class AuditLogRowCodec {
+  static final byte[] VALUE_COLUMN = Bytes.toBytes("v");
+
+  private static final byte VERSION_1 = 1;
+  private static final int TIME_OFFSET = 1;
+  private static final int TYPE_OFFSET = TIME_OFFSET + Bytes.SIZEOF_LONG;
+
+  private static final byte PAYLOAD_NONE = 0;
+  private static final byte PAYLOAD_ACCESS = 1;
+  private static final byte PAYLOAD_METADATA = 2;
+
+  private static final byte VALUE_INLINE = 0;
+  private static final byte VALUE_ROW_KEY_NAMESPACE = 1;
+  private static final byte VALUE_ROW_KEY_NAME = 2;
+
+  // Escape code for a value that is not in the dictionary, it is then written as a string
+  private static final byte NOT_IN_DICTIONARY = -1;
+
+  // Dictionaries code values by their index, so new values can only be appended to them
+  private static final List<String> AUDIT_TYPES = ImmutableList.of(
+    "CREATE", "UPDATE", "TRUNCATE", "DELETE", "ACCESS", "METADATA_CHANGE");
+  private static final List<String> ACCESS_TYPES = ImmutableList.of(
+    "READ", "WRITE", "READ_WRITE", "UNKNOWN");
+  private static final List<String> ENTITY_KEYS = ImmutableList.of(
+    "namespace", "application", "version", "artifact", "dataset", "stream", "view", "program", "type", "flow",
+    "flowlet", "schedule");
+
+  private static final Gson GSON = new GsonBuilder()
+    .registerTypeAdapter(EntityId.class, new EntityIdTypeAdapter())
+    .create();
+
+  private AuditLogRowCodec() {
+  }
+
+  /**
+   * Encodes an audit message.
+   *
+   * @param auditMessage the message to encode
+   * @param user the user of the message, defaulted if the message has none
+   * @param namespace the namespace of the entity, as stored in the row key
+   * @param entityName the name of the entity, as stored in the row key
+   * @return the value to store in the {@link #VALUE_COLUMN}
+   */
+  static byte[] encode(AuditMessage auditMessage, String user, String namespace, String entityName) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+    out.write(VERSION_1);
+    writeBytes(out, Bytes.toBytes(auditMessage.getTime()));
+    writeDictionaryValue(out, AUDIT_TYPES, auditMessage.getType().name());
+    writeString(out, user);
+
+    AuditPayload payload = auditMessage.getPayload();
+    if (payload instanceof AccessPayload) {
+      AccessPayload accessPayload = (AccessPayload) payload;
+      out.write(PAYLOAD_ACCESS);
+      writeDictionaryValue(out, ACCESS_TYPES, accessPayload.getAccessType().name());
+      writeString(out, accessPayload.getAccessor().toString());
+    } else if (payload instanceof MetadataPayload) {
+      out.write(PAYLOAD_METADATA);
+      writeString(out, GSON.toJson(payload));
+    } else {
+      out.write(PAYLOAD_NONE);
+    }
+
+    MetadataEntity entity = auditMessage.getEntity();
+    List<MetadataEntity.KeyValue> parts = new ArrayList<>();
+    for (MetadataEntity.KeyValue keyValue : entity) {
+      parts.add(keyValue);
+    }
+    writeVarInt(out, parts.size());
+    int typeIndex = -1;
+    for (int i = 0; i < parts.size(); i++) {
+      String key = parts.get(i).getKey();
+      String value = parts.get(i).getValue();
+      if (key.equals(entity.getType())) {
+        typeIndex = i;
+      }
+      writeDictionaryValue(out, ENTITY_KEYS, key);
+      if (key.equals(MetadataEntity.NAMESPACE) && value.equals(namespace)) {
+        out.write(VALUE_ROW_KEY_NAMESPACE);
+      } else if (key.equals(entity.getType()) && value.equals(entityName)) {
+        out.write(VALUE_ROW_KEY_NAME);
+      } else {
+        out.write(VALUE_INLINE);
+        writeString(out, value);
+      }
+    }
+    writeVarInt(out, typeIndex + 1);
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes an audit message.
+   *
+   * @param namespace the namespace of the entity, as stored in the row key
+   * @param entityName the name of the entity, as stored in the row key
+   * @param value the value of the {@link #VALUE_COLUMN}
+   * @return the decoded message
+   */
+  static AuditMessage decode(String namespace, String entityName, byte[] value) {
+    ByteBuffer buffer = ByteBuffer.wrap(value);
+    checkVersion(buffer.get());
+    long time = buffer.getLong();
+    AuditType auditType = AuditType.valueOf(readDictionaryValue(buffer, AUDIT_TYPES));
+    String user = readString(buffer);
+
+    AuditPayload payload;
+    byte payloadKind = buffer.get();
+    switch (payloadKind) {
+      case PAYLOAD_ACCESS:
+        AccessType accessType = AccessType.valueOf(readDictionaryValue(buffer, ACCESS_TYPES));
+        EntityId accessor = EntityId.fromString(readString(buffer));
+        payload = new AccessPayload(accessType, accessor);
+        break;
+      case PAYLOAD_METADATA:
+        payload = GSON.fromJson(readString(buffer), MetadataPayload.class);
+        break;
+      default:
+        payload = AuditPayload.EMPTY_PAYLOAD;
+    }
+
+    int size = readVarInt(buffer);
+    List<String> keys = new ArrayList<>(size);
+    List<String> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      keys.add(readDictionaryValue(buffer, ENTITY_KEYS));
+      byte valueSource = buffer.get();
+      switch (valueSource) {
+        case VALUE_ROW_KEY_NAMESPACE:
+          values.add(namespace);
+          break;
+        case VALUE_ROW_KEY_NAME:
+          values.add(entityName);
+          break;
+        default:
+          values.add(readString(buffer));
+      }
+    }
+    int typeIndex = readVarInt(buffer) - 1;
+    MetadataEntity.Builder builder = MetadataEntity.builder();
+    for (int i = 0; i < size; i++) {
+      if (i == typeIndex) {
+        builder.appendAsType(keys.get(i), values.get(i));
+      } else {
+        builder.append(keys.get(i), values.get(i));
+      }
+    }
+    return new AuditMessage(time, builder.build(), user, auditType, payload);
+  }
+
+  /**
+   * Decodes only the timestamp of an audit message.
+   */
+  static long decodeTime(byte[] value) {
+    checkVersion(value[0]);
+    return Bytes.toLong(value, TIME_OFFSET);
+  }
+
+  /**
+   * Decodes only the type of an audit message.
+   */
+  static AuditType decodeType(byte[] value) {
+    checkVersion(value[0]);
+    ByteBuffer buffer = ByteBuffer.wrap(value);
+    buffer.position(TYPE_OFFSET);
+    return AuditType.valueOf(readDictionaryValue(buffer, AUDIT_TYPES));
+  }
+
+  /**
+   * Decodes only the user of an audit message.
+   */
+  static String decodeUser(byte[] value) {
+    checkVersion(value[0]);
+    ByteBuffer buffer = ByteBuffer.wrap(value);
+    buffer.position(TYPE_OFFSET);
+    readDictionaryValue(buffer, AUDIT_TYPES);
+    return readString(buffer);
+  }
+
+  /**
+   * Decodes only the access type of an audit message.
+   *
+   * @return the access type, or null if the message does not have an access payload
+   */
+  @Nullable
+  static AccessType decodeAccessType(byte[] value) {
+    checkVersion(value[0]);
+    ByteBuffer buffer = ByteBuffer.wrap(value);
+    buffer.position(TYPE_OFFSET);
+    readDictionaryValue(buffer, AUDIT_TYPES);
+    readString(buffer);
+    if (buffer.get() != PAYLOAD_ACCESS) {
+      return null;
+    }
+    return AccessType.valueOf(readDictionaryValue(buffer, ACCESS_TYPES));
+  }
+
+  private static void checkVersion(byte version) {
+    if (version != VERSION_1) {
+      throw new IllegalStateException(String.format("Unsupported audit log row format version %d", version));
+    }
+  }
+
+  private static void writeDictionaryValue(ByteArrayOutputStream out, List<String> dictionary, String value) {
+    int code = dictionary.indexOf(value);
+    if (code < 0) {
+      out.write(NOT_IN_DICTIONARY);
+      writeString(out, value);
+    } else {
+      out.write(code);
+    }
+  }
+
+  private static String readDictionaryValue(ByteBuffer buffer, List<String> dictionary) {
+    byte code = buffer.get();
+    return code == NOT_IN_DICTIONARY ? readString(buffer) : dictionary.get(code);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = Bytes.toBytes(value);
+    writeVarInt(out, bytes.length);
+    writeBytes(out, bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = readVarInt(buffer);
+    String value = Bytes.toString(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarInt(ByteBuffer buffer) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+}
@@ -22,6 +22,7 @@ import co.cask.cdap.api.dataset.lib.AbstractCloseableIterator;
 import co.cask.cdap.api.dataset.lib.AbstractDataset;
 import co.cask.cdap.api.dataset.lib.CloseableIterator;
 import co.cask.cdap.api.dataset.module.EmbeddedDataset;
+import co.cask.cdap.api.dataset.table.Get;
 import co.cask.cdap.api.dataset.table.Put;
 import co.cask.cdap.api.dataset.table.Row;
 import co.cask.cdap.api.dataset.table.Scan;
@@ -36,6 +37,7 @@ import co.cask.cdap.proto.audit.payload.metadata.MetadataPayload;
 import co.cask.cdap.proto.codec.AuditMessageTypeAdapter;
 import co.cask.cdap.proto.codec.EntityIdTypeAdapter;
 import co.cask.cdap.proto.id.EntityId;
+import co.cask.cdap.proto.id.ProgramRunId;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.gson.Gson;
@@ -43,7 +45,14 @@ import com.google.gson.GsonBuilder;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.xml.bind.DatatypeConverter;
 
 /**
  * Creates the key and scan key for storing data in the AuditLog table.
@@ -52,16 +61,38 @@ public final class AuditLogTable extends AbstractDataset {
   // Using an unprintable character to delimit elements of key
   private static final byte[] KEY_DELIMITER = Bytes.toBytes("\1");
   private static final String DEFAULT_USER = "unknown";
+  // Index rows start with a byte that never starts a namespace, so entity scans never reach them
+  private static final byte INDEX_PREFIX = 0;
+  private static final byte[] INDEX_ROW_KEY_COLUMN = Bytes.toBytes("k");
+  private static final int SUFFIX_SIZE = 2 * Bytes.SIZEOF_INT + Bytes.SIZEOF_LONG;
+  // The number of low bits of a run id that are random, below the creation time in milliseconds
+  private static final int RUN_ID_RANDOM_BITS = 20;
+
+  /**
+   * Dataset property that enables the activity index, which is written along with each audit message.
+   */
+  public static final String ACTIVITY_INDEX_PROPERTY = "tracker.activity.index.enabled";
   private static final Gson GSON = new GsonBuilder()
     .registerTypeAdapter(AuditMessage.class, new AuditMessageTypeAdapter())
     .registerTypeAdapter(EntityId.class, new EntityIdTypeAdapter())
     .create();
 
   private final Table auditLog;
+  private final boolean activityIndexEnabled;
+  // Identifies the run of the writer, as the time in milliseconds this dataset instance was created and a random
+  // component, so that dataset instances created within the same millisecond still differ. Row keys end with the
+  // instance id of the writer, the run id and a sequence, which identify a row among rows of the same entity and
+  // timestamp.
+  private final long runId;
+  private final AtomicInteger sequence;
 
   public AuditLogTable(DatasetSpecification spec, @EmbeddedDataset("auditLog") Table auditLogDataset) {
     super(spec.getName(), auditLogDataset);
     this.auditLog = auditLogDataset;
+    this.activityIndexEnabled = Boolean.parseBoolean(spec.getProperty(ACTIVITY_INDEX_PROPERTY));
+    this.runId = (System.currentTimeMillis() << RUN_ID_RANDOM_BITS)
+      | ThreadLocalRandom.current().nextInt(1 << RUN_ID_RANDOM_BITS);
+    this.sequence = new AtomicInteger();
   }
 
   /**
@@ -76,18 +107,138 @@ public final class AuditLogTable extends AbstractDataset {
    */
   public CloseableIterator<AuditMessage> scan(String namespace, String entityType, String entityName,
                                               long startTime, long endTime) {
+    final CloseableIterator<AuditLogEntry> entries = scanEntries(namespace, entityType, entityName,
+                                                                 startTime, endTime);
+    return new AbstractCloseableIterator<AuditMessage>() {
+      @Override
+      protected AuditMessage computeNext() {
+        return entries.hasNext() ? entries.next().getMessage() : endOfData();
+      }
+
+      @Override
+      public void close() {
+        entries.close();
+      }
+    };
+  }
+
+  /**
+   * Scans the table for entities between a given start and end time, without decoding the audit messages.
+   * Callers that only count, skip or filter rows can read the fields they need from each entry.
+   *
+   * @param namespace  the namespace where the entity exists
+   * @param entityType the type of the entity
+   * @param entityName the name of the entity
+   * @param startTime  the starting time for the scan in seconds
+   * @param endTime    the ending time for the scan in seconds
+   * @return an iterator over the rows of the entity, newest first
+   */
+  public CloseableIterator<AuditLogEntry> scanEntries(String namespace, String entityType, String entityName,
+                                                      long startTime, long endTime) {
+    return scanEntries(namespace, entityType, entityName, startTime, endTime, AuditLogFilter.ALL);
+  }
+
+  /**
+   * Scans the table for entities between a given start and end time, only returning the rows selected by a filter.
+   * The filter is checked before the audit messages are decoded.
+   *
+   * @param namespace  the namespace where the entity exists
+   * @param entityType the type of the entity
+   * @param entityName the name of the entity
+   * @param startTime  the starting time for the scan in seconds
+   * @param endTime    the ending time for the scan in seconds
+   * @param filter     the filter that selects the rows to return
+   * @return an iterator over the selected rows of the entity, newest first
+   */
+  public CloseableIterator<AuditLogEntry> scanEntries(String namespace, String entityType, String entityName,
+                                                      long startTime, long endTime, AuditLogFilter filter) {
     // Data stored using inverted timestamp so start and end times are swapped
     Scanner scanner = auditLog.scan(new Scan(getScanKey(namespace, entityType, entityName, endTime),
                                              getScanKey(namespace, entityType, entityName, startTime)));
-    return new AuditMessageIterator(scanner);
+    return new AuditLogEntryIterator(scanner, filter);
   }
 
-  public void write(AuditMessage auditMessage) throws IOException {
-    auditLog.put(writeHelper(auditMessage));
+  /**
+   * Reads a page of audit messages of an entity between a given start and end time, newest first. The cost of
+   * reading a page only depends on its size, since each page starts scanning right after the last row of the
+   * previous page.
+   *
+   * @param namespace  the namespace where the entity exists
+   * @param entityType the type of the entity
+   * @param entityName the name of the entity
+   * @param startTime  the starting time for the scan in seconds
+   * @param endTime    the ending time for the scan in seconds
+   * @param filter     the filter that selects the messages to return
+   * @param cursor     the cursor returned with the previous page, or null to read the first page
+   * @param limit      the maximum number of messages in the page
+   * @return the page of messages, with the cursor of the next page if there is one
+   * @throws IllegalArgumentException if the cursor was not returned for the same entity
+   */
+  public AuditLogResponse getPage(String namespace, String entityType, String entityName,
+                                  long startTime, long endTime, AuditLogFilter filter,
+                                  @Nullable String cursor, int limit) {
+    // Data stored using inverted timestamp so start and end times are swapped
+    byte[] startKey = getScanKey(namespace, entityType, entityName, endTime);
+    byte[] stopKey = getScanKey(namespace, entityType, entityName, startTime);
+    if (cursor != null) {
+      byte[] entityKeyPart = createEntityKeyPart(namespace.length() + entityType.length() + entityName.length() +
+                                                   (3 * KEY_DELIMITER.length),
+                                                 namespace, entityType, entityName).array();
+      byte[] resumeKey = Bytes.add(decodeCursor(entityKeyPart, cursor), new byte[] {0});
+      if (Bytes.compareTo(resumeKey, startKey) > 0) {
+        startKey = resumeKey;
+      }
+    }
+    List<AuditMessage> messages = new ArrayList<>();
+    if (Bytes.compareTo(startKey, stopKey) >= 0) {
+      return new AuditLogResponse(messages, null);
+    }
+
+    String nextCursor = null;
+    Scanner scanner = auditLog.scan(new Scan(startKey, stopKey));
+    try (CloseableIterator<AuditLogEntry> entries = new AuditLogEntryIterator(scanner, filter)) {
+      byte[] lastRowKey = null;
+      while (entries.hasNext()) {
+        AuditLogEntry entry = entries.next();
+        if (messages.size() == limit) {
+          nextCursor = DatatypeConverter.printHexBinary(lastRowKey);
+          break;
+        }
+        messages.add(entry.getMessage());
+        lastRowKey = entry.getRowKey();
+      }
+    }
+    return new AuditLogResponse(messages, nextCursor);
+  }
+
+  /**
+   * Writes an audit message to the table.
+   *
+   * @param auditMessage the message to write
+   * @param instanceId the instance id of the writer
+   */
+  public void write(AuditMessage auditMessage, int instanceId) throws IOException {
+    Put put = writeHelper(auditMessage, instanceId);
+    auditLog.put(put);
+    if (activityIndexEnabled) {
+      writeActivityIndex(auditMessage, put.getRow());
+    }
+  }
+
+  /**
+   * Writes a batch of audit messages to the table.
+   *
+   * @param auditMessages the messages to write
+   * @param instanceId the instance id of the writer
+   */
+  public void write(Collection<AuditMessage> auditMessages, int instanceId) throws IOException {
+    for (AuditMessage auditMessage : auditMessages) {
+      write(auditMessage, instanceId);
+    }
   }
 
   @VisibleForTesting
-  Put writeHelper(AuditMessage auditMessage) throws IOException {
+  Put writeHelper(AuditMessage auditMessage, int instanceId) throws IOException {
     MetadataEntity metadataEntity = auditMessage.getEntity();
     if (!metadataEntity.containsKey(MetadataEntity.NAMESPACE)) {
       throw
@@ -98,23 +249,131 @@ public final class AuditLogTable extends AbstractDataset {
     }
     String namespace = metadataEntity.getValue(MetadataEntity.NAMESPACE);
     String type = metadataEntity.getType().toLowerCase();
-    AuditType auditType = auditMessage.getType();
     String name = metadataEntity.getValue(type);
-    String user = auditMessage.getUser();
-    if (Strings.isNullOrEmpty(user)) {
-      user = DEFAULT_USER;
+    String user = getUser(auditMessage);
+    // The key allows for scanning by namespace, entity, and time. The writer
+    // instance id, its run id and a sequence number ensure the key is unique.
+    return new Put(getKey(namespace, type, name, auditMessage.getTime(), instanceId))
+      .add(AuditLogRowCodec.VALUE_COLUMN, AuditLogRowCodec.encode(auditMessage, user, namespace, name));
+  }
+
+  /**
+   * Indexes an audit message by its user and, for access messages, by the accessing program.
+   */
+  private void writeActivityIndex(AuditMessage auditMessage, byte[] rowKey) {
+    String namespace = auditMessage.getEntity().getValue(MetadataEntity.NAMESPACE);
+    // The suffix of the audit row keeps index keys unique for the same user and timestamp
+    byte[] suffix = Arrays.copyOfRange(rowKey, rowKey.length - SUFFIX_SIZE, rowKey.length);
+    auditLog.put(new Put(getActivityKey(Activity.USER, namespace, getUser(auditMessage),
+                                        auditMessage.getTime(), suffix))
+                   .add(INDEX_ROW_KEY_COLUMN, rowKey));
+    if (auditMessage.getPayload() instanceof AccessPayload) {
+      String accessor = getAccessorKeyPart(((AccessPayload) auditMessage.getPayload()).getAccessor());
+      auditLog.put(new Put(getActivityKey(Activity.ACCESSOR, namespace, accessor, auditMessage.getTime(), suffix))
+                     .add(INDEX_ROW_KEY_COLUMN, rowKey));
+    }
+  }
+
+  /**
+   * Reads a page of the activity of a user or of an accessor between a given start and end time, newest first.
+   *
+   * @param activity  whether to read the activity of a user or of an accessor
+   * @param namespace the namespace of the accessed entities
+   * @param value     the user, or the accessor in its entity id string form
+   * @param startTime the starting time for the scan in milliseconds
+   * @param endTime   the ending time for the scan in milliseconds
+   * @param cursor    the cursor returned with the previous page, or null to read the first page
+   * @param limit     the maximum number of messages in the page
+   * @return the page of messages, with the cursor of the next page if there is one
+   * @throws IllegalStateException if the activity index is not enabled for this dataset
+   * @throws IllegalArgumentException if the cursor was not returned for the same activity
+   */
+  public AuditLogResponse getActivity(Activity activity, String namespace, String value,
+                                      long startTime, long endTime, @Nullable String cursor, int limit) {
+    if (!activityIndexEnabled) {
+      throw new IllegalStateException(String.format("Activity index is not enabled for dataset '%s'", getName()));
+    }
+    if (activity == Activity.ACCESSOR) {
+      value = getAccessorKeyPart(EntityId.fromString(value));
+    }
+    byte[] prefix = getActivityKeyPrefix(activity, namespace, value);
+    // Data stored using inverted timestamp so start and end times are swapped
+    byte[] startKey = Bytes.add(prefix, Bytes.toBytes(getInvertedTsScanKeyPart(endTime)));
+    byte[] stopKey = Bytes.add(prefix, Bytes.toBytes(getInvertedTsScanKeyPart(startTime)));
+    if (cursor != null) {
+      byte[] resumeKey = Bytes.add(decodeCursor(prefix, cursor), new byte[] {0});
+      if (Bytes.compareTo(resumeKey, startKey) > 0) {
+        startKey = resumeKey;
+      }
+    }
+    List<AuditMessage> messages = new ArrayList<>();
+    if (Bytes.compareTo(startKey, stopKey) >= 0) {
+      return new AuditLogResponse(messages, null);
     }
-    // The key allows for scanning by namespace, entity, and time. A UUID
-    // is added to ensure the key is unique.
-    return new Put(getKey(namespace, type, name, auditMessage.getTime()))
-      .add("timestamp", auditMessage.getTime())
-      .add("entity", GSON.toJson(auditMessage.getEntity()))
-      .add("user", user)
-      .add("actionType", auditType.name())
-      .add("entityType", type)
-      .add("entityName", name)
-      .add("metadata", GSON.toJson(auditMessage.getPayload()));
 
+    List<Get> gets = new ArrayList<>();
+    String nextCursor = null;
+    Scanner scanner = auditLog.scan(new Scan(startKey, stopKey));
+    try {
+      byte[] lastIndexKey = null;
+      Row row;
+      while ((row = scanner.next()) != null) {
+        if (gets.size() == limit) {
+          nextCursor = DatatypeConverter.printHexBinary(lastIndexKey);
+          break;
+        }
+        gets.add(new Get(row.get(INDEX_ROW_KEY_COLUMN)));
+        lastIndexKey = row.getRow();
+      }
+    } finally {
+      scanner.close();
+    }
+    if (!gets.isEmpty()) {
+      for (Row row : auditLog.get(gets)) {
+        if (!row.isEmpty()) {
+          messages.add(createAuditMessage(row));
+        }
+      }
+    }
+    return new AuditLogResponse(messages, nextCursor);
+  }
+
+  /**
+   * Accesses are indexed by program rather than by program run, so the activity of a program covers all its runs.
+   */
+  private static String getAccessorKeyPart(EntityId accessor) {
+    if (accessor instanceof ProgramRunId) {
+      return ((ProgramRunId) accessor).getParent().toString();
+    }
+    return accessor.toString();
+  }
+
+  private static byte[] getActivityKeyPrefix(Activity activity, String namespace, String value) {
+    byte[] namespaceBytes = Bytes.toBytes(namespace);
+    byte[] valueBytes = Bytes.toBytes(value);
+    return ByteBuffer.allocate(2 + namespaceBytes.length + valueBytes.length + (2 * KEY_DELIMITER.length))
+      .put(INDEX_PREFIX)
+      .put(activity.code)
+      .put(namespaceBytes)
+      .put(KEY_DELIMITER)
+      .put(valueBytes)
+      .put(KEY_DELIMITER)
+      .array();
+  }
+
+  private byte[] getActivityKey(Activity activity, String namespace, String value, long timestamp, byte[] suffix) {
+    byte[] prefix = getActivityKeyPrefix(activity, namespace, value);
+    return ByteBuffer.allocate(prefix.length + Bytes.SIZEOF_LONG + KEY_DELIMITER.length + suffix.length)
+      .put(prefix)
+      .putLong(getInvertedTsKeyPart(timestamp))
+      .put(KEY_DELIMITER)
+      .put(suffix)
+      .array();
+  }
+
+  private static String getUser(AuditMessage auditMessage) {
+    String user = auditMessage.getUser();
+    return Strings.isNullOrEmpty(user) ? DEFAULT_USER : user;
   }
 
   /**
@@ -124,21 +383,23 @@ public final class AuditLogTable extends AbstractDataset {
    * @param entityType the type of the entity
    * @param entityName the name of the entity
    * @param timestamp  the timestamp of the entity to search for
+   * @param instanceId the instance id of the writer
    * @return A string that can be used as a key in the dataset
    */
   @VisibleForTesting
-  byte[] getKey(String namespace, String entityType, String entityName, long timestamp) {
-    String uuid = UUID.randomUUID().toString();
+  byte[] getKey(String namespace, String entityType, String entityName, long timestamp, int instanceId) {
     int byteBufferSize = namespace.length() +
       entityType.length() +
       entityName.length() +
       Bytes.SIZEOF_LONG +
-      uuid.length() +
+      SUFFIX_SIZE +
       (4 * KEY_DELIMITER.length);
     ByteBuffer bb = createEntityKeyPart(byteBufferSize, namespace, entityType, entityName);
     bb.putLong(getInvertedTsKeyPart(timestamp))
       .put(KEY_DELIMITER)
-      .put(Bytes.toBytes(uuid));
+      .putInt(instanceId)
+      .putLong(runId)
+      .putInt(sequence.getAndIncrement());
     return bb.array();
   }
 
@@ -183,7 +444,23 @@ public final class AuditLogTable extends AbstractDataset {
     return bb;
   }
 
-  private long getInvertedTsKeyPart(long endTime) {
+  /**
+   * Decodes the row key of a page cursor, and checks that it starts with the key prefix of the scanned rows.
+   */
+  private static byte[] decodeCursor(byte[] prefix, String cursor) {
+    byte[] rowKey;
+    try {
+      rowKey = DatatypeConverter.parseHexBinary(cursor);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(String.format("Cursor '%s' is not valid", cursor), e);
+    }
+    if (!Bytes.startsWith(rowKey, prefix)) {
+      throw new IllegalArgumentException(String.format("Cursor '%s' is not valid for the requested rows", cursor));
+    }
+    return rowKey;
+  }
+
+  private static long getInvertedTsKeyPart(long endTime) {
     return Long.MAX_VALUE - endTime;
   }
 
@@ -192,7 +469,7 @@ public final class AuditLogTable extends AbstractDataset {
    * start key is inclusive and end key is exclusive on a scan. Since when you invert start key, it becomes end key and
    * vice-versa.
    */
-  private long getInvertedTsScanKeyPart(long time) {
+  private static long getInvertedTsScanKeyPart(long time) {
     long invertedTsKey = getInvertedTsKeyPart(time);
     return invertedTsKey < Long.MAX_VALUE ? invertedTsKey + 1 : invertedTsKey;
   }
@@ -205,6 +482,13 @@ public final class AuditLogTable extends AbstractDataset {
    */
   @VisibleForTesting
   static AuditMessage createAuditMessage(Row row) {
+    byte[] value = row.get(AuditLogRowCodec.VALUE_COLUMN);
+    if (value != null) {
+      String[] entityKeyParts = getEntityKeyParts(row.getRow());
+      return AuditLogRowCodec.decode(entityKeyParts[0], entityKeyParts[2], value);
+    }
+
+    // Rows written before the binary encoding store each field in its own column
     // backward compatibility CDAP-13088
     MetadataEntity metadataEntity;
     String josn = row.getString("entityId");
@@ -231,25 +515,58 @@ public final class AuditLogTable extends AbstractDataset {
   }
 
   /**
-   * A closable iterator for moving through AuditMessages returned by a scan.
+   * Splits the namespace, entity type and entity name out of a row key.
+   */
+  private static String[] getEntityKeyParts(byte[] rowKey) {
+    String[] parts = new String[3];
+    int start = 0;
+    for (int i = 0; i < parts.length; i++) {
+      int end = start;
+      while (rowKey[end] != KEY_DELIMITER[0]) {
+        end++;
+      }
+      parts[i] = Bytes.toString(rowKey, start, end - start);
+      start = end + KEY_DELIMITER.length;
+    }
+    return parts;
+  }
+
+  /**
+   * The kinds of activity that audit messages are indexed by.
+   */
+  public enum Activity {
+    USER('u'),
+    ACCESSOR('a');
+
+    private final byte code;
+
+    Activity(char code) {
+      this.code = (byte) code;
+    }
+  }
+
+  /**
+   * A closable iterator for moving through the AuditLogEntries returned by a scan that are selected by a filter.
    */
-  private static final class AuditMessageIterator extends AbstractCloseableIterator<AuditMessage> {
+  private static final class AuditLogEntryIterator extends AbstractCloseableIterator<AuditLogEntry> {
     private final Scanner scanner;
-    private Row nextRow;
+    private final AuditLogFilter filter;
 
-    AuditMessageIterator(Scanner scanner) {
+    AuditLogEntryIterator(Scanner scanner, AuditLogFilter filter) {
       this.scanner = scanner;
-      nextRow = scanner.next();
+      this.filter = filter;
     }
 
     @Override
-    protected AuditMessage computeNext() {
-      if (nextRow == null) {
-        return endOfData();
+    protected AuditLogEntry computeNext() {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        AuditLogEntry entry = new AuditLogEntry(row);
+        if (filter.apply(entry)) {
+          return entry;
+        }
       }
-      Row current = nextRow;
-      nextRow = scanner.next();
-      return createAuditMessage(current);
+      return endOfData();
     }
 
     @Override
@@ -23,6 +23,7 @@ import co.cask.cdap.api.dataset.lib.cube.Cube;
 import co.cask.cdap.api.dataset.lib.cube.CubeFact;
 import co.cask.cdap.api.dataset.lib.cube.CubeQuery;
 import co.cask.cdap.api.dataset.lib.cube.MeasureType;
+import co.cask.cdap.api.dataset.lib.cube.Measurement;
 import co.cask.cdap.api.dataset.lib.cube.TimeSeries;
 import co.cask.cdap.api.dataset.lib.cube.TimeValue;
 import co.cask.cdap.api.dataset.module.EmbeddedDataset;
@@ -41,24 +42,34 @@ import com.google.common.base.Strings;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 /**
  * An OLAP Cube to store metrics about the AuditLog.
  */
 public class AuditMetricsCube extends AbstractDataset {
+  // Finest resolution of the cube, facts in the same bucket of it are merged before being added
+  private static final long AGGREGATION_BUCKET_SECONDS = TimeUnit.HOURS.toSeconds(1L);
+
   private final Cube auditMetrics;
 
-  private enum Bucket {
+  /**
+   * The resolutions of the audit histogram.
+   */
+  public enum Bucket {
     DAY(TimeUnit.DAYS),
     HOUR(TimeUnit.HOURS);
 
@@ -86,6 +97,40 @@ public class AuditMetricsCube extends AbstractDataset {
    * @throws IOException if for some reason, it cannot find the name of the entity
    */
   public void write(AuditMessage auditMessage) throws IOException {
+    CubeFact fact = createFact(auditMessage);
+    if (fact != null) {
+      auditMetrics.add(fact);
+    }
+  }
+
+  /**
+   * Updates cube metrics based on information in a batch of audit messages. Facts with the same dimension values
+   * that fall in the same bucket of the finest cube resolution are merged in memory, so that only one fact per
+   * such key is added to the cube.
+   *
+   * @param auditMessages the messages to update the stats for
+   * @throws IOException if for some reason, it cannot find the name of an entity
+   */
+  public void write(Collection<AuditMessage> auditMessages) throws IOException {
+    FactAggregator aggregator = new FactAggregator();
+    for (AuditMessage auditMessage : auditMessages) {
+      CubeFact fact = createFact(auditMessage);
+      if (fact != null) {
+        aggregator.add(fact);
+      }
+    }
+    if (!aggregator.isEmpty()) {
+      auditMetrics.add(aggregator.getFacts());
+    }
+  }
+
+  /**
+   * Builds the cube fact for an audit message.
+   *
+   * @return the fact, or null if the message should not be counted in the metrics
+   */
+  @Nullable
+  static CubeFact createFact(AuditMessage auditMessage) throws IOException {
     MetadataEntity metadataEntity = auditMessage.getEntity();
 
     if (!metadataEntity.containsKey(MetadataEntity.NAMESPACE)) {
@@ -95,7 +140,7 @@ public class AuditMetricsCube extends AbstractDataset {
                                                 metadataEntity));
     }
     if (ParameterCheck.isTrackerDataset(metadataEntity)) {
-      return;
+      return null;
     }
     String namespace = metadataEntity.getValue(MetadataEntity.NAMESPACE);
     String type = metadataEntity.getType().toLowerCase();
@@ -112,7 +157,7 @@ public class AuditMetricsCube extends AbstractDataset {
       AccessPayload accessPayload = ((AccessPayload) auditMessage.getPayload());
       EntityId accessor = accessPayload.getAccessor();
       if (ParameterCheck.isTrackerEntity(accessor)) {
-        return;
+        return null;
       }
       // Accounting for cross-namespace dataset access
       if (accessor instanceof NamespacedEntityId) {
@@ -139,7 +184,14 @@ public class AuditMetricsCube extends AbstractDataset {
       fact.addMeasurement(accessPayload.getAccessType().name().toLowerCase(), MeasureType.COUNTER, 1L);
     }
     fact.addMeasurement("count", MeasureType.COUNTER, 1L);
-    auditMetrics.add(fact);
+    return fact;
+  }
+
+  /**
+   * Runs a query against the cube.
+   */
+  Collection<TimeSeries> query(CubeQuery query) {
+    return auditMetrics.query(query);
   }
 
   /**
@@ -148,6 +200,7 @@ public class AuditMetricsCube extends AbstractDataset {
    * @return A list of entities and their stats sorted in DESC order by count
    */
   public List<TopDatasetsResult> getTopNDatasets(int topN, long startTime, long endTime, String namespace) {
+    // Datasets and streams are read with a single query, grouped by entity type
     CubeQuery datasetQuery = CubeQuery.builder()
       .select()
       .measurement(AccessType.READ.name().toLowerCase(), AggregationFunction.SUM)
@@ -157,45 +210,29 @@ public class AuditMetricsCube extends AbstractDataset {
       .resolution(TimeUnit.DAYS.toSeconds(365L), TimeUnit.SECONDS)
       .where()
       .dimension("namespace", namespace)
-      .dimension("entity_type", EntityType.DATASET.name().toLowerCase())
       .dimension("audit_type", AuditType.ACCESS.name().toLowerCase())
       .timeRange(startTime, endTime)
       .groupBy()
+      .dimension("entity_type")
       .dimension("entity_name")
-      .limit(1000)
+      .limit(Integer.MAX_VALUE)
       .build();
-
-    CubeQuery streamQuery = CubeQuery.builder()
-      .select()
-      .measurement(AccessType.READ.name().toLowerCase(), AggregationFunction.SUM)
-      .measurement(AccessType.WRITE.name().toLowerCase(), AggregationFunction.SUM)
-      .measurement(AccessType.UNKNOWN.name().toLowerCase(), AggregationFunction.SUM)
-      .from()
-      .resolution(TimeUnit.DAYS.toSeconds(365L), TimeUnit.SECONDS)
-      .where()
-      .dimension("namespace", namespace)
-      .dimension("entity_type", EntityType.STREAM.name().toLowerCase())
-      .dimension("audit_type", AuditType.ACCESS.name().toLowerCase())
-      .timeRange(startTime, endTime)
-      .groupBy()
-      .dimension("entity_name")
-      .limit(1000)
-      .build();
-    Map<String, TopDatasetsResult> auditStats = transformTopNDatasetResult(auditMetrics.query(datasetQuery),
-                                                                           auditMetrics.query(streamQuery));
-    List<TopDatasetsResult> resultList = new ArrayList<>(auditStats.values());
-    Collections.sort(resultList);
-    return (topN >= resultList.size()) ? resultList : resultList.subList(0, topN);
+    Map<String, TopDatasetsResult> auditStats = transformTopNDatasetResult(auditMetrics.query(datasetQuery));
+    return selectTopN(auditStats.values(), topN);
   }
 
-  private Map<String, TopDatasetsResult> transformTopNDatasetResult(Collection<TimeSeries> datasetResult,
-                                                                    Collection<TimeSeries> streamResults) {
+  private Map<String, TopDatasetsResult> transformTopNDatasetResult(Collection<TimeSeries> results) {
     HashMap<String, TopDatasetsResult> resultsMap = new HashMap<>();
-    for (TimeSeries t : datasetResult) {
+    for (TimeSeries t : results) {
+      String entityType = t.getDimensionValues().get("entity_type");
+      if (!EntityType.DATASET.name().equalsIgnoreCase(entityType)
+        && !EntityType.STREAM.name().equalsIgnoreCase(entityType)) {
+        continue;
+      }
       String entityName = t.getDimensionValues().get("entity_name");
-      String key = getKey(entityName, "dataset");
+      String key = getKey(entityName, entityType);
       if (!resultsMap.containsKey(key)) {
-        resultsMap.put(key, new TopDatasetsResult(entityName, "dataset"));
+        resultsMap.put(key, new TopDatasetsResult(entityName, entityType));
       }
       TopDatasetsResult result = resultsMap.get(key);
       if (t.getMeasureName().equals("read")) {
@@ -204,21 +241,30 @@ public class AuditMetricsCube extends AbstractDataset {
         result.setWrite(t.getTimeValues().get(0).getValue());
       }
     }
+    return resultsMap;
+  }
 
-    for (TimeSeries t : streamResults) {
-      String entityName = t.getDimensionValues().get("entity_name");
-      String key = getKey(entityName, "stream");
-      if (!resultsMap.containsKey(key)) {
-        resultsMap.put(key, new TopDatasetsResult(entityName, "stream"));
-      }
-      TopDatasetsResult result = resultsMap.get(key);
-      if (t.getMeasureName().equals("read")) {
-        result.setRead(t.getTimeValues().get(0).getValue());
-      } else if (t.getMeasureName().equals("write")) {
-        result.setWrite(t.getTimeValues().get(0).getValue());
+  /**
+   * Selects the first N results in their natural order with a heap bounded to N entries, instead of sorting
+   * all the results.
+   *
+   * @return the first N results, sorted
+   */
+  static <T extends Comparable<T>> List<T> selectTopN(Collection<T> results, int topN) {
+    // The head of the heap is the last of the selected results, so it is the one to evict
+    PriorityQueue<T> heap = new PriorityQueue<>(Math.max(1, Math.min(topN, results.size())),
+                                                Collections.<T>reverseOrder());
+    for (T result : results) {
+      if (heap.size() < topN) {
+        heap.add(result);
+      } else if (result.compareTo(heap.peek()) < 0) {
+        heap.poll();
+        heap.add(result);
       }
     }
-    return resultsMap;
+    List<T> resultList = new ArrayList<>(heap);
+    Collections.sort(resultList);
+    return resultList;
   }
 
   public List<TopProgramsResult> getTopNPrograms(int topN, long startTime, long endTime, String namespace) {
@@ -237,12 +283,10 @@ public class AuditMetricsCube extends AbstractDataset {
       .dimension("program_name")
       .dimension("app_name")
       .dimension("program_type")
-      .limit(1000)
+      .limit(Integer.MAX_VALUE)
       .build();
     Map<String, TopProgramsResult> auditStats = transformTopNProgramResult(auditMetrics.query(programQuery));
-    List<TopProgramsResult> resultList = new ArrayList<>(auditStats.values());
-    Collections.sort(resultList);
-    return (topN >= resultList.size()) ? resultList : resultList.subList(0, topN);
+    return selectTopN(auditStats.values(), topN);
   }
 
   public List<TopProgramsResult> getTopNPrograms(int topN, long startTime, long endTime,
@@ -264,12 +308,10 @@ public class AuditMetricsCube extends AbstractDataset {
       .dimension("program_name")
       .dimension("app_name")
       .dimension("program_type")
-      .limit(1000)
+      .limit(Integer.MAX_VALUE)
       .build();
     Map<String, TopProgramsResult> auditStats = transformTopNProgramResult(auditMetrics.query(programQuery));
-    List<TopProgramsResult> resultList = new ArrayList<>(auditStats.values());
-    Collections.sort(resultList);
-    return (topN >= resultList.size()) ? resultList : resultList.subList(0, topN);
+    return selectTopN(auditStats.values(), topN);
   }
 
   private Map<String, TopProgramsResult> transformTopNProgramResult(Collection<TimeSeries> results) {
@@ -312,13 +354,11 @@ public class AuditMetricsCube extends AbstractDataset {
       .timeRange(startTime, endTime)
       .groupBy()
       .dimension("app_name")
-      .limit(1000)
+      .limit(Integer.MAX_VALUE)
       .build();
     Map<String, TopApplicationsResult> auditStats
       = transformTopNApplicationResult(auditMetrics.query(applicationQuery));
-    List<TopApplicationsResult> resultList = new ArrayList<>(auditStats.values());
-    Collections.sort(resultList);
-    return (topN >= resultList.size()) ? resultList : resultList.subList(0, topN);
+    return selectTopN(auditStats.values(), topN);
   }
 
   public List<TopApplicationsResult> getTopNApplications(int topN, long startTime, long endTime, String namespace) {
@@ -335,13 +375,11 @@ public class AuditMetricsCube extends AbstractDataset {
       .timeRange(startTime, endTime)
       .groupBy()
       .dimension("app_name")
-      .limit(1000)
+      .limit(Integer.MAX_VALUE)
       .build();
     Map<String, TopApplicationsResult> auditStats
       = transformTopNApplicationResult(auditMetrics.query(applicationQuery));
-    List<TopApplicationsResult> resultList = new ArrayList<>(auditStats.values());
-    Collections.sort(resultList);
-    return (topN >= resultList.size()) ? resultList : resultList.subList(0, topN);
+    return selectTopN(auditStats.values(), topN);
 
   }
 
@@ -561,8 +599,57 @@ public class AuditMetricsCube extends AbstractDataset {
       return entityList;
   }
 
+  /**
+   * Aggregates facts by dimension values and time bucket. All the measurements of the audit metrics are counters,
+   * so merging facts sums up their measurements. The bucket is the finest resolution of the cube (see
+   * {@link co.cask.tracker.TrackerApp}), which makes the merged facts indistinguishable from the original ones
+   * for any query.
+   */
+  private static final class FactAggregator {
+    private final Map<List<Object>, CubeFact> facts = new LinkedHashMap<>();
+    private final Map<List<Object>, Map<String, Long>> measurements = new HashMap<>();
+
+    void add(CubeFact fact) {
+      long bucket = fact.getTimestamp() / AGGREGATION_BUCKET_SECONDS;
+      List<Object> key = Arrays.<Object>asList(bucket, fact.getDimensionValues());
+      Map<String, Long> counters = measurements.get(key);
+      if (counters == null) {
+        counters = new LinkedHashMap<>();
+        measurements.put(key, counters);
+        facts.put(key, fact);
+      }
+      for (Measurement measurement : fact.getMeasurements()) {
+        Long value = counters.get(measurement.getName());
+        counters.put(measurement.getName(), value == null ? measurement.getValue() : value + measurement.getValue());
+      }
+    }
+
+    boolean isEmpty() {
+      return facts.isEmpty();
+    }
+
+    List<CubeFact> getFacts() {
+      List<CubeFact> result = new ArrayList<>(facts.size());
+      for (Map.Entry<List<Object>, CubeFact> entry : facts.entrySet()) {
+        CubeFact first = entry.getValue();
+        CubeFact merged = new CubeFact(first.getTimestamp());
+        for (Map.Entry<String, String> dimension : first.getDimensionValues().entrySet()) {
+          merged.addDimensionValue(dimension.getKey(), dimension.getValue());
+        }
+        for (Map.Entry<String, Long> counter : measurements.get(entry.getKey()).entrySet()) {
+          merged.addMeasurement(counter.getKey(), MeasureType.COUNTER, counter.getValue());
+        }
+        result.add(merged);
+      }
+      return result;
+    }
+  }
+
   // This will be updated if we change how we select resolution.
-  private Bucket getResolutionBucket(long startTime, long endTime) {
+  /**
+   * @return the resolution at which the audit histogram of a time range is computed
+   */
+  public static Bucket getResolutionBucket(long startTime, long endTime) {
     if ((endTime - startTime) > TimeUnit.DAYS.toSeconds(6L)) {
       return Bucket.DAY;
     }
@@ -20,27 +20,33 @@ import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.dataset.DatasetSpecification;
 import co.cask.cdap.api.dataset.lib.AbstractDataset;
 import co.cask.cdap.api.dataset.module.EmbeddedDataset;
+import co.cask.cdap.api.dataset.table.Get;
 import co.cask.cdap.api.dataset.table.Row;
 import co.cask.cdap.api.dataset.table.Scanner;
 import co.cask.cdap.api.dataset.table.Table;
-import co.cask.cdap.common.BadRequestException;
-import co.cask.cdap.common.NotFoundException;
-import co.cask.cdap.common.UnauthenticatedException;
-import co.cask.cdap.proto.id.NamespaceId;
-import co.cask.cdap.security.spi.authorization.UnauthorizedException;
-import co.cask.tracker.utils.DiscoveryMetadataClient;
 import com.google.common.base.CharMatcher;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.Nullable;
 
 
 /**
- *  Table dataset holding the preferred and the user tags
+ *  Table dataset holding the preferred and the user tags. Preferred tags are stored under
+ *  \0 lower case tag \1 tag, so that they are ordered by their lower case form and a case insensitive prefix
+ *  search is a range scan. Rows written before that are keyed by the tag itself, and are moved by
+ *  {@link #migrateLegacyTags(int)}, which the TrackerWorker runs after an upgrade and which then writes a marker
+ *  row. Until the marker is written, reads and deletes also look for the preferred tags under their legacy keys.
  */
 public final class AuditTagsTable extends AbstractDataset {
 
@@ -49,6 +55,20 @@ public final class AuditTagsTable extends AbstractDataset {
   private static final byte[] TOTAL_ENTITIES = Bytes.toBytes("total_entities");
   private static final byte[] DEFAULT_TOTAL_ENTITIES = Bytes.toBytes(0);
   private static final int MAX_TAG_LENGTH = 50;
+  private static final String PREFERRED_PREFIX = "\0";
+  private static final String KEY_DELIMITER = "\1";
+  // Valid tags start with a letter, a digit, '_' or '-', so all rows from \2 on are legacy rows
+  private static final byte[] LEGACY_START_KEY = Bytes.toBytes("\2");
+  private static final byte[] MIGRATED_ROW = Bytes.toBytes("\1migrated");
+  private static final byte[] MIGRATED_COLUMN = Bytes.toBytes("migrated");
+
+  // Orders tags the way their preferred tag rows are ordered
+  private static final Comparator<String> TAG_ORDER = new Comparator<String>() {
+    @Override
+    public int compare(String tag1, String tag2) {
+      return Bytes.compareTo(getPreferredRow(tag1), getPreferredRow(tag2));
+    }
+  };
 
 
   private static final CharMatcher TAG_MATCHER = CharMatcher.inRange('A', 'Z')
@@ -58,71 +78,204 @@ public final class AuditTagsTable extends AbstractDataset {
     .or(CharMatcher.is('-'));
 
 
+  // Whether the legacy tags are known to be migrated, which never changes back
+  private boolean legacyTagsMigrated;
+
+
   public AuditTagsTable(DatasetSpecification spec, @EmbeddedDataset("preferredTagsTable") Table preferredTagsTable) {
     super(spec.getName(), preferredTagsTable);
     this.preferredTagsTable = preferredTagsTable;
   }
 
-  public TagsResult getUserTags(DiscoveryMetadataClient discoveryMetadataClient, String prefix, NamespaceId namespace)
-    throws IOException, UnauthenticatedException, NotFoundException, BadRequestException, UnauthorizedException {
+  /**
+   * @return whether all the legacy tags are migrated
+   */
+  public boolean isLegacyMigrated() {
+    if (!legacyTagsMigrated) {
+      legacyTagsMigrated = preferredTagsTable.get(MIGRATED_ROW, MIGRATED_COLUMN) != null;
+    }
+    return legacyTagsMigrated;
+  }
+
+  /**
+   * Moves the preferred tags stored under their legacy keys to their current keys. Only one writer should migrate
+   * at a time, since concurrent migrations of the same rows conflict. Once no legacy tags are left, writes the
+   * marker that {@link #isLegacyMigrated} reads.
+   *
+   * @param limit the maximum number of tags to move
+   * @return the number of tags moved
+   */
+  public int migrateLegacyTags(int limit) {
+    int migrated = 0;
+    try (Scanner scanner = preferredTagsTable.scan(LEGACY_START_KEY, null)) {
+      Row row;
+      while (migrated < limit && (row = scanner.next()) != null) {
+        preferredTagsTable.put(getPreferredRow(Bytes.toString(row.getRow())), TOTAL_ENTITIES, DEFAULT_TOTAL_ENTITIES);
+        preferredTagsTable.delete(row.getRow());
+        migrated++;
+      }
+    }
+    if (migrated == 0 && limit > 0) {
+      preferredTagsTable.put(MIGRATED_ROW, MIGRATED_COLUMN, Bytes.toBytes(true));
+    }
+    return migrated;
+  }
+
+  /**
+   * Returns a page of the preferred tags that start with a prefix, ignoring case, with a single range scan, and a
+   * scan of the legacy tags until they are migrated.
+   *
+   * @param cursor the last tag of the previous page, or null to start from the first tag
+   * @param limit the maximum number of tags to return
+   * @return the preferred tags, ordered by their lower case form, then by the tag itself
+   */
+  public List<String> getPreferredTags(String prefix, @Nullable String cursor, int limit) {
+    List<String> tags = new ArrayList<>();
+    byte[] startKey = Bytes.toBytes(PREFERRED_PREFIX + prefix.toLowerCase());
+    byte[] stopKey = Bytes.stopKeyForPrefix(startKey);
+    if (cursor != null) {
+      byte[] cursorKey = Bytes.stopKeyForPrefix(getPreferredRow(cursor));
+      if (Bytes.compareTo(cursorKey, startKey) > 0) {
+        startKey = cursorKey;
+      }
+    }
+    if (Bytes.compareTo(startKey, stopKey) >= 0) {
+      return tags;
+    }
+    try (Scanner scanner = preferredTagsTable.scan(startKey, stopKey)) {
+      Row row;
+      while (tags.size() < limit && (row = scanner.next()) != null) {
+        String key = Bytes.toString(row.getRow());
+        tags.add(key.substring(key.indexOf(KEY_DELIMITER) + 1));
+      }
+    }
+    if (isLegacyMigrated()) {
+      return tags;
+    }
+    // Legacy keys are not ordered by their lower case form, so all of them are scanned and merged into the page
+    TreeSet<String> merged = new TreeSet<>(TAG_ORDER);
+    merged.addAll(tags);
+    try (Scanner scanner = preferredTagsTable.scan(LEGACY_START_KEY, null)) {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        String tag = Bytes.toString(row.getRow());
+        if (tag.toLowerCase().startsWith(prefix.toLowerCase())
+          && (cursor == null || TAG_ORDER.compare(tag, cursor) > 0)) {
+          merged.add(tag);
+        }
+      }
+    }
+    tags.clear();
+    Iterator<String> iterator = merged.iterator();
+    while (tags.size() < limit && iterator.hasNext()) {
+      tags.add(iterator.next());
+    }
+    return tags;
+  }
+
+  /**
+   * Reads a page of the user tags that start with a prefix, ignoring case. The tag index also holds the tags that
+   * are preferred, which are dropped from the page, so the index is read on from the last tag read until the page is
+   * full or there are no more tags.
+   *
+   * @param cursor the last tag of the previous page, or null to start from the first tag
+   * @param limit the maximum number of tags to return
+   */
+  public TagsResult getUserTags(TagIndexTable tagIndex, String namespace, String prefix, @Nullable String cursor,
+                                int limit) {
     Map<String, Integer> tagMap = new HashMap<>();
-    Set<String> userSet = discoveryMetadataClient.getTags(namespace);
-    for (String usertag : userSet) {
-      if (preferredTagsTable.get(usertag.getBytes()).isEmpty()) {
-        if (usertag.toLowerCase().startsWith(prefix.toLowerCase())) {
-          tagMap.put(usertag, discoveryMetadataClient.getEntityNum(usertag, namespace));
+    String lastTag = cursor;
+    boolean hasMore = true;
+    while (hasMore && tagMap.size() < limit) {
+      int pageSize = limit - tagMap.size();
+      Map<String, Integer> tagCounts = tagIndex.getTagCounts(namespace, prefix, lastTag, pageSize);
+      hasMore = tagCounts.size() >= pageSize;
+      Set<String> preferred = getPreferred(tagCounts.keySet());
+      for (Map.Entry<String, Integer> usertag : tagCounts.entrySet()) {
+        lastTag = usertag.getKey();
+        if (!preferred.contains(usertag.getKey())) {
+          tagMap.put(usertag.getKey(), usertag.getValue());
         }
       }
     }
     TagsResult result = new TagsResult();
     result.setUserSize(tagMap.size());
     result.setUserTags(tagMap);
+    result.setNextCursor(hasMore ? lastTag : null);
     return result;
   }
 
-
-  public TagsResult getPreferredTags(DiscoveryMetadataClient discoveryMetadataClient, String prefix,
-                                     NamespaceId namespace)
-    throws IOException, NotFoundException, UnauthenticatedException, BadRequestException, UnauthorizedException {
+  /**
+   * @param preferredTags a page of preferred tags, as returned by {@link #getPreferredTags(String, String, int)}
+   * @param tagCounts the number of entities of each of these tags
+   * @param limit the limit the page was read with
+   */
+  public TagsResult getPreferredTags(List<String> preferredTags, Map<String, Integer> tagCounts, int limit) {
     Map<String, Integer> tagMap = new HashMap<>();
-    try (Scanner scanner = preferredTagsTable.scan(null, null)) {
-      Row row;
-      while ((row = scanner.next()) != null) {
-        String tag = Bytes.toString(row.getRow());
-        if (tag.toLowerCase().startsWith(prefix.toLowerCase())) {
-          tagMap.put(tag, discoveryMetadataClient.getEntityNum(tag, namespace));
-        }
-      }
+    for (String tag : preferredTags) {
+      tagMap.put(tag, getCount(tagCounts, tag));
     }
     TagsResult result = new TagsResult();
     result.setPreferredSize(tagMap.size());
     result.setPreferredTags(tagMap);
+    result.setNextCursor(preferredTags.size() >= limit ? preferredTags.get(preferredTags.size() - 1) : null);
     return result;
   }
 
 
-  public TagsResult getTags(DiscoveryMetadataClient discoveryMetadataClient, String prefix, NamespaceId namespace)
-    throws IOException, NotFoundException, UnauthenticatedException, BadRequestException, UnauthorizedException {
-    TagsResult userResult = getUserTags(discoveryMetadataClient, prefix, namespace);
-    TagsResult preferredResult = getPreferredTags(discoveryMetadataClient, prefix, namespace);
-    preferredResult.setUserSize(userResult.getUserSize());
-    preferredResult.setUserTags(userResult.getUserTags());
-    return preferredResult;
+  /**
+   * Merges a page of user tags and a page of preferred tags read from the same cursor into a page of all tags.
+   *
+   * @param tagCounts the number of entities of a page of tags, as returned by
+   *                  {@link TagIndexTable#getTagCounts(String, String, String, int)}
+   * @param preferredTags a page of preferred tags, as returned by {@link #getPreferredTags(String, String, int)}
+   * @param limit the limit both pages were read with
+   */
+  public TagsResult getTags(Map<String, Integer> tagCounts, List<String> preferredTags, int limit) {
+    TreeSet<String> tags = new TreeSet<>(TAG_ORDER);
+    tags.addAll(tagCounts.keySet());
+    tags.addAll(preferredTags);
+    // Both pages hold every tag up to the last tag of the merged page, so preferred tags are the ones in the page
+    // of preferred tags
+    Set<String> preferred = new HashSet<>(preferredTags);
+    Map<String, Integer> pTagMap = new HashMap<>();
+    Map<String, Integer> uTagMap = new HashMap<>();
+    String lastTag = null;
+    for (String tag : tags) {
+      if (pTagMap.size() + uTagMap.size() >= limit) {
+        break;
+      }
+      lastTag = tag;
+      if (preferred.contains(tag)) {
+        pTagMap.put(tag, getCount(tagCounts, tag));
+      } else {
+        uTagMap.put(tag, getCount(tagCounts, tag));
+      }
+    }
+    TagsResult result = new TagsResult();
+    result.setUserSize(uTagMap.size());
+    result.setUserTags(uTagMap);
+    result.setPreferredSize(pTagMap.size());
+    result.setPreferredTags(pTagMap);
+    result.setNextCursor(pTagMap.size() + uTagMap.size() >= limit ? lastTag : null);
+    return result;
   }
 
 
 
-  public TagsResult getEntityTags(DiscoveryMetadataClient discoveryMetadataClient, NamespaceId namespace,
-                                  String entityType, String entityName)
-    throws UnauthenticatedException, BadRequestException, NotFoundException, IOException, UnauthorizedException {
+  /**
+   * @param entityTags the user tags of an entity
+   * @param tagCounts the number of entities of each of these tags
+   */
+  public TagsResult getEntityTags(Set<String> entityTags, Map<String, Integer> tagCounts) {
     Map<String, Integer> pTagMap = new HashMap<>();
     Map<String, Integer> uTagMap = new HashMap<>();
-    Set<String> userSet = discoveryMetadataClient.getEntityTags(namespace, entityType, entityName);
-    for (String tag : userSet) {
-      if (preferredTagsTable.get(tag.getBytes()).isEmpty()) {
-        uTagMap.put(tag, discoveryMetadataClient.getEntityNum(tag, namespace));
+    Set<String> preferred = getPreferred(entityTags);
+    for (String tag : entityTags) {
+      if (preferred.contains(tag)) {
+        pTagMap.put(tag, getCount(tagCounts, tag));
       } else {
-        pTagMap.put(tag, discoveryMetadataClient.getEntityNum(tag, namespace));
+        uTagMap.put(tag, getCount(tagCounts, tag));
       }
     }
     TagsResult result = new TagsResult();
@@ -133,14 +286,70 @@ public final class AuditTagsTable extends AbstractDataset {
     return result;
   }
 
+  private static int getCount(Map<String, Integer> tagCounts, String tag) {
+    Integer count = tagCounts.get(tag);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Looks up which of a collection of tags are preferred with a single multi-get, which also gets the legacy keys of
+   * the tags until they are migrated.
+   *
+   * @return the preferred tags among the given tags
+   */
+  private Set<String> getPreferred(Collection<String> tags) {
+    Set<String> preferred = new HashSet<>();
+    if (tags.isEmpty()) {
+      return preferred;
+    }
+    boolean legacy = !isLegacyMigrated();
+    List<Get> gets = new ArrayList<>(legacy ? 2 * tags.size() : tags.size());
+    List<String> getTags = new ArrayList<>(gets.size());
+    for (String tag : tags) {
+      gets.add(new Get(getPreferredRow(tag), TOTAL_ENTITIES));
+      getTags.add(tag);
+      if (legacy && isLegacyTag(tag)) {
+        gets.add(new Get(Bytes.toBytes(tag), TOTAL_ENTITIES));
+        getTags.add(tag);
+      }
+    }
+    // Rows are returned in the order of the gets
+    Iterator<String> tagIterator = getTags.iterator();
+    for (Row row : preferredTagsTable.get(gets)) {
+      String tag = tagIterator.next();
+      if (!row.isEmpty()) {
+        preferred.add(tag);
+      }
+    }
+    return preferred;
+  }
+
+  private static byte[] getPreferredRow(String tag) {
+    return Bytes.toBytes(PREFERRED_PREFIX + tag.toLowerCase() + KEY_DELIMITER + tag);
+  }
+
+  // Whether a tag may have been stored under a legacy key, which only valid tags were
+  private boolean isLegacyTag(String tag) {
+    return !tag.isEmpty() && isValid(tag);
+  }
+
+  // Deletes a preferred tag, under its legacy key too until the legacy tags are migrated
+  private void deletePreferred(String tag) {
+    preferredTagsTable.delete(getPreferredRow(tag));
+    if (!isLegacyMigrated() && isLegacyTag(tag)) {
+      preferredTagsTable.delete(Bytes.toBytes(tag));
+    }
+  }
+
 
   public ValidateTagsResult demoteTag(List<String> tagList) {
     List<String> valid = new LinkedList<>();
     List<String> invalid = new LinkedList<>();
+    Set<String> preferred = getPreferred(tagList);
     for (String tag : tagList) {
-      Row row = preferredTagsTable.get(tag.getBytes());
-      if (!row.isEmpty()) {
-        preferredTagsTable.delete(tag.getBytes());
+      // Removing the tag from the snapshot makes repeated tags invalid, as the tag is no longer preferred
+      if (preferred.remove(tag)) {
+        deletePreferred(tag);
         valid.add(tag);
       } else {
         invalid.add(tag);
@@ -151,8 +360,8 @@ public final class AuditTagsTable extends AbstractDataset {
 
 
   public boolean deleteTag(String tag) {
-    if (!preferredTagsTable.get(tag.getBytes()).isEmpty()) {
-      preferredTagsTable.delete(tag.getBytes());
+    if (!getPreferred(Collections.singleton(tag)).isEmpty()) {
+      deletePreferred(tag);
       return true;
     }
     return false;
@@ -165,7 +374,7 @@ public final class AuditTagsTable extends AbstractDataset {
     for (String tag : tagList) {
       if (isValid(tag)) {
         valid.add(tag);
-        preferredTagsTable.put(tag.getBytes(), TOTAL_ENTITIES, DEFAULT_TOTAL_ENTITIES);
+        preferredTagsTable.put(getPreferredRow(tag), TOTAL_ENTITIES, DEFAULT_TOTAL_ENTITIES);
       } else {
         invalid.add(tag);
       }
@@ -0,0 +1,522 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.lib.AbstractDataset;
+import co.cask.cdap.api.dataset.lib.cube.AggregationFunction;
+import co.cask.cdap.api.dataset.lib.cube.CubeFact;
+import co.cask.cdap.api.dataset.lib.cube.CubeQuery;
+import co.cask.cdap.api.dataset.lib.cube.Measurement;
+import co.cask.cdap.api.dataset.lib.cube.TimeSeries;
+import co.cask.cdap.api.dataset.lib.cube.TimeValue;
+import co.cask.cdap.api.dataset.module.EmbeddedDataset;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.cdap.proto.element.EntityType;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All-time totals of the audit activity of each namespace and of each entity in it, kept up to date as audit
+ * messages are ingested. These are the inputs of the tracker meter, which would otherwise have to aggregate the
+ * whole history of the {@link AuditMetricsCube} on every request.
+ * <p>
+ * Each row holds the totals of one namespace or entity as written by one publisher instance:
+ * <pre>
+ *   namespace \1 \1 shard
+ *   namespace \1 entity type \1 entity name \1 shard
+ * </pre>
+ * The activity column counts audit messages, and there is one column per program that accessed the namespace or
+ * entity, so the distinct programs are the union of the program columns of all the shards.
+ * <p>
+ * The history of the cube before the live time of a namespace is seeded by {@link #seed}, as described in
+ * {@link LiveTimeSeeding}.
+ */
+public class EntityTotalsTable extends AbstractDataset {
+  private static final byte[] KEY_DELIMITER = Bytes.toBytes("\1");
+  private static final byte[] ACTIVITY_COLUMN = Bytes.toBytes("a");
+  private static final String PROGRAM_COLUMN_PREFIX = "p\1";
+  private static final long HOUR = TimeUnit.HOURS.toSeconds(1L);
+  private static final long DAY = TimeUnit.DAYS.toSeconds(1L);
+  private static final long YEAR = TimeUnit.DAYS.toSeconds(365L);
+
+  private final Table totals;
+  private final LiveTimeSeeding seeding;
+
+  public EntityTotalsTable(DatasetSpecification spec, @EmbeddedDataset("totals") Table totals) {
+    super(spec.getName(), totals);
+    this.totals = totals;
+    this.seeding = new LiveTimeSeeding(totals);
+  }
+
+  /**
+   * Adds a batch of audit messages to the totals. Messages ingested before the live time of their namespace are not
+   * counted, as they are seeded from the audit metrics cube.
+   *
+   * @param auditMessages the messages to count
+   * @param shard the instance id of the writer, so that concurrent writers do not update the same rows
+   * @throws IOException if for some reason, it cannot find the name of an entity
+   */
+  public void write(Collection<AuditMessage> auditMessages, int shard) throws IOException {
+    Map<List<String>, Map<String, Long>> counts = new HashMap<>();
+    // Live times set in this transaction, only cached once the transaction is known to have committed
+    Map<String, Long> liveTimesNow = new HashMap<>();
+    for (AuditMessage auditMessage : auditMessages) {
+      CubeFact fact = AuditMetricsCube.createFact(auditMessage);
+      if (fact == null) {
+        continue;
+      }
+      Map<String, String> dimensions = fact.getDimensionValues();
+      String namespace = dimensions.get("namespace");
+      if (fact.getTimestamp() < seeding.getLiveTime(namespace, liveTimesNow)) {
+        continue;
+      }
+
+      String entityType = dimensions.get("entity_type");
+      String entityName = dimensions.get("entity_name");
+      long count = 0;
+      long accesses = 0;
+      for (Measurement measurement : fact.getMeasurements()) {
+        if (measurement.getName().equals("count")) {
+          count += measurement.getValue();
+        } else {
+          accesses += measurement.getValue();
+        }
+      }
+      add(counts, namespace, entityType, entityName, ACTIVITY_COLUMN, count);
+      if (isDatasetType(entityType)) {
+        add(counts, namespace, null, null, ACTIVITY_COLUMN, count);
+      }
+      String programName = dimensions.get("program_name");
+      String programType = dimensions.get("program_type");
+      if (accesses > 0 && !Strings.isNullOrEmpty(programName) && !Strings.isNullOrEmpty(programType)) {
+        byte[] programColumn = getProgramColumn(programType, programName);
+        add(counts, namespace, entityType, entityName, programColumn, accesses);
+        add(counts, namespace, null, null, programColumn, accesses);
+      }
+    }
+    increment(counts, shard);
+  }
+
+  /**
+   * @return whether the history of the audit metrics cube was seeded into the totals of a namespace
+   */
+  public boolean isSeeded(String namespace) {
+    return seeding.isSeeded(namespace);
+  }
+
+  /**
+   * Seeds the totals of a namespace with the next chunk of the history of the audit metrics cube, up to the live
+   * time of the namespace: one year at a time at the year resolution, then the days and the hours of the year of the
+   * live time. Seeding only starts a while after the live time, once the cube holds all the messages ingested before
+   * it.
+   *
+   * @param namespace the namespace to seed
+   * @param auditMetrics the cube to seed the totals from
+   * @return whether seeding is complete
+   */
+  public boolean seed(final String namespace, final AuditMetricsCube auditMetrics) {
+    return seeding.seed(namespace, new LiveTimeSeeding.Seeder() {
+      @Override
+      public long getStartTime(long liveTime) {
+        return getFirstYear(namespace, liveTime, auditMetrics);
+      }
+
+      @Override
+      public long seed(long startTime, long liveTime) {
+        // Seeded times are whole years until the year of the live time, then whole days
+        long resolution;
+        long endTime;
+        if (startTime + YEAR <= liveTime) {
+          resolution = YEAR;
+          endTime = startTime + YEAR;
+        } else if (startTime + DAY <= liveTime) {
+          resolution = DAY;
+          endTime = liveTime - (liveTime % DAY);
+        } else {
+          resolution = HOUR;
+          endTime = liveTime;
+        }
+        EntityTotalsTable.this.seed(
+          namespace, auditMetrics.query(getActivityQuery(namespace, resolution, startTime, endTime)),
+          auditMetrics.query(getProgramsQuery(namespace, resolution, startTime, endTime)));
+        return endTime;
+      }
+    });
+  }
+
+  /**
+   * Computes the totals of the datasets and streams of a namespace from the whole history of the audit metrics
+   * cube, which is what the table holds once seeded.
+   */
+  public static Totals computeTotals(String namespace, AuditMetricsCube auditMetrics) {
+    Map<List<String>, Map<String, Long>> counts = getCubeCounts(namespace, auditMetrics);
+    Totals result = new Totals();
+    Map<String, Long> columns = counts.get(Arrays.asList(namespace, null, null));
+    if (columns != null) {
+      result.add(columns);
+    }
+    return result;
+  }
+
+  /**
+   * Computes the totals of all the entities of a namespace from the whole history of the audit metrics cube, which
+   * is what the table holds once seeded.
+   *
+   * @return the totals of each entity that has any audit activity
+   */
+  public static Map<Entity, Totals> computeEntityTotals(String namespace, AuditMetricsCube auditMetrics) {
+    Map<Entity, Totals> results = new HashMap<>();
+    for (Map.Entry<List<String>, Map<String, Long>> entry : getCubeCounts(namespace, auditMetrics).entrySet()) {
+      List<String> row = entry.getKey();
+      if (row.get(1) == null) {
+        continue;
+      }
+      Totals result = new Totals();
+      result.add(entry.getValue());
+      results.put(new Entity(row.get(1), row.get(2)), result);
+    }
+    return results;
+  }
+
+  /**
+   * @return the number of audit messages of the datasets and streams of a namespace
+   */
+  public long getTotalActivity(String namespace) {
+    return getTotals(namespace).getActivity();
+  }
+
+  /**
+   * @return the number of audit messages of an entity
+   */
+  public long getTotalActivity(String namespace, String entityType, String entityName) {
+    return read(getRowPrefix(namespace, entityType, entityName)).getActivity();
+  }
+
+  /**
+   * @return the number of distinct programs that accessed any entity of a namespace
+   */
+  public long getTotalProgramsCount(String namespace) {
+    return getTotals(namespace).getProgramsCount();
+  }
+
+  /**
+   * @return the number of distinct programs that accessed an entity
+   */
+  public long getTotalProgramsCount(String namespace, String entityType, String entityName) {
+    return read(getRowPrefix(namespace, entityType, entityName)).getProgramsCount();
+  }
+
+  /**
+   * @return the totals of the datasets and streams of a namespace
+   */
+  public Totals getTotals(String namespace) {
+    return read(getRowPrefix(namespace, null, null));
+  }
+
+  /**
+   * Reads the totals of all the entities of a namespace with a single scan.
+   *
+   * @return the totals of each entity that has any audit activity
+   */
+  public Map<Entity, Totals> getEntityTotals(String namespace) {
+    Map<Entity, Totals> results = new HashMap<>();
+    byte[] prefix = Bytes.add(Bytes.toBytes(namespace), KEY_DELIMITER);
+    byte[] namespaceRowPrefix = getRowPrefix(namespace, null, null);
+    Scanner scanner = totals.scan(prefix, Bytes.stopKeyForPrefix(prefix));
+    try {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        byte[] rowKey = row.getRow();
+        if (Bytes.startsWith(rowKey, namespaceRowPrefix)) {
+          continue;
+        }
+        // The rest of the key is entity type \1 entity name \1 shard
+        String entityKey = Bytes.toString(rowKey, prefix.length,
+                                          rowKey.length - prefix.length - Bytes.SIZEOF_INT - KEY_DELIMITER.length);
+        int delimiter = entityKey.indexOf('\1');
+        Entity entity = new Entity(entityKey.substring(0, delimiter), entityKey.substring(delimiter + 1));
+        Totals result = results.get(entity);
+        if (result == null) {
+          result = new Totals();
+          results.put(entity, result);
+        }
+        result.add(row);
+      }
+    } finally {
+      scanner.close();
+    }
+    return results;
+  }
+
+  /**
+   * Merges the totals of all the shards of a namespace or entity.
+   */
+  private Totals read(byte[] prefix) {
+    Totals result = new Totals();
+    Scanner scanner = totals.scan(prefix, Bytes.stopKeyForPrefix(prefix));
+    try {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        result.add(row);
+      }
+    } finally {
+      scanner.close();
+    }
+    return result;
+  }
+
+  @VisibleForTesting
+  void setLiveTime(String namespace, long liveTime) {
+    seeding.setLiveTime(namespace, liveTime);
+  }
+
+  /**
+   * @return the start of the first year the cube has data for in a namespace before the given time, or that time if
+   * it has none
+   */
+  private static long getFirstYear(String namespace, long endTime, AuditMetricsCube auditMetrics) {
+    CubeQuery query = CubeQuery.builder()
+      .select()
+      .measurement("count", AggregationFunction.SUM)
+      .from()
+      .resolution(YEAR, TimeUnit.SECONDS)
+      .where()
+      .dimension("namespace", namespace)
+      .timeRange(0L, endTime - 1)
+      .limit(1)
+      .build();
+    long firstYear = endTime;
+    for (TimeSeries t : auditMetrics.query(query)) {
+      for (TimeValue timeValue : t.getTimeValues()) {
+        firstYear = Math.min(firstYear, timeValue.getTimestamp());
+      }
+    }
+    return firstYear;
+  }
+
+  /**
+   * Adds the counts of the cube to the totals.
+   */
+  @VisibleForTesting
+  void seed(String namespace, Collection<TimeSeries> activity, Collection<TimeSeries> programs) {
+    Map<List<String>, Map<String, Long>> counts = new HashMap<>();
+    addCubeCounts(counts, namespace, activity, programs);
+    increment(counts, LiveTimeSeeding.SEED_SHARD);
+  }
+
+  /**
+   * @return the counts of the whole history of the cube, by row
+   */
+  private static Map<List<String>, Map<String, Long>> getCubeCounts(String namespace, AuditMetricsCube auditMetrics) {
+    long endTime = System.currentTimeMillis() / 1000 + 1;
+    Map<List<String>, Map<String, Long>> counts = new HashMap<>();
+    addCubeCounts(counts, namespace, auditMetrics.query(getActivityQuery(namespace, YEAR, 0L, endTime)),
+                  auditMetrics.query(getProgramsQuery(namespace, YEAR, 0L, endTime)));
+    return counts;
+  }
+
+  private static void addCubeCounts(Map<List<String>, Map<String, Long>> counts, String namespace,
+                                    Collection<TimeSeries> activity, Collection<TimeSeries> programs) {
+    for (TimeSeries t : activity) {
+      String entityType = t.getDimensionValues().get("entity_type");
+      String entityName = t.getDimensionValues().get("entity_name");
+      long count = sum(t);
+      add(counts, namespace, entityType, entityName, ACTIVITY_COLUMN, count);
+      if (isDatasetType(entityType)) {
+        add(counts, namespace, null, null, ACTIVITY_COLUMN, count);
+      }
+    }
+    for (TimeSeries t : programs) {
+      String programName = t.getDimensionValues().get("program_name");
+      String programType = t.getDimensionValues().get("program_type");
+      if (Strings.isNullOrEmpty(programName) || Strings.isNullOrEmpty(programType)) {
+        continue;
+      }
+      byte[] programColumn = getProgramColumn(programType, programName);
+      long accesses = sum(t);
+      add(counts, namespace, t.getDimensionValues().get("entity_type"), t.getDimensionValues().get("entity_name"),
+          programColumn, accesses);
+      add(counts, namespace, null, null, programColumn, accesses);
+    }
+  }
+
+  private static CubeQuery getActivityQuery(String namespace, long resolution, long startTime, long endTime) {
+    return CubeQuery.builder()
+      .select()
+      .measurement("count", AggregationFunction.SUM)
+      .from()
+      .resolution(resolution, TimeUnit.SECONDS)
+      .where()
+      .dimension("namespace", namespace)
+      .timeRange(startTime, endTime - 1)
+      .groupBy()
+      .dimension("entity_type")
+      .dimension("entity_name")
+      .limit(Integer.MAX_VALUE)
+      .build();
+  }
+
+  private static CubeQuery getProgramsQuery(String namespace, long resolution, long startTime, long endTime) {
+    return CubeQuery.builder()
+      .select()
+      .measurement(AccessType.READ.name().toLowerCase(), AggregationFunction.SUM)
+      .measurement(AccessType.WRITE.name().toLowerCase(), AggregationFunction.SUM)
+      .measurement(AccessType.UNKNOWN.name().toLowerCase(), AggregationFunction.SUM)
+      .from()
+      .resolution(resolution, TimeUnit.SECONDS)
+      .where()
+      .dimension("namespace", namespace)
+      .dimension("audit_type", AuditType.ACCESS.name().toLowerCase())
+      .timeRange(startTime, endTime - 1)
+      .groupBy()
+      .dimension("entity_type")
+      .dimension("entity_name")
+      .dimension("program_name")
+      .dimension("program_type")
+      .limit(Integer.MAX_VALUE)
+      .build();
+  }
+
+  /**
+   * Adds a count to the totals of a namespace, or of an entity if its type and name are given.
+   */
+  private static void add(Map<List<String>, Map<String, Long>> counts, String namespace, String entityType,
+                          String entityName, byte[] column, long count) {
+    if (count == 0) {
+      return;
+    }
+    List<String> row = Arrays.asList(namespace, entityType, entityName);
+    Map<String, Long> columns = counts.get(row);
+    if (columns == null) {
+      columns = new HashMap<>();
+      counts.put(row, columns);
+    }
+    String columnName = Bytes.toString(column);
+    Long current = columns.get(columnName);
+    columns.put(columnName, current == null ? count : current + count);
+  }
+
+  private void increment(Map<List<String>, Map<String, Long>> counts, int shard) {
+    for (Map.Entry<List<String>, Map<String, Long>> entry : counts.entrySet()) {
+      List<String> row = entry.getKey();
+      byte[] rowKey = Bytes.add(getRowPrefix(row.get(0), row.get(1), row.get(2)), Bytes.toBytes(shard));
+      seeding.increment(rowKey, entry.getValue());
+    }
+  }
+
+  private static long sum(TimeSeries timeSeries) {
+    long sum = 0;
+    for (TimeValue timeValue : timeSeries.getTimeValues()) {
+      sum += timeValue.getValue();
+    }
+    return sum;
+  }
+
+  private static boolean isDatasetType(String entityType) {
+    return EntityType.DATASET.name().equalsIgnoreCase(entityType)
+      || EntityType.STREAM.name().equalsIgnoreCase(entityType);
+  }
+
+  private static byte[] getProgramColumn(String programType, String programName) {
+    return Bytes.toBytes(PROGRAM_COLUMN_PREFIX + programType + "\1" + programName);
+  }
+
+  /**
+   * @return the row prefix of the totals of a namespace, or of an entity if its type and name are not null
+   */
+  private static byte[] getRowPrefix(String namespace, String entityType, String entityName) {
+    byte[] namespaceBytes = Bytes.toBytes(namespace);
+    if (entityType == null) {
+      return ByteBuffer.allocate(namespaceBytes.length + (2 * KEY_DELIMITER.length))
+        .put(namespaceBytes)
+        .put(KEY_DELIMITER)
+        .put(KEY_DELIMITER)
+        .array();
+    }
+    byte[] typeBytes = Bytes.toBytes(entityType);
+    byte[] nameBytes = Bytes.toBytes(entityName);
+    return ByteBuffer.allocate(namespaceBytes.length + typeBytes.length + nameBytes.length
+                                 + (3 * KEY_DELIMITER.length))
+      .put(namespaceBytes)
+      .put(KEY_DELIMITER)
+      .put(typeBytes)
+      .put(KEY_DELIMITER)
+      .put(nameBytes)
+      .put(KEY_DELIMITER)
+      .array();
+  }
+
+  /**
+   * The merged totals of a namespace or entity.
+   */
+  public static final class Totals {
+    private final Set<String> programs = new HashSet<>();
+    private long activity;
+
+    void add(Row row) {
+      for (Map.Entry<byte[], byte[]> column : row.getColumns().entrySet()) {
+        add(Bytes.toString(column.getKey()), Bytes.toLong(column.getValue()));
+      }
+    }
+
+    void add(Map<String, Long> columns) {
+      for (Map.Entry<String, Long> column : columns.entrySet()) {
+        add(column.getKey(), column.getValue());
+      }
+    }
+
+    private void add(String columnName, long count) {
+      if (columnName.equals(Bytes.toString(ACTIVITY_COLUMN))) {
+        activity += count;
+      } else if (columnName.startsWith(PROGRAM_COLUMN_PREFIX)) {
+        programs.add(columnName);
+      }
+    }
+
+    /**
+     * @return the number of audit messages
+     */
+    public long getActivity() {
+      return activity;
+    }
+
+    /**
+     * @return the number of distinct programs that accessed the namespace or entity
+     */
+    public long getProgramsCount() {
+      return programs.size();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.lib.AbstractDataset;
+import co.cask.cdap.api.dataset.module.EmbeddedDataset;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.dataset.table.Table;
+
+/**
+ * Counts the batches of audit messages ingested by each publisher instance, so that readers can tell whether
+ * any new data was ingested since they last computed a result. Each instance writes its own row, so that the
+ * instances never conflict.
+ */
+public final class IngestWatermarkTable extends AbstractDataset {
+  private static final byte[] COUNT_COLUMN = Bytes.toBytes("c");
+
+  private final Table watermarks;
+
+  public IngestWatermarkTable(DatasetSpecification spec, @EmbeddedDataset("watermarks") Table watermarks) {
+    super(spec.getName(), watermarks);
+    this.watermarks = watermarks;
+  }
+
+  /**
+   * Records that a publisher instance ingested a batch.
+   *
+   * @param instanceId the instance id of the publisher
+   */
+  public void advance(int instanceId) {
+    watermarks.increment(Bytes.toBytes(instanceId), COUNT_COLUMN, 1L);
+  }
+
+  /**
+   * @return a version of the ingested data, which increases whenever a batch is ingested by any instance
+   */
+  public long getVersion() {
+    long version = 0;
+    Scanner scanner = watermarks.scan(null, null);
+    try {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        Long count = row.getLong(COUNT_COLUMN);
+        if (count != null) {
+          version += count;
+        }
+      }
+    } finally {
+      scanner.close();
+    }
+    return version;
+  }
+}
@@ -20,28 +20,55 @@ import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.dataset.DatasetSpecification;
 import co.cask.cdap.api.dataset.lib.AbstractDataset;
 import co.cask.cdap.api.dataset.module.EmbeddedDataset;
+import co.cask.cdap.api.dataset.table.Get;
 import co.cask.cdap.api.dataset.table.Put;
 import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
 import co.cask.cdap.api.dataset.table.Table;
 import co.cask.cdap.api.metadata.MetadataEntity;
 import co.cask.cdap.proto.audit.AuditMessage;
 import co.cask.cdap.proto.audit.AuditType;
 import co.cask.cdap.proto.audit.payload.access.AccessPayload;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.cdap.proto.element.EntityType;
 import co.cask.tracker.utils.ParameterCheck;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /**
  * Stores timestamp of audit messages with AuditType access (read or write), truncate, update, and metadata_change
  * Rows hold data for individual entities. Timestamp of received message type are stored in each column.
  * Row key generated by getKey(). Column key is AuditType (lower case).
+ * <p>
+ * Row keys are \0 namespace \1 entity type \1 entity name, all lower case, so that the rows of a namespace and
+ * of an entity type are contiguous. Rows written before used the length prefixed keys of getLegacyKey(), which
+ * always start with a digit. Reads merge both rows of an entity until the legacy rows are migrated with
+ * migrateLegacyRows(), which then writes a marker row, so that reads no longer look for legacy rows.
  */
 public final class LatestEntityTable extends AbstractDataset {
+  private static final String READ_COLUMN = AccessType.READ.name().toLowerCase();
+  private static final byte[] KEY_PREFIX = new byte[] { 0 };
+  private static final String KEY_DELIMITER = "\1";
+  // Legacy keys start with the length of the namespace
+  private static final byte[] LEGACY_KEYS_START = Bytes.toBytes("0");
+  private static final byte[] LEGACY_KEYS_STOP = Bytes.toBytes(":");
+  // Lengths in legacy keys with more digits than this cannot be parsed as an int, and are longer than any key
+  private static final int MAX_LENGTH_DIGITS = 9;
+  // Starts with a byte that never starts the current or the legacy keys
+  private static final byte[] MIGRATED_ROW = Bytes.toBytes("\1migrated");
+  private static final byte[] MIGRATED_COLUMN = Bytes.toBytes("migrated");
 
   private final Table timeSinceTable;
+  // Whether the legacy rows are known to be migrated, which never changes back
+  private boolean legacyRowsMigrated;
 
   public LatestEntityTable(DatasetSpecification spec,
                            @EmbeddedDataset("timeSinceTable") Table timeSinceTable) {
@@ -50,57 +77,274 @@ public final class LatestEntityTable extends AbstractDataset {
   }
 
   public void write(AuditMessage auditMessage) throws IOException {
-    if (auditMessage.getType() == AuditType.CREATE || auditMessage.getType() == AuditType.DELETE) {
-      return;
-    }
-    MetadataEntity metadataEntity = auditMessage.getEntity();
-    if (!metadataEntity.containsKey(MetadataEntity.NAMESPACE)) {
-      throw
-        new IllegalStateException(String.format("Entity '%s' does not have a namespace " +
-                                                  "and was not written to LatestEntityTable",
-                                                metadataEntity));
-    }
-    if (ParameterCheck.isTrackerDataset(metadataEntity)) {
-      return;
+    write(Collections.singletonList(auditMessage));
+  }
+
+  /**
+   * Writes the times of a batch of audit messages. Hot entities show up many times in a batch, so the latest time
+   * of each entity and column is collected first, and each entity is written with a single put.
+   */
+  public void write(Collection<AuditMessage> auditMessages) throws IOException {
+    Map<List<String>, Map<String, Long>> latestTimes = new HashMap<>();
+    for (AuditMessage auditMessage : auditMessages) {
+      if (auditMessage.getType() == AuditType.CREATE || auditMessage.getType() == AuditType.DELETE) {
+        continue;
+      }
+      MetadataEntity metadataEntity = auditMessage.getEntity();
+      if (!metadataEntity.containsKey(MetadataEntity.NAMESPACE)) {
+        throw
+          new IllegalStateException(String.format("Entity '%s' does not have a namespace " +
+                                                    "and was not written to LatestEntityTable",
+                                                  metadataEntity));
+      }
+      if (ParameterCheck.isTrackerDataset(metadataEntity)) {
+        continue;
+      }
+      String namespace = metadataEntity.getValue(MetadataEntity.NAMESPACE);
+      String entityType = metadataEntity.getType();
+      String entityName = metadataEntity.getValue(entityType);
+      // Keys are case insensitive
+      List<String> entity = Arrays.asList(namespace.toLowerCase(), entityType.toLowerCase(),
+                                          entityName.toLowerCase());
+      String timeSinceType = auditMessage.getType().name().toLowerCase();
+      if (auditMessage.getType() == AuditType.ACCESS) {
+        timeSinceType = ((AccessPayload) auditMessage.getPayload()).getAccessType().name().toLowerCase();
+      }
+      Map<String, Long> times = latestTimes.get(entity);
+      if (times == null) {
+        times = new HashMap<>();
+        latestTimes.put(entity, times);
+      }
+      times.put(timeSinceType, max(times.get(timeSinceType), auditMessage.getTime() / 1000));
     }
-    String namespace = metadataEntity.getValue(MetadataEntity.NAMESPACE);
-    String entityType = metadataEntity.getType();
-    String entityName = metadataEntity.getValue(entityType);
-    String key = getKey(namespace, entityType, entityName);
-    String timeSinceType = auditMessage.getType().name().toLowerCase();
-    if (auditMessage.getType() == AuditType.ACCESS) {
-      timeSinceType = ((AccessPayload) auditMessage.getPayload()).getAccessType().name().toLowerCase();
+    for (Map.Entry<List<String>, Map<String, Long>> entry : latestTimes.entrySet()) {
+      List<String> entity = entry.getKey();
+      Put put = new Put(getKey(entity.get(0), entity.get(1), entity.get(2)));
+      for (Map.Entry<String, Long> time : entry.getValue().entrySet()) {
+        put.add(time.getKey(), time.getValue());
+      }
+      timeSinceTable.put(put);
     }
-    timeSinceTable.put(new Put(key).add(timeSinceType, auditMessage.getTime() / 1000));
   }
 
   public TimeSinceResult read(String namespace, String entityType, String entityName) {
-    String key = getKey(namespace, entityType, entityName);
-    Row row = timeSinceTable.get(key.getBytes());
+    Map<String, Long> times;
+    if (isLegacyMigrated()) {
+      times = merge(timeSinceTable.get(getKey(namespace, entityType, entityName)));
+    } else {
+      // Rows that were not migrated yet are still under their legacy key
+      List<Row> rows = timeSinceTable.get(Arrays.asList(new Get(getKey(namespace, entityType, entityName)),
+                                                        new Get(getLegacyKey(namespace, entityType, entityName))));
+      times = merge(rows.get(0), rows.get(1));
+    }
     TimeSinceResult timeSinceResult = new TimeSinceResult(namespace, entityType, entityName);
-    Map<byte[], byte[]> columnValues = row.getColumns();
-    for (byte[] column : columnValues.keySet()) {
-      timeSinceResult.addEventTime(Bytes.toString(column), row.getLong(column));
+    for (Map.Entry<String, Long> entry : times.entrySet()) {
+      timeSinceResult.addEventTime(entry.getKey(), entry.getValue());
     }
     return timeSinceResult;
   }
 
-  public Map<Entity, Long> getReadTimestamps(String namespace, List<Entity> entityList) {
+  /**
+   * Reads the time of the last read of all the datasets and streams of a namespace with a single scan, plus one
+   * scan of the legacy rows of the namespace until they are migrated.
+   *
+   * @return the time of the last read in seconds of each entity that was ever read. Entity types and names are lower
+   *         case, as they are stored.
+   */
+  public Map<Entity, Long> scanReadTimestamps(String namespace) {
     Map<Entity, Long> resultMap = new HashMap<>();
-    for (Entity  uniqueEntity: entityList) {
-      Map<String, Long> timeMap
-        = read(namespace, uniqueEntity.getEntityType(), uniqueEntity.getEntityName()).getTimeSinceEvents();
-      if (timeMap.containsKey("read")) {
-        resultMap.put(uniqueEntity, timeMap.get("read"));
+    byte[] prefix = getNamespacePrefix(namespace);
+    Scanner scanner = timeSinceTable.scan(prefix, Bytes.stopKeyForPrefix(prefix));
+    try {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        Long readTime = row.getLong(READ_COLUMN);
+        if (readTime == null) {
+          continue;
+        }
+        String entityKey = Bytes.toString(row.getRow(), prefix.length, row.getRow().length - prefix.length);
+        int delimiter = entityKey.indexOf(KEY_DELIMITER);
+        Entity entity = new Entity(entityKey.substring(0, delimiter), entityKey.substring(delimiter + 1));
+        if (isDatasetType(entity.getEntityType())) {
+          resultMap.put(entity, readTime);
+        }
       }
+    } finally {
+      scanner.close();
+    }
+    if (isLegacyMigrated()) {
+      return resultMap;
+    }
+
+    String legacyPrefix = getLegacyNamespacePrefix(namespace);
+    byte[] legacyPrefixBytes = Bytes.toBytes(legacyPrefix);
+    scanner = timeSinceTable.scan(legacyPrefixBytes, Bytes.stopKeyForPrefix(legacyPrefixBytes));
+    try {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        Long readTime = row.getLong(READ_COLUMN);
+        if (readTime == null) {
+          continue;
+        }
+        // Legacy keys of other namespaces can share the prefix, those do not parse as an entity
+        String[] parts = parseLegacyEntity(Bytes.toString(row.getRow()).substring(legacyPrefix.length()));
+        if (parts == null || !isDatasetType(parts[0])) {
+          continue;
+        }
+        Entity entity = new Entity(parts[0], parts[1]);
+        resultMap.put(entity, max(resultMap.get(entity), readTime));
+      }
+    } finally {
+      scanner.close();
     }
     return resultMap;
   }
 
-  private String getKey(String namespace, String entityType, String entityName) {
-    return String.format("%s%s%s%s%s%s",
-                         Integer.toString(namespace.length()), namespace.toLowerCase(),
-                         Integer.toString(entityType.length()), entityType.toLowerCase(),
-                         Integer.toString(entityName.length()), entityName.toLowerCase());
+  /**
+   * @return whether all the legacy rows are migrated
+   */
+  public boolean isLegacyMigrated() {
+    if (!legacyRowsMigrated) {
+      legacyRowsMigrated = timeSinceTable.get(MIGRATED_ROW, MIGRATED_COLUMN) != null;
+    }
+    return legacyRowsMigrated;
+  }
+
+  /**
+   * Moves rows from their legacy key to their current key, keeping the latest time of each column. Only one
+   * writer should migrate at a time, since concurrent migrations of the same rows conflict. Once no legacy rows are
+   * left, writes the marker that {@link #isLegacyMigrated} reads.
+   *
+   * @param limit the maximum number of rows to migrate
+   * @return the number of rows migrated
+   */
+  public int migrateLegacyRows(int limit) {
+    int migrated = 0;
+    Scanner scanner = timeSinceTable.scan(LEGACY_KEYS_START, LEGACY_KEYS_STOP);
+    try {
+      Row row;
+      while (migrated < limit && (row = scanner.next()) != null) {
+        String[] parts = parseLegacyKey(Bytes.toString(row.getRow()));
+        if (parts == null) {
+          // Not written by this table, so no reader can find it either
+          continue;
+        }
+        byte[] key = getKey(parts[0], parts[1], parts[2]);
+        Put put = new Put(key);
+        for (Map.Entry<String, Long> entry : merge(timeSinceTable.get(key), row).entrySet()) {
+          put.add(entry.getKey(), entry.getValue());
+        }
+        timeSinceTable.put(put);
+        timeSinceTable.delete(row.getRow());
+        migrated++;
+      }
+    } finally {
+      scanner.close();
+    }
+    if (migrated == 0 && limit > 0) {
+      timeSinceTable.put(MIGRATED_ROW, MIGRATED_COLUMN, Bytes.toBytes(true));
+    }
+    return migrated;
+  }
+
+  /**
+   * @return the latest time of each column of the rows
+   */
+  private static Map<String, Long> merge(Row... rows) {
+    Map<String, Long> times = new HashMap<>();
+    for (Row row : rows) {
+      for (Map.Entry<byte[], byte[]> column : row.getColumns().entrySet()) {
+        String columnName = Bytes.toString(column.getKey());
+        times.put(columnName, max(times.get(columnName), Bytes.toLong(column.getValue())));
+      }
+    }
+    return times;
+  }
+
+  @Nullable
+  private static Long max(@Nullable Long first, @Nullable Long second) {
+    if (first == null) {
+      return second;
+    }
+    return second == null ? first : Math.max(first, second);
+  }
+
+  private static boolean isDatasetType(String entityType) {
+    return entityType.equals(EntityType.DATASET.name().toLowerCase())
+      || entityType.equals(EntityType.STREAM.name().toLowerCase());
+  }
+
+  /**
+   * Parses a legacy key into its namespace, entity type and entity name.
+   *
+   * @return the parts of the key, or null if the given string is not a legacy key
+   */
+  @VisibleForTesting
+  @Nullable
+  static String[] parseLegacyKey(String key) {
+    // Namespaces can start with digits, so try each length prefix that leaves a valid entity type and name
+    for (int digits = 1; digits <= MAX_LENGTH_DIGITS && digits < key.length()
+      && Character.isDigit(key.charAt(digits - 1)); digits++) {
+      int namespaceEnd = digits + Integer.parseInt(key.substring(0, digits));
+      if (namespaceEnd > key.length()) {
+        break;
+      }
+      String[] entity = parseLegacyEntity(key.substring(namespaceEnd));
+      if (entity != null) {
+        return new String[] { key.substring(digits, namespaceEnd), entity[0], entity[1] };
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parses the entity type and name parts of a legacy key.
+   *
+   * @return the entity type and name, or null if the given string is not made of an entity type and name
+   */
+  @VisibleForTesting
+  @Nullable
+  static String[] parseLegacyEntity(String key) {
+    // Entity types never start with digits
+    int digits = 0;
+    while (digits < key.length() && Character.isDigit(key.charAt(digits))) {
+      digits++;
+    }
+    if (digits == 0 || digits > MAX_LENGTH_DIGITS) {
+      return null;
+    }
+    int typeEnd = digits + Integer.parseInt(key.substring(0, digits));
+    if (typeEnd > key.length()) {
+      return null;
+    }
+    // Names can start with digits, so find the length prefix that matches the length of the rest of the key
+    String rest = key.substring(typeEnd);
+    for (int nameDigits = 1; nameDigits < rest.length(); nameDigits++) {
+      String nameLength = Integer.toString(rest.length() - nameDigits);
+      if (nameLength.length() == nameDigits && rest.startsWith(nameLength)) {
+        return new String[] { key.substring(digits, typeEnd), rest.substring(nameDigits) };
+      }
+    }
+    return null;
+  }
+
+  private static byte[] getNamespacePrefix(String namespace) {
+    return Bytes.add(KEY_PREFIX, Bytes.toBytes(namespace.toLowerCase() + KEY_DELIMITER));
+  }
+
+  private static byte[] getKey(String namespace, String entityType, String entityName) {
+    return Bytes.add(getNamespacePrefix(namespace),
+                     Bytes.toBytes(entityType.toLowerCase() + KEY_DELIMITER + entityName.toLowerCase()));
+  }
+
+  private static String getLegacyNamespacePrefix(String namespace) {
+    return Integer.toString(namespace.length()) + namespace.toLowerCase();
+  }
+
+  private static byte[] getLegacyKey(String namespace, String entityType, String entityName) {
+    return Bytes.toBytes(String.format("%s%s%s%s%s%s",
+                                       Integer.toString(namespace.length()), namespace.toLowerCase(),
+                                       Integer.toString(entityType.length()), entityType.toLowerCase(),
+                                       Integer.toString(entityName.length()), entityName.toLowerCase()));
   }
 }
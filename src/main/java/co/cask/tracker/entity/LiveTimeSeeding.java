@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Table;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of how far the history of the {@link AuditMetricsCube} was seeded into a table of counters that the
+ * publisher keeps up to date as audit messages are ingested.
+ * <p>
+ * The publisher only counts the messages of a namespace that are ingested from its live time on, which is set the
+ * first time the namespace is written and is always a whole hour. The history of the cube before it is added by
+ * {@link #seed}, outside of the ingestion transactions, one chunk per transaction, into rows of its own
+ * {@link #SEED_SHARD}. Until seeding is complete, the counters of a namespace are incomplete and {@link #isSeeded}
+ * returns false.
+ * <p>
+ * The live time and the time up to which the history was seeded are stored in a marker row per namespace, which
+ * starts with a byte that never starts the counter rows, so scans of the counters never reach it.
+ */
+final class LiveTimeSeeding {
+  // Seeding writes its own rows, so that it never conflicts with the publisher instances
+  static final int SEED_SHARD = -1;
+  private static final byte[] SEEDED_ROW_PREFIX = Bytes.toBytes("\0seeded\1");
+  private static final byte[] LIVE_COLUMN = Bytes.toBytes("live");
+  private static final byte[] SEEDED_COLUMN = Bytes.toBytes("seeded");
+  // Seeding waits this long after the live time, so that no transaction still writes to the cube before it
+  private static final long SEED_DELAY_SECONDS = TimeUnit.MINUTES.toSeconds(10L);
+  private static final long HOUR = TimeUnit.HOURS.toSeconds(1L);
+
+  /**
+   * Seeds the counters of a namespace from the history of the cube.
+   */
+  interface Seeder {
+
+    /**
+     * @return the time seeding starts from, which is the start of the first bucket the cube has data for before
+     * the live time, or the live time if it has none
+     */
+    long getStartTime(long liveTime);
+
+    /**
+     * Seeds the next chunk of the history of the cube.
+     *
+     * @param startTime the time up to which the history was seeded
+     * @param liveTime the live time of the namespace
+     * @return the time up to which the history is seeded after this chunk, at most the live time
+     */
+    long seed(long startTime, long liveTime);
+  }
+
+  private final Table table;
+  // Live times of the namespaces, as this instance has seen them committed
+  private final Map<String, Long> liveTimes;
+
+  LiveTimeSeeding(Table table) {
+    this.table = table;
+    this.liveTimes = new HashMap<>();
+  }
+
+  /**
+   * Returns the time from which the publisher counts the messages of a namespace, and sets it if it is not set yet.
+   * It is the start of the hour after the next one, so that a writer whose clock is behind does not ingest a message
+   * after it without seeing it. Concurrent writers that set it conflict on the marker row, so only one of them
+   * commits.
+   *
+   * @param liveTimesNow the live times set in the current transaction, which are only cached once the transaction
+   *                     is known to have committed
+   */
+  long getLiveTime(String namespace, Map<String, Long> liveTimesNow) {
+    Long liveTime = liveTimes.get(namespace);
+    if (liveTime == null) {
+      liveTime = liveTimesNow.get(namespace);
+    }
+    if (liveTime != null) {
+      return liveTime;
+    }
+    byte[] value = table.get(getSeededRow(namespace), LIVE_COLUMN);
+    if (value != null) {
+      liveTime = Bytes.toLong(value);
+      liveTimes.put(namespace, liveTime);
+      return liveTime;
+    }
+    long now = System.currentTimeMillis() / 1000;
+    liveTime = now - (now % HOUR) + 2 * HOUR;
+    table.put(getSeededRow(namespace), LIVE_COLUMN, Bytes.toBytes(liveTime));
+    liveTimesNow.put(namespace, liveTime);
+    return liveTime;
+  }
+
+  void setLiveTime(String namespace, long liveTime) {
+    table.put(getSeededRow(namespace), LIVE_COLUMN, Bytes.toBytes(liveTime));
+  }
+
+  /**
+   * @return whether the history of the cube was seeded into the counters of a namespace
+   */
+  boolean isSeeded(String namespace) {
+    Row marker = table.get(getSeededRow(namespace));
+    Long liveTime = marker.getLong(LIVE_COLUMN);
+    Long seededTime = marker.getLong(SEEDED_COLUMN);
+    return liveTime != null && seededTime != null && seededTime >= liveTime;
+  }
+
+  /**
+   * Seeds the next chunk of the history of the cube, up to the live time of the namespace. Seeding only starts a
+   * while after the live time, once the cube holds all the messages ingested before it.
+   *
+   * @return whether seeding is complete
+   */
+  boolean seed(String namespace, Seeder seeder) {
+    long liveTime = getLiveTime(namespace, new HashMap<String, Long>());
+    long now = System.currentTimeMillis() / 1000;
+    if (now < liveTime + SEED_DELAY_SECONDS) {
+      return false;
+    }
+    Long seededTime = table.get(getSeededRow(namespace)).getLong(SEEDED_COLUMN);
+    if (seededTime == null) {
+      seededTime = seeder.getStartTime(liveTime);
+    }
+    if (seededTime >= liveTime) {
+      table.put(getSeededRow(namespace), SEEDED_COLUMN, Bytes.toBytes(liveTime));
+      return true;
+    }
+    long endTime = seeder.seed(seededTime, liveTime);
+    table.put(getSeededRow(namespace), SEEDED_COLUMN, Bytes.toBytes(endTime));
+    return endTime >= liveTime;
+  }
+
+  /**
+   * Adds counts to the columns of a row of one shard.
+   */
+  void increment(byte[] rowKey, Map<String, Long> counts) {
+    byte[][] columns = new byte[counts.size()][];
+    long[] amounts = new long[columns.length];
+    int i = 0;
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      columns[i] = Bytes.toBytes(count.getKey());
+      amounts[i] = count.getValue();
+      i++;
+    }
+    table.increment(rowKey, columns, amounts);
+  }
+
+  private static byte[] getSeededRow(String namespace) {
+    return Bytes.add(SEEDED_ROW_PREFIX, Bytes.toBytes(namespace));
+  }
+}
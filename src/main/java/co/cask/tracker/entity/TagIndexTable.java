@@ -0,0 +1,280 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.lib.AbstractDataset;
+import co.cask.cdap.api.dataset.module.EmbeddedDataset;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.metadata.Metadata;
+import co.cask.cdap.api.metadata.MetadataEntity;
+import co.cask.cdap.api.metadata.MetadataScope;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.metadata.MetadataPayload;
+import co.cask.cdap.proto.element.EntityType;
+import co.cask.tracker.utils.ParameterCheck;
+import com.google.common.base.Splitter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * A local index of the user tags of the datasets and streams of each namespace, kept in sync with the metadata
+ * changes in the audit log, so that tags can be listed and counted without calling the metadata service.
+ * Rows are:
+ * <pre>
+ *   e \1 namespace \1 entity type \1 entity name                        one column per tag of the entity
+ *   t \1 namespace \1 lower case tag \1 tag \1 entity type \1 entity name  one row per tagged entity
+ *   d \1 namespace \1 entity type \1 entity name                        one column per tag last seen deleted
+ *   s \1 namespace                                                      marks a namespace as seeded
+ * </pre>
+ * Tag rows are ordered by lower case tag, so a case insensitive prefix search is a range scan. The deleted tags
+ * of an entity let {@link #seed} tell which tags of its snapshot were deleted since the snapshot was taken.
+ */
+public class TagIndexTable extends AbstractDataset {
+  private static final String KEY_DELIMITER = "\1";
+  private static final String ENTITY_PREFIX = "e" + KEY_DELIMITER;
+  private static final String TAG_PREFIX = "t" + KEY_DELIMITER;
+  private static final String DELETED_PREFIX = "d" + KEY_DELIMITER;
+  private static final String SEEDED_PREFIX = "s" + KEY_DELIMITER;
+  private static final byte[] PRESENT = new byte[] { 1 };
+
+  private final Table tagIndex;
+
+  public TagIndexTable(DatasetSpecification spec, @EmbeddedDataset("tagIndex") Table tagIndex) {
+    super(spec.getName(), tagIndex);
+    this.tagIndex = tagIndex;
+  }
+
+  /**
+   * Applies the changes to the user tags of datasets and streams in a batch of audit messages.
+   */
+  public void write(Collection<AuditMessage> auditMessages) {
+    for (AuditMessage auditMessage : auditMessages) {
+      if (auditMessage.getType() != AuditType.METADATA_CHANGE
+        || !(auditMessage.getPayload() instanceof MetadataPayload)) {
+        continue;
+      }
+      MetadataEntity metadataEntity = auditMessage.getEntity();
+      String entityType = metadataEntity.getType().toLowerCase();
+      if (!metadataEntity.containsKey(MetadataEntity.NAMESPACE) || !isDatasetType(entityType)
+        || ParameterCheck.isTrackerDataset(metadataEntity)) {
+        continue;
+      }
+      String namespace = metadataEntity.getValue(MetadataEntity.NAMESPACE);
+      String entityName = metadataEntity.getValue(entityType);
+      MetadataPayload payload = (MetadataPayload) auditMessage.getPayload();
+      removeTags(namespace, entityType, entityName, getUserTags(payload.getDeletions()));
+      addTags(namespace, entityType, entityName, getUserTags(payload.getAdditions()));
+    }
+  }
+
+  /**
+   * Adds tags to an entity. Tags the entity already has are left as they are.
+   */
+  public void addTags(String namespace, String entityType, String entityName, Collection<String> tags) {
+    if (tags.isEmpty()) {
+      return;
+    }
+    byte[] entityRow = getEntityRow(namespace, entityType, entityName);
+    byte[] deletedRow = getDeletedRow(namespace, entityType, entityName);
+    Row row = tagIndex.get(entityRow);
+    Row deleted = tagIndex.get(deletedRow);
+    for (String tag : tags) {
+      if (row.get(tag) == null) {
+        tagIndex.put(entityRow, Bytes.toBytes(tag), PRESENT);
+        tagIndex.put(getTagRow(namespace, tag, entityType, entityName), Bytes.toBytes(tag), PRESENT);
+      }
+      if (deleted.get(tag) != null) {
+        tagIndex.delete(deletedRow, Bytes.toBytes(tag));
+      }
+    }
+  }
+
+  /**
+   * Removes tags from an entity, and records them as deleted, including the tags the index does not have yet, so
+   * that seeding does not add them back.
+   */
+  public void removeTags(String namespace, String entityType, String entityName, Collection<String> tags) {
+    if (tags.isEmpty()) {
+      return;
+    }
+    byte[] entityRow = getEntityRow(namespace, entityType, entityName);
+    byte[] deletedRow = getDeletedRow(namespace, entityType, entityName);
+    Row row = tagIndex.get(entityRow);
+    for (String tag : tags) {
+      if (row.get(tag) != null) {
+        tagIndex.delete(entityRow, Bytes.toBytes(tag));
+        tagIndex.delete(getTagRow(namespace, tag, entityType, entityName));
+      }
+      tagIndex.put(deletedRow, Bytes.toBytes(tag), PRESENT);
+    }
+  }
+
+  /**
+   * @return whether the index of a namespace was seeded with the tags that existed before it was maintained
+   */
+  public boolean isSeeded(String namespace) {
+    return tagIndex.get(Bytes.toBytes(SEEDED_PREFIX + namespace), PRESENT) != null;
+  }
+
+  /**
+   * Seeds the index of a namespace with a snapshot of the tags of its entities. The snapshot may be older than the
+   * changes the index already applied, so tags are only added, and the tags that the index last saw deleted are
+   * skipped. A tag deleted and then added again after the snapshot is added when the addition is applied.
+   *
+   * @param entityTags the user tags of each dataset and stream of the namespace
+   */
+  public void seed(String namespace, Map<Entity, Set<String>> entityTags) {
+    for (Map.Entry<Entity, Set<String>> entry : entityTags.entrySet()) {
+      String entityType = entry.getKey().getEntityType().toLowerCase();
+      String entityName = entry.getKey().getEntityName();
+      Row deleted = tagIndex.get(getDeletedRow(namespace, entityType, entityName));
+      Set<String> tags = new HashSet<>();
+      for (String tag : entry.getValue()) {
+        if (deleted.get(tag) == null) {
+          tags.add(tag);
+        }
+      }
+      addTags(namespace, entityType, entityName, tags);
+    }
+    tagIndex.put(Bytes.toBytes(SEEDED_PREFIX + namespace), PRESENT, PRESENT);
+  }
+
+  /**
+   * @return the user tags of an entity
+   */
+  public Set<String> getEntityTags(String namespace, String entityType, String entityName) {
+    Set<String> tags = new HashSet<>();
+    for (byte[] column : tagIndex.get(getEntityRow(namespace, entityType, entityName)).getColumns().keySet()) {
+      tags.add(Bytes.toString(column));
+    }
+    return tags;
+  }
+
+  /**
+   * Counts the entities of each tag that starts with a prefix, ignoring case, with a single range scan.
+   *
+   * @return the number of datasets and streams of each matching tag
+   */
+  public Map<String, Integer> getTagCounts(String namespace, String prefix) {
+    return getTagCounts(namespace, prefix, null, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Counts the entities of a page of the tags that start with a prefix, ignoring case, with a single range scan.
+   * Tags are ordered by their lower case form, then by the tag itself.
+   *
+   * @param cursor the last tag of the previous page, or null to start from the first tag
+   * @param limit the maximum number of tags to return
+   * @return the number of datasets and streams of each tag of the page, in the order of the tags
+   */
+  public Map<String, Integer> getTagCounts(String namespace, String prefix, @Nullable String cursor, int limit) {
+    Map<String, Integer> tagCounts = new LinkedHashMap<>();
+    byte[] startKey = Bytes.toBytes(TAG_PREFIX + namespace + KEY_DELIMITER + prefix.toLowerCase());
+    byte[] stopKey = Bytes.stopKeyForPrefix(startKey);
+    if (cursor != null) {
+      byte[] cursorKey = Bytes.stopKeyForPrefix(Bytes.toBytes(TAG_PREFIX + namespace + KEY_DELIMITER
+                                                                + cursor.toLowerCase() + KEY_DELIMITER + cursor
+                                                                + KEY_DELIMITER));
+      if (Bytes.compareTo(cursorKey, startKey) > 0) {
+        startKey = cursorKey;
+      }
+    }
+    if (Bytes.compareTo(startKey, stopKey) < 0) {
+      countTags(startKey, stopKey, limit, tagCounts);
+    }
+    return tagCounts;
+  }
+
+  /**
+   * @return the number of datasets and streams of each of the given tags
+   */
+  public Map<String, Integer> getTagCounts(String namespace, Collection<String> tags) {
+    Map<String, Integer> tagCounts = new HashMap<>();
+    for (String tag : tags) {
+      tagCounts.put(tag, 0);
+      byte[] tagPrefix = Bytes.toBytes(TAG_PREFIX + namespace + KEY_DELIMITER + tag.toLowerCase() + KEY_DELIMITER
+                                         + tag + KEY_DELIMITER);
+      countTags(tagPrefix, Bytes.stopKeyForPrefix(tagPrefix), Integer.MAX_VALUE, tagCounts);
+    }
+    return tagCounts;
+  }
+
+  /**
+   * Adds the tag rows of a key range to the counts of their tags, until the counts hold a limit of tags.
+   */
+  private void countTags(byte[] startKey, byte[] stopKey, int limit, Map<String, Integer> tagCounts) {
+    Scanner scanner = tagIndex.scan(startKey, stopKey);
+    try {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        // The rest of the key is lower case tag \1 tag \1 entity type \1 entity name
+        Iterator<String> parts = Splitter.on(KEY_DELIMITER).split(Bytes.toString(row.getRow())).iterator();
+        parts.next();
+        parts.next();
+        parts.next();
+        String tag = parts.next();
+        Integer count = tagCounts.get(tag);
+        if (count == null && tagCounts.size() >= limit) {
+          break;
+        }
+        tagCounts.put(tag, count == null ? 1 : count + 1);
+      }
+    } finally {
+      scanner.close();
+    }
+  }
+
+  private static Set<String> getUserTags(@Nullable Map<MetadataScope, Metadata> metadata) {
+    if (metadata == null || metadata.get(MetadataScope.USER) == null) {
+      return Collections.emptySet();
+    }
+    return metadata.get(MetadataScope.USER).getTags();
+  }
+
+  private static boolean isDatasetType(String entityType) {
+    return EntityType.DATASET.name().equalsIgnoreCase(entityType)
+      || EntityType.STREAM.name().equalsIgnoreCase(entityType);
+  }
+
+  private static byte[] getEntityRow(String namespace, String entityType, String entityName) {
+    return Bytes.toBytes(ENTITY_PREFIX + namespace + KEY_DELIMITER + entityType.toLowerCase() + KEY_DELIMITER
+                           + entityName);
+  }
+
+  private static byte[] getDeletedRow(String namespace, String entityType, String entityName) {
+    return Bytes.toBytes(DELETED_PREFIX + namespace + KEY_DELIMITER + entityType.toLowerCase() + KEY_DELIMITER
+                           + entityName);
+  }
+
+  private static byte[] getTagRow(String namespace, String tag, String entityType, String entityName) {
+    return Bytes.toBytes(TAG_PREFIX + namespace + KEY_DELIMITER + tag.toLowerCase() + KEY_DELIMITER + tag
+                           + KEY_DELIMITER + entityType.toLowerCase() + KEY_DELIMITER + entityName);
+  }
+}
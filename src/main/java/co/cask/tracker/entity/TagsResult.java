@@ -24,6 +24,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import javax.annotation.Nullable;
 
 /**
  *  A POJO to hold the result of the get tags request
@@ -34,6 +35,8 @@ public final class TagsResult {
   private int user;
   private Map<String, Integer> preferredTags;
   private Map<String, Integer> userTags;
+  // Cursor to read the page following this one, null if this is the last page
+  private String nextCursor;
 
   public TagsResult(int preferred, Map<String, Integer> preferredTags, int user, Map<String, Integer> userTags) {
     this.preferred = preferred;
@@ -65,6 +68,10 @@ public final class TagsResult {
     this.userTags = sortByComparator(userTags);
   }
 
+  public void setNextCursor(@Nullable String nextCursor) {
+    this.nextCursor = nextCursor;
+  }
+
   public int getPreferredSize() {
     return preferred;
   }
@@ -81,6 +88,11 @@ public final class TagsResult {
     return userTags;
   }
 
+  @Nullable
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
   private static Map<String, Integer> sortByComparator(Map<String, Integer> unsortedMap) {
     List<Entry<String, Integer>> list = new LinkedList<>(unsortedMap.entrySet());
     Collections.sort(list, new Comparator<Entry<String, Integer>>() {
@@ -0,0 +1,44 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+/**
+ * A POJO to hold the tracker meter score of an entity.
+ */
+public final class TrackerScoreResult {
+  private final String entityType;
+  private final String entityName;
+  private final int score;
+
+  public TrackerScoreResult(String entityType, String entityName, int score) {
+    this.entityType = entityType;
+    this.entityName = entityName;
+    this.score = score;
+  }
+
+  public String getEntityType() {
+    return entityType;
+  }
+
+  public String getEntityName() {
+    return entityName;
+  }
+
+  public int getScore() {
+    return score;
+  }
+}
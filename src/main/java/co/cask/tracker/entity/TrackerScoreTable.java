@@ -0,0 +1,241 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.lib.AbstractDataset;
+import co.cask.cdap.api.dataset.module.EmbeddedDataset;
+import co.cask.cdap.api.dataset.table.Get;
+import co.cask.cdap.api.dataset.table.Put;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.dataset.table.Table;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Precomputed tracker meter scores of the datasets and streams of each namespace. The scores of a namespace are
+ * replaced whenever they are refreshed, rewriting only the entities whose score changed, and are stored along with
+ * the ingest version they were computed at, so that readers can tell whether they are stale. Rows are:
+ * <pre>
+ *   m \1 namespace                                        the ingest version and time of the last refresh
+ *   s \1 namespace \1 entity type \1 entity name          the score of an entity
+ *   a \1 namespace \1 score \1 entity type \1 entity name   index in ascending order of score
+ *   d \1 namespace \1 ~score \1 entity type \1 entity name  index in descending order of score
+ * </pre>
+ * Scores in index keys are encoded so that their byte order is their numeric order.
+ */
+public class TrackerScoreTable extends AbstractDataset {
+  private static final String KEY_DELIMITER = "\1";
+  private static final byte[] META_PREFIX = Bytes.toBytes("m" + KEY_DELIMITER);
+  private static final byte[] SCORE_PREFIX = Bytes.toBytes("s" + KEY_DELIMITER);
+  private static final byte[] ASCENDING_PREFIX = Bytes.toBytes("a" + KEY_DELIMITER);
+  private static final byte[] DESCENDING_PREFIX = Bytes.toBytes("d" + KEY_DELIMITER);
+  private static final byte[] SCORE_COLUMN = Bytes.toBytes("s");
+  private static final byte[] VERSION_COLUMN = Bytes.toBytes("v");
+  private static final byte[] TIME_COLUMN = Bytes.toBytes("t");
+
+  private final Table scores;
+
+  public TrackerScoreTable(DatasetSpecification spec, @EmbeddedDataset("scores") Table scores) {
+    super(spec.getName(), scores);
+    this.scores = scores;
+  }
+
+  /**
+   * @return the ingest version the scores of a namespace were computed at, or null if they were never computed
+   */
+  @Nullable
+  public Long getVersion(String namespace) {
+    return getMetaValue(namespace, VERSION_COLUMN);
+  }
+
+  /**
+   * @return the time in seconds the scores of a namespace were last computed at, or null if they were never computed
+   */
+  @Nullable
+  public Long getRefreshTime(String namespace) {
+    return getMetaValue(namespace, TIME_COLUMN);
+  }
+
+  /**
+   * Replaces all the scores of a namespace, a chunk at a time, so that no transaction writes the rows of all the
+   * entities of a large namespace. Only the rows of the entities whose score changed, or that no longer have a score,
+   * are written. The version is written with the last chunk, so the scores are stale until all of them are replaced.
+   *
+   * @param namespace the namespace of the entities
+   * @param version the ingest version the scores were computed at
+   * @param entityScores the score of each dataset and stream of the namespace
+   * @param limit the maximum number of entities whose rows are written
+   * @return whether all the scores are replaced
+   */
+  public boolean replace(String namespace, long version, Map<Entity, Integer> entityScores, int limit) {
+    Map<Entity, Integer> currentScores = scanScores(namespace);
+    int written = 0;
+    for (Map.Entry<Entity, Integer> entry : currentScores.entrySet()) {
+      Integer score = entityScores.get(entry.getKey());
+      if (score == null || !score.equals(entry.getValue())) {
+        if (written == limit) {
+          return false;
+        }
+        delete(namespace, entry.getKey(), entry.getValue());
+        written++;
+      }
+    }
+    for (Map.Entry<Entity, Integer> entry : entityScores.entrySet()) {
+      if (!entry.getValue().equals(currentScores.get(entry.getKey()))) {
+        if (written == limit) {
+          return false;
+        }
+        put(namespace, entry.getKey(), entry.getValue());
+        written++;
+      }
+    }
+    scores.put(new Put(getMetaRow(namespace))
+                 .add(VERSION_COLUMN, version)
+                 .add(TIME_COLUMN, System.currentTimeMillis() / 1000));
+    return true;
+  }
+
+  /**
+   * Reads the scores of a list of entities with a single multi-get.
+   *
+   * @return the score of each entity, which is 0 for entities that have no score
+   */
+  public Map<Entity, Integer> getScores(String namespace, List<Entity> entityList) {
+    Map<Entity, Integer> resultMap = new HashMap<>();
+    if (entityList.isEmpty()) {
+      return resultMap;
+    }
+    List<Get> gets = new ArrayList<>(entityList.size());
+    for (Entity entity : entityList) {
+      gets.add(new Get(getScoreRow(namespace, entity), SCORE_COLUMN));
+    }
+    // Rows are returned in the order of the gets
+    Iterator<Entity> entities = entityList.iterator();
+    for (Row row : scores.get(gets)) {
+      Integer score = row.getInt(SCORE_COLUMN);
+      resultMap.put(entities.next(), score == null ? 0 : score);
+    }
+    return resultMap;
+  }
+
+  /**
+   * @return the entities of a namespace with the highest scores, in descending order of score
+   */
+  public List<TrackerScoreResult> getTopScores(String namespace, int limit) {
+    return scanIndex(DESCENDING_PREFIX, namespace, limit);
+  }
+
+  /**
+   * @return the entities of a namespace with the lowest scores, in ascending order of score
+   */
+  public List<TrackerScoreResult> getBottomScores(String namespace, int limit) {
+    return scanIndex(ASCENDING_PREFIX, namespace, limit);
+  }
+
+  /**
+   * @return the score of each entity of a namespace that has one
+   */
+  private Map<Entity, Integer> scanScores(String namespace) {
+    Map<Entity, Integer> results = new HashMap<>();
+    byte[] prefix = getNamespacePrefix(SCORE_PREFIX, namespace);
+    Scanner scanner = scores.scan(prefix, Bytes.stopKeyForPrefix(prefix));
+    try {
+      Row row;
+      while ((row = scanner.next()) != null) {
+        byte[] rowKey = row.getRow();
+        String entityKey = Bytes.toString(rowKey, prefix.length, rowKey.length - prefix.length);
+        int delimiter = entityKey.indexOf(KEY_DELIMITER);
+        results.put(new Entity(entityKey.substring(0, delimiter), entityKey.substring(delimiter + 1)),
+                    row.getInt(SCORE_COLUMN));
+      }
+    } finally {
+      scanner.close();
+    }
+    return results;
+  }
+
+  private void put(String namespace, Entity entity, int score) {
+    byte[] value = Bytes.toBytes(score);
+    scores.put(getScoreRow(namespace, entity), SCORE_COLUMN, value);
+    scores.put(getIndexRow(ASCENDING_PREFIX, namespace, getSortKey(score), entity), SCORE_COLUMN, value);
+    scores.put(getIndexRow(DESCENDING_PREFIX, namespace, ~getSortKey(score), entity), SCORE_COLUMN, value);
+  }
+
+  private void delete(String namespace, Entity entity, int score) {
+    scores.delete(getScoreRow(namespace, entity));
+    scores.delete(getIndexRow(ASCENDING_PREFIX, namespace, getSortKey(score), entity));
+    scores.delete(getIndexRow(DESCENDING_PREFIX, namespace, ~getSortKey(score), entity));
+  }
+
+  // Flipping the sign bit makes the byte order of the score its numeric order, complementing reverses it
+  private static int getSortKey(int score) {
+    return score ^ Integer.MIN_VALUE;
+  }
+
+  private List<TrackerScoreResult> scanIndex(byte[] indexPrefix, String namespace, int limit) {
+    List<TrackerScoreResult> results = new ArrayList<>();
+    byte[] prefix = getNamespacePrefix(indexPrefix, namespace);
+    Scanner scanner = scores.scan(prefix, Bytes.stopKeyForPrefix(prefix));
+    try {
+      Row row;
+      while (results.size() < limit && (row = scanner.next()) != null) {
+        byte[] rowKey = row.getRow();
+        int entityOffset = prefix.length + Bytes.SIZEOF_INT + KEY_DELIMITER.length();
+        String entityKey = Bytes.toString(rowKey, entityOffset, rowKey.length - entityOffset);
+        int delimiter = entityKey.indexOf(KEY_DELIMITER);
+        results.add(new TrackerScoreResult(entityKey.substring(0, delimiter), entityKey.substring(delimiter + 1),
+                                           row.getInt(SCORE_COLUMN)));
+      }
+    } finally {
+      scanner.close();
+    }
+    return results;
+  }
+
+  @Nullable
+  private Long getMetaValue(String namespace, byte[] column) {
+    byte[] value = scores.get(getMetaRow(namespace), column);
+    return value == null ? null : Bytes.toLong(value);
+  }
+
+  private static byte[] getMetaRow(String namespace) {
+    return Bytes.add(META_PREFIX, Bytes.toBytes(namespace));
+  }
+
+  private static byte[] getNamespacePrefix(byte[] prefix, String namespace) {
+    return Bytes.add(prefix, Bytes.toBytes(namespace + KEY_DELIMITER));
+  }
+
+  private static byte[] getScoreRow(String namespace, Entity entity) {
+    return Bytes.add(getNamespacePrefix(SCORE_PREFIX, namespace),
+                     Bytes.toBytes(entity.getEntityType() + KEY_DELIMITER + entity.getEntityName()));
+  }
+
+  private static byte[] getIndexRow(byte[] indexPrefix, String namespace, int sortKey, Entity entity) {
+    return Bytes.add(getNamespacePrefix(indexPrefix, namespace),
+                     Bytes.add(Bytes.toBytes(sortKey), Bytes.toBytes(KEY_DELIMITER)),
+                     Bytes.toBytes(entity.getEntityType() + KEY_DELIMITER + entity.getEntityName()));
+  }
+}
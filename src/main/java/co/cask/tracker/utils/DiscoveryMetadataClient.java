@@ -18,6 +18,7 @@ package co.cask.tracker.utils;
 
 
 import co.cask.cdap.api.data.schema.Schema;
+import co.cask.cdap.api.metadata.Metadata;
 import co.cask.cdap.api.metadata.MetadataScope;
 import co.cask.cdap.api.service.http.HttpServiceRequest;
 import co.cask.cdap.client.MetaClient;
@@ -42,11 +43,18 @@ import co.cask.common.http.HttpRequest;
 import co.cask.common.http.HttpRequests;
 import co.cask.common.http.HttpResponse;
 import co.cask.tracker.DataDictionaryHandler;
+import co.cask.tracker.entity.Entity;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.twill.discovery.Discoverable;
 import org.apache.twill.discovery.DiscoveryServiceClient;
 import org.apache.twill.discovery.ZKDiscoveryService;
@@ -61,13 +69,24 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -82,12 +101,32 @@ public class DiscoveryMetadataClient extends AbstractMetadataClient {
   private static final int BASE_DELAY = 500;
   private static final int MAX_DELAY = 2000;
   private static final Logger LOG = LoggerFactory.getLogger(DiscoveryMetadataClient.class);
+  // Bounds the concurrent metadata lookups of all the requests of this service instance
+  private static final int TAG_LOOKUP_THREADS = 8;
+  // Bounds the metadata lookups each request has in flight, so that one request cannot take over the pool
+  private static final int MAX_TAG_LOOKUPS_PER_REQUEST = 4;
+  private static final long TAG_LOOKUP_TIMEOUT_SECONDS = 30;
+  private static final ExecutorService TAG_LOOKUP_EXECUTOR =
+    Executors.newFixedThreadPool(TAG_LOOKUP_THREADS, new ThreadFactoryBuilder()
+      .setDaemon(true)
+      .setNameFormat("tracker-tag-lookup-%d")
+      .build());
+
+  // How long the client picked for an endpoint is reused before the router is checked again
+  private static final long ENDPOINT_HEALTH_EXPIRY_SECONDS = 60;
+  private static final int MAX_ENDPOINTS = 16;
 
   private static volatile DiscoveryMetadataClient client;
+  // The client picked for each host and port requests were addressed to
+  private static final Cache<String, DiscoveryMetadataClient> ENDPOINT_CLIENTS = CacheBuilder.newBuilder()
+    .maximumSize(MAX_ENDPOINTS)
+    .expireAfterWrite(ENDPOINT_HEALTH_EXPIRY_SECONDS, TimeUnit.SECONDS)
+    .build();
 
   private final int mode;
   private final Supplier<EndpointStrategy> endpointStrategySupplier;
   private final ClientConfig clientConfig;
+  private final RESTClient restClient;
 
   private DiscoveryMetadataClient(final DiscoveryServiceClient discoveryClient) {
     this.endpointStrategySupplier = Suppliers.memoize(new Supplier<EndpointStrategy>() {
@@ -97,6 +136,7 @@ public class DiscoveryMetadataClient extends AbstractMetadataClient {
       }
     });
     this.clientConfig = null;
+    this.restClient = null;
     this.mode = DISCOVERY;
   }
 
@@ -104,13 +144,46 @@ public class DiscoveryMetadataClient extends AbstractMetadataClient {
     this.endpointStrategySupplier = null;
     // simply make a copy, to ensure that the ClientConfig instance we use is never modified
     this.clientConfig = new ClientConfig.Builder(clientConfig).build();
+    this.restClient = new RESTClient(this.clientConfig);
     this.mode = ROUTER;
   }
 
+  /**
+   * Returns the client for the host and port a request was addressed to. Whether the router can be reached there is
+   * checked once, and the resulting client is reused by the requests to that endpoint until the check expires, or
+   * until a request through it fails. If the router cannot be reached, a client with the default configuration is
+   * returned, which is not reused, so that the router is checked again by the next request.
+   */
   public static DiscoveryMetadataClient getInstance(HttpServiceRequest request,
-                                                    String zookeeperQuorum) throws UnauthorizedException {
+                                                    final String zookeeperQuorum) throws UnauthorizedException {
+    final String hostport = Objects.firstNonNull(request.getHeader("host"), request.getHeader("Host"));
+    try {
+      return ENDPOINT_CLIENTS.get(hostport, new Callable<DiscoveryMetadataClient>() {
+        @Override
+        public DiscoveryMetadataClient call() throws Exception {
+          return createInstance(hostport, zookeeperQuorum);
+        }
+      });
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        ClientConfig config = ClientConfig.getDefault();
+        LOG.debug("Got error while pinging router. Falling back to default client config: " + config, cause);
+        return new DiscoveryMetadataClient(config);
+      }
+      Throwables.propagateIfInstanceOf(cause, UnauthorizedException.class);
+      throw Throwables.propagate(cause);
+    } catch (UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * @throws IOException if the router cannot be reached at the host and port
+   */
+  private static DiscoveryMetadataClient createInstance(String hostport, String zookeeperQuorum)
+    throws IOException, UnauthorizedException {
     try {
-      String hostport = Objects.firstNonNull(request.getHeader("host"), request.getHeader("Host"));
       LOG.info("Creating ConnectionConfig using host and port {}", hostport);
       String hostName = hostport.split(":")[0];
       int port = Integer.parseInt(hostport.split(":")[1]);
@@ -119,15 +192,9 @@ public class DiscoveryMetadataClient extends AbstractMetadataClient {
         .setPort(port)
         .build();
       ClientConfig config = ClientConfig.builder().setConnectionConfig(connectionConfig).build();
-      try {
-        new MetaClient(config).ping();
-      } catch (IOException e) {
-        config = ClientConfig.getDefault();
-        LOG.debug("Got error while pinging router. Falling back to default client config: " + config, e);
-      }
-      return new DiscoveryMetadataClient(config);
-
+      new MetaClient(config).ping();
       // create it based upon ClientConfig if you don't get an exception
+      return new DiscoveryMetadataClient(config);
     } catch (UnauthenticatedException e) {
       if (client != null) {
         return client;
@@ -165,10 +232,16 @@ public class DiscoveryMetadataClient extends AbstractMetadataClient {
   @Override
   protected HttpResponse execute(HttpRequest request, int... allowedErrorCodes)
     throws IOException, UnauthenticatedException, UnauthorizedException {
-    if (mode == DISCOVERY) {
-      return HttpRequests.execute(request);
-    } else {
-      return new RESTClient(clientConfig).execute(request, clientConfig.getAccessToken());
+    try {
+      if (mode == DISCOVERY) {
+        return HttpRequests.execute(request);
+      } else {
+        return restClient.execute(request, clientConfig.getAccessToken());
+      }
+    } catch (IOException e) {
+      // The endpoint this client was picked for may be gone, so the next request to it picks a client again
+      ENDPOINT_CLIENTS.asMap().values().removeAll(Collections.singleton(this));
+      throw e;
     }
   }
 
@@ -200,25 +273,91 @@ public class DiscoveryMetadataClient extends AbstractMetadataClient {
     throw new ServiceUnavailableException(Constants.Service.METADATA_SERVICE);
   }
 
-  public int getEntityNum(String tag, NamespaceId namespace)
-    throws IOException, UnauthenticatedException, NotFoundException, BadRequestException, UnauthorizedException {
-    return searchMetadata(
-      namespace, tag,
-      ImmutableSet.of(EntityTypeSimpleName.DATASET, EntityTypeSimpleName.STREAM)).getResults().size();
-  }
-
-  public Set<String> getTags(NamespaceId namespace)
+  /**
+   * Looks up the user tags of the datasets and streams of a namespace. The entities are found with a single
+   * metadata search, which carries their tags. The tags of entities whose search result does not carry metadata are
+   * looked up concurrently, with at most {@link #MAX_TAG_LOOKUPS_PER_REQUEST} lookups in flight per call so that
+   * one call cannot take over the shared pool, and within {@link #TAG_LOOKUP_TIMEOUT_SECONDS} in total.
+   *
+   * @return the user tags of each entity in the namespace
+   */
+  public Map<Entity, Set<String>> getEntityTags(NamespaceId namespace)
     throws IOException, UnauthenticatedException, NotFoundException, BadRequestException, UnauthorizedException {
     Set<MetadataSearchResultRecord> metadataSet =
       searchMetadata(
         namespace, "*",
         ImmutableSet.of(EntityTypeSimpleName.DATASET, EntityTypeSimpleName.STREAM)).getResults();
-    Set<String> tagSet = new HashSet<>();
-    for (MetadataSearchResultRecord mdsr : metadataSet) {
-      Set<String> set = getTags(mdsr.getEntityId(), MetadataScope.USER);
-      tagSet.addAll(set);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TAG_LOOKUP_TIMEOUT_SECONDS);
+    Map<Entity, Set<String>> entityTags = new HashMap<>();
+    Deque<Map.Entry<Entity, Future<Set<String>>>> lookups = new ArrayDeque<>();
+    try {
+      for (final MetadataSearchResultRecord mdsr : metadataSet) {
+        Entity entity = new Entity(mdsr.getEntityId().getEntityType().name().toLowerCase(),
+                                   mdsr.getEntityId().getEntityName());
+        Set<String> tags = getUserTags(mdsr);
+        if (tags != null) {
+          entityTags.put(entity, tags);
+          continue;
+        }
+        if (lookups.size() >= MAX_TAG_LOOKUPS_PER_REQUEST) {
+          Map.Entry<Entity, Future<Set<String>>> lookup = lookups.removeFirst();
+          entityTags.put(lookup.getKey(), getTagLookup(lookup.getValue(), deadline));
+        }
+        Future<Set<String>> future = TAG_LOOKUP_EXECUTOR.submit(new Callable<Set<String>>() {
+          @Override
+          public Set<String> call() throws Exception {
+            return getTags(mdsr.getEntityId(), MetadataScope.USER);
+          }
+        });
+        lookups.addLast(new AbstractMap.SimpleImmutableEntry<>(entity, future));
+      }
+      while (!lookups.isEmpty()) {
+        Map.Entry<Entity, Future<Set<String>>> lookup = lookups.removeFirst();
+        entityTags.put(lookup.getKey(), getTagLookup(lookup.getValue(), deadline));
+      }
+    } finally {
+      // Does not leave lookups behind if one of them failed or timed out
+      for (Map.Entry<Entity, Future<Set<String>>> lookup : lookups) {
+        lookup.getValue().cancel(true);
+      }
+    }
+    return entityTags;
+  }
+
+  /**
+   * @return the user tags carried by a metadata search result, or null if it does not carry any metadata
+   */
+  @VisibleForTesting
+  @Nullable
+  static Set<String> getUserTags(MetadataSearchResultRecord mdsr) {
+    Map<MetadataScope, Metadata> metadata = mdsr.getMetadata();
+    if (metadata == null || metadata.isEmpty()) {
+      return null;
+    }
+    // Results that carry metadata have no user scope entry when the entity has no user metadata
+    Metadata userMetadata = metadata.get(MetadataScope.USER);
+    return userMetadata == null ? Collections.<String>emptySet() : new HashSet<>(userMetadata.getTags());
+  }
+
+  private static Set<String> getTagLookup(Future<Set<String>> future, long deadline)
+    throws IOException, UnauthenticatedException, NotFoundException, BadRequestException, UnauthorizedException {
+    try {
+      return future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while looking up tags", e);
+    } catch (TimeoutException e) {
+      throw new IOException(String.format("Timed out after %d seconds while looking up tags",
+                                          TAG_LOOKUP_TIMEOUT_SECONDS), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.propagateIfInstanceOf(cause, IOException.class);
+      Throwables.propagateIfInstanceOf(cause, UnauthenticatedException.class);
+      Throwables.propagateIfInstanceOf(cause, NotFoundException.class);
+      Throwables.propagateIfInstanceOf(cause, BadRequestException.class);
+      Throwables.propagateIfInstanceOf(cause, UnauthorizedException.class);
+      throw Throwables.propagate(cause);
     }
-    return tagSet;
   }
 
 
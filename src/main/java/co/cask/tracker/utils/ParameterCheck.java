@@ -22,6 +22,7 @@ import co.cask.cdap.proto.element.EntityType;
 import co.cask.cdap.proto.id.EntityId;
 import co.cask.tracker.TrackerApp;
 import co.cask.tracker.config.AuditLogConfig;
+import co.cask.tracker.entity.AuditMetricsCube;
 import com.google.common.base.Strings;
 
 import java.util.concurrent.TimeUnit;
@@ -35,6 +36,10 @@ public class ParameterCheck {
   // Error messages
   public static final String LIMIT_INVALID = "limit cannot be negative or zero.";
   public static final String OFFSET_INVALID = "offset cannot be negative.";
+  public static final String CURSOR_INVALID = "cursor is not valid for this entity.";
+  public static final String INVALID_AUDIT_TYPE = "auditType must be one of CREATE, UPDATE, TRUNCATE, DELETE, " +
+    "ACCESS or METADATA_CHANGE.";
+  public static final String INVALID_ACCESS_TYPE = "accessType must be one of READ, WRITE, READ_WRITE or UNKNOWN.";
   public static final String STARTTIME_GREATER_THAN_ENDTIME = "startTime cannot be greater than endTime.";
   public static final String INVALID_TIME_FORMAT = "startTime or endTime was not in the correct format. " +
     "Use unix timestamps or date mathematics such as now-1h.";
@@ -75,6 +80,35 @@ public class ParameterCheck {
     return timeStamp;
   }
 
+  /**
+   * Aligns a time range to whole buckets of a resolution, from the start of the bucket of its start time to the last
+   * second of the bucket of its end time.
+   *
+   * @return the aligned start and end time, in seconds
+   */
+  public static long[] alignTimeRange(long startTime, long endTime, long resolution) {
+    return new long[] { TimeMathParser.alignStart(startTime, resolution),
+      TimeMathParser.alignEnd(endTime, resolution) };
+  }
+
+  /**
+   * Aligns a time range to whole buckets of the resolution its audit histogram is computed at. Aligning widens the
+   * range, which can make the histogram use a coarser resolution, so the range is then aligned to that one.
+   *
+   * @return the aligned start and end time, in seconds
+   */
+  public static long[] alignHistogramTimeRange(long startTime, long endTime) {
+    AuditMetricsCube.Bucket bucket = AuditMetricsCube.getResolutionBucket(startTime, endTime);
+    while (true) {
+      long[] aligned = alignTimeRange(startTime, endTime, bucket.getResolutionsSeconds());
+      AuditMetricsCube.Bucket alignedBucket = AuditMetricsCube.getResolutionBucket(aligned[0], aligned[1]);
+      if (alignedBucket == bucket) {
+        return aligned;
+      }
+      bucket = alignedBucket;
+    }
+  }
+
   public static boolean isTrackerDataset(MetadataEntity metadataEntity) {
     if (!metadataEntity.getType().equalsIgnoreCase(EntityType.DATASET.toString())) {
       return false;
@@ -82,7 +116,12 @@ public class ParameterCheck {
     switch (metadataEntity.getValue(MetadataEntity.DATASET)) {
       case TrackerApp.AUDIT_LOG_DATASET_NAME:
       case TrackerApp.AUDIT_METRICS_DATASET_NAME:
+      case TrackerApp.AUDIT_LEADERBOARD_DATASET_NAME:
+      case TrackerApp.INGEST_WATERMARK_DATASET_NAME:
+      case TrackerApp.ENTITY_TOTALS_DATASET_NAME:
+      case TrackerApp.TRACKER_SCORES_DATASET_NAME:
       case TrackerApp.AUDIT_TAGS_DATASET_NAME:
+      case TrackerApp.TAG_INDEX_DATASET_NAME:
       case TrackerApp.ENTITY_LATEST_TIMESTAMP_DATASET_NAME:
       case AuditLogConfig.DEFAULT_OFFSET_DATASET:
         return true;
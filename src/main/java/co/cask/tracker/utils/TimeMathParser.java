@@ -76,6 +76,20 @@ public class TimeMathParser {
     return TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
   }
 
+  /**
+   * @return the start of the bucket of the given resolution that contains a time, both in seconds
+   */
+  public static long alignStart(long timeInSeconds, long resolutionInSeconds) {
+    return timeInSeconds - (timeInSeconds % resolutionInSeconds);
+  }
+
+  /**
+   * @return the last second of the bucket of the given resolution that contains a time, both in seconds
+   */
+  public static long alignEnd(long timeInSeconds, long resolutionInSeconds) {
+    return alignStart(timeInSeconds, resolutionInSeconds) + resolutionInSeconds - 1;
+  }
+
   public static int resolutionInSeconds(String resolutionStr) {
     Matcher matcher = RESOLUTION_PATTERN.matcher(resolutionStr);
     int output = 0;
@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.utils;
+
+import co.cask.cdap.proto.element.EntityType;
+import co.cask.tracker.entity.AuditMetricsCube;
+import co.cask.tracker.entity.Entity;
+import co.cask.tracker.entity.EntityTotalsTable;
+import co.cask.tracker.entity.LatestEntityTable;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A static class that computes the tracker meter scores of the datasets and streams of a namespace.
+ */
+public final class TrackerMeterScorer {
+
+  // Score % parameters
+  private static final float LOG_MESSAGES_WEIGHT = 40.0f;
+  private static final float UNIQUE_PROGRAM_WEIGHT = 40.0f;
+  private static final float TIME_SINCE_READ_WEIGHT = 20.0f;
+
+  private static final String DATASET = EntityType.DATASET.name().toLowerCase();
+  private static final String STREAM = EntityType.STREAM.name().toLowerCase();
+
+  private TrackerMeterScorer() {
+  }
+
+  /**
+   * Calculates the score of each dataset and stream of a namespace from the entity totals, or from the audit metrics
+   * until the totals are seeded, as they miss the history of the cube until then.
+   *
+   * @param now the current time in seconds
+   * @return the score of each dataset and stream
+   */
+  public static Map<Entity, Integer> computeScores(String namespace, EntityTotalsTable entityTotals,
+                                                   AuditMetricsCube auditMetrics,
+                                                   LatestEntityTable latestEntityTable, long now) {
+    EntityTotalsTable.Totals namespaceTotals;
+    Map<Entity, EntityTotalsTable.Totals> totalsMap;
+    if (entityTotals.isSeeded(namespace)) {
+      namespaceTotals = entityTotals.getTotals(namespace);
+      totalsMap = entityTotals.getEntityTotals(namespace);
+    } else {
+      namespaceTotals = EntityTotalsTable.computeTotals(namespace, auditMetrics);
+      totalsMap = EntityTotalsTable.computeEntityTotals(namespace, auditMetrics);
+    }
+    return computeScores(namespaceTotals, totalsMap, latestEntityTable.scanReadTimestamps(namespace), now);
+  }
+
+  /**
+   * Calculates the score of each dataset and stream of a namespace.
+   *
+   * @param namespaceTotals the totals of the namespace
+   * @param totalsMap the totals of each entity of the namespace
+   * @param readTimestamps the time of the last read of each entity, keyed by lower case entities
+   * @param now the current time in seconds
+   * @return the score of each dataset and stream
+   */
+  public static Map<Entity, Integer> computeScores(EntityTotalsTable.Totals namespaceTotals,
+                                                   Map<Entity, EntityTotalsTable.Totals> totalsMap,
+                                                   Map<Entity, Long> readTimestamps, long now) {
+    long totalProgramsCount = namespaceTotals.getProgramsCount();
+    // program read activity is analyzed independently, so subtracting it here
+    long totalActivity = namespaceTotals.getActivity() - totalProgramsCount;
+
+    Map<Entity, Integer> resultMap = new HashMap<>();
+    for (Map.Entry<Entity, EntityTotalsTable.Totals> entry : totalsMap.entrySet()) {
+      Entity uniqueEntity = entry.getKey();
+      if (!uniqueEntity.getEntityType().equals(DATASET) && !uniqueEntity.getEntityType().equals(STREAM)) {
+        continue;
+      }
+      long entityProgramCount = entry.getValue().getProgramsCount();
+      long entityActivity = entry.getValue().getActivity() - entityProgramCount;
+      float logScore = 0;
+      float programScore = 0;
+      // Activity and programs count determine following % each of the final score
+      if (totalActivity != 0) {
+        logScore = ((float) entityActivity / (float) totalActivity) * LOG_MESSAGES_WEIGHT;
+      }
+      if (totalProgramsCount != 0) {
+        programScore = ((float) entityProgramCount / (float) totalProgramsCount) * UNIQUE_PROGRAM_WEIGHT;
+      }
+      int score = (int) (logScore + programScore);
+      resultMap.put(uniqueEntity, score);
+    }
+
+    /*
+     * Score calculation using time since last read
+     */
+    // Entities are ranked by the time since their last read, the most recently read first
+    Map<Entity, Long> timeMap = new HashMap<>();
+    for (Entity entity : resultMap.keySet()) {
+      Long readTime = readTimestamps.get(new Entity(entity.getEntityType().toLowerCase(),
+                                                    entity.getEntityName().toLowerCase()));
+      if (readTime != null) {
+        timeMap.put(entity, now - readTime);
+      }
+    }
+    Map<Entity, Integer> rankMap = getRankMap(sortMapByValue(timeMap));
+    int size = rankMap.size();
+    int rank = size;
+    for (Map.Entry<Entity, Integer> entry : rankMap.entrySet()) {
+      Entity entity = entry.getKey();
+      int newScore = resultMap.get(entity) + (int) ((float) rank / (float) size * TIME_SINCE_READ_WEIGHT);
+      resultMap.put(entity, newScore);
+    }
+    return resultMap;
+  }
+
+  // Returns same rank for entities with equal timestamp.
+  private static Map<Entity, Integer> getRankMap(Map<Entity, Long> sortedTimeMap) {
+    Map<Entity, Integer> resultMap = new LinkedHashMap<>();
+    // If two entities with same timestamp is given a rank n, the entity after them should have rank n-2 and not
+    // n-1. rankChangeStep stores the number of consecutive equal timestamps and fixes this.
+    int rank = sortedTimeMap.size();
+    int rankChangeStep = 1;
+    long lastTimestamp = -1L;
+    for (Map.Entry<Entity, Long> entry : sortedTimeMap.entrySet()) {
+      resultMap.put(entry.getKey(), rank);
+      if (lastTimestamp == entry.getValue()) {
+        rankChangeStep += 1;
+      } else {
+        // Reset rankChangeStep to 1 after subtracting rank to its correct value
+        lastTimestamp = entry.getValue();
+        rank -= rankChangeStep;
+        rankChangeStep = 1;
+      }
+    }
+    return resultMap;
+  }
+
+  private static Map<Entity, Long> sortMapByValue(Map<Entity, Long> map) {
+    List<Map.Entry<Entity, Long>> list = new LinkedList<>(map.entrySet());
+    Collections.sort(list, new Comparator<Map.Entry<Entity, Long>>() {
+      @Override
+      public int compare(Map.Entry<Entity, Long> o1, Map.Entry<Entity, Long> o2) {
+        return o1.getValue().compareTo(o2.getValue());
+      }
+    });
+    Map<Entity, Long> result = new LinkedHashMap<>();
+    for (Map.Entry<Entity, Long> entry : list) {
+      result.put(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+}
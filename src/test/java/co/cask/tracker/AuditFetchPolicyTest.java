@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AuditFetchPolicy}.
+ */
+public class AuditFetchPolicyTest {
+  private static final int LIMIT = 160;
+  private static final long BUDGET_MILLIS = 40000;
+  // The longest a batch can take without shrinking the batch size
+  private static final long MAX_BATCH_MILLIS = BUDGET_MILLIS / AuditFetchPolicy.BATCHES_PER_TRANSACTION;
+
+  @Test
+  public void testBatchSizeGrowsUpToMaximum() {
+    AuditFetchPolicy policy = new AuditFetchPolicy(LIMIT);
+    Assert.assertEquals(LIMIT, policy.getBatchSize());
+    for (int i = 0; i < 20; i++) {
+      int batchSize = policy.getBatchSize();
+      // Full and fast batches mean there is a backlog
+      policy.onBatch(batchSize, batchSize, 1, BUDGET_MILLIS);
+    }
+    Assert.assertEquals(LIMIT * AuditFetchPolicy.BATCH_SIZE_FACTOR, policy.getBatchSize());
+  }
+
+  @Test
+  public void testBatchSizeShrinksDownToMinimum() {
+    AuditFetchPolicy policy = new AuditFetchPolicy(LIMIT);
+    for (int i = 0; i < 20; i++) {
+      int batchSize = policy.getBatchSize();
+      policy.onBatch(batchSize, batchSize, MAX_BATCH_MILLIS + 1, BUDGET_MILLIS);
+    }
+    Assert.assertEquals(LIMIT / AuditFetchPolicy.BATCH_SIZE_FACTOR, policy.getBatchSize());
+
+    // The minimum is at least one message
+    policy = new AuditFetchPolicy(AuditFetchPolicy.BATCH_SIZE_FACTOR / 2);
+    for (int i = 0; i < 20; i++) {
+      policy.onBatch(1, 1, MAX_BATCH_MILLIS + 1, BUDGET_MILLIS);
+    }
+    Assert.assertEquals(1, policy.getBatchSize());
+  }
+
+  @Test
+  public void testBatchSizeKeptForPartialBatches() {
+    AuditFetchPolicy policy = new AuditFetchPolicy(LIMIT);
+    // A partial batch means the consumer caught up, so there is no reason to grow
+    policy.onBatch(LIMIT / 2, LIMIT, 1, BUDGET_MILLIS);
+    Assert.assertEquals(LIMIT, policy.getBatchSize());
+  }
+
+  @Test
+  public void testProcessingTimeAverage() {
+    AuditFetchPolicy policy = new AuditFetchPolicy(LIMIT);
+    Assert.assertEquals(LIMIT, policy.getBatchLimit(1));
+    Assert.assertEquals(0, policy.getBatchLimit(0));
+
+    // The first batch sets the average
+    policy.onBatch(10, LIMIT, 20, BUDGET_MILLIS);
+    Assert.assertEquals(2.0, policy.getMillisPerMessage(), 0.0001);
+    // Later batches are weighted in
+    policy.onBatch(10, LIMIT, 120, BUDGET_MILLIS);
+    double expected = (1 - AuditFetchPolicy.LATENCY_WEIGHT) * 2.0 + AuditFetchPolicy.LATENCY_WEIGHT * 12.0;
+    Assert.assertEquals(expected, policy.getMillisPerMessage(), 0.0001);
+
+    // The batch limit is what fits in the remaining time, up to the batch size
+    Assert.assertEquals((int) (100 / expected), policy.getBatchLimit(100));
+    Assert.assertEquals(LIMIT, policy.getBatchLimit(BUDGET_MILLIS));
+  }
+
+  @Test
+  public void testIdleBackoff() {
+    AuditFetchPolicy policy = new AuditFetchPolicy(LIMIT);
+    Assert.assertFalse(policy.skipTick());
+
+    int[] expectedDelays = { 1, 2, 4, 8, AuditFetchPolicy.MAX_IDLE_DELAY_TICKS };
+    for (int expectedDelay : expectedDelays) {
+      policy.onPoll(false);
+      Assert.assertEquals(expectedDelay, policy.getIdleDelayTicks());
+      for (int i = 0; i < expectedDelay; i++) {
+        Assert.assertTrue(policy.skipTick());
+      }
+      Assert.assertFalse(policy.skipTick());
+    }
+
+    // Fetching messages resets the back off
+    policy.onPoll(true);
+    Assert.assertEquals(0, policy.getIdleDelayTicks());
+    Assert.assertFalse(policy.skipTick());
+    policy.onPoll(false);
+    Assert.assertEquals(1, policy.getIdleDelayTicks());
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker;
+
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditPayload;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessPayload;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.cdap.proto.codec.AuditMessageTypeAdapter;
+import co.cask.cdap.proto.codec.EntityIdTypeAdapter;
+import co.cask.cdap.proto.id.EntityId;
+import co.cask.cdap.proto.id.NamespaceId;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AuditLogConsumer}.
+ */
+public class AuditLogConsumerTest {
+  private static final Gson GSON = new GsonBuilder()
+    .registerTypeAdapter(AuditMessage.class, new AuditMessageTypeAdapter())
+    .registerTypeAdapter(EntityId.class, new EntityIdTypeAdapter())
+    .create();
+
+  @Test
+  public void testEntityHash() {
+    NamespaceId ns = new NamespaceId("ns1");
+    String created = GSON.toJson(new AuditMessage(1000L, ns.dataset("ds1").toMetadataEntity(), "user1",
+                                                  AuditType.CREATE, AuditPayload.EMPTY_PAYLOAD));
+    String read = GSON.toJson(new AuditMessage(2000L, ns.dataset("ds1").toMetadataEntity(), "user2",
+                                               AuditType.ACCESS,
+                                               new AccessPayload(AccessType.READ, ns.app("app1").flow("flow1"))));
+    String other = GSON.toJson(new AuditMessage(1000L, ns.dataset("ds2").toMetadataEntity(), "user1",
+                                                AuditType.CREATE, AuditPayload.EMPTY_PAYLOAD));
+
+    Integer hash = AuditLogConsumer.getEntityHash(created);
+    Assert.assertNotNull(hash);
+    // All messages of an entity go to the same partition, whatever else they hold
+    Assert.assertEquals(hash, AuditLogConsumer.getEntityHash(read));
+    Assert.assertNotEquals(hash, AuditLogConsumer.getEntityHash(other));
+  }
+
+  @Test
+  public void testMalformedMessage() {
+    Assert.assertNull(AuditLogConsumer.getEntityHash(""));
+    Assert.assertNull(AuditLogConsumer.getEntityHash("not json"));
+    Assert.assertNull(AuditLogConsumer.getEntityHash("[1, 2]"));
+    Assert.assertNull(AuditLogConsumer.getEntityHash("{\"time\": 1000, \"entity\": "));
+    Assert.assertNull(AuditLogConsumer.getEntityHash("{\"time\": 1000, \"user\": \"user1\"}"));
+    Assert.assertNull(AuditLogConsumer.getEntityHash("{\"time\": 1000, \"entity\": \"ds1\"}"));
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link AuditMetricsHandler}.
+ */
+public class AuditMetricsHandlerTest {
+  private static final long HOUR = TimeUnit.HOURS.toSeconds(1L);
+  private static final long DAY = TimeUnit.DAYS.toSeconds(1L);
+
+  @Test
+  public void testCacheKey() {
+    long now = 1000 * HOUR + 1800;
+    List<Object> queryKey = Arrays.<Object>asList("audit-histogram", 0L, now, "", "", false);
+
+    // Queries that reach into the current hour are cached until the hour ends
+    List<Object> key = AuditMetricsHandler.getCacheKey(queryKey, now, now);
+    Assert.assertEquals(key, AuditMetricsHandler.getCacheKey(queryKey, now, now + 1799));
+    Assert.assertNotEquals(key, AuditMetricsHandler.getCacheKey(queryKey, now, now + 1800));
+    Assert.assertNotEquals(queryKey, key);
+
+    // Queries that end before the current hour are cached across hours
+    long end = 1000 * HOUR - 1;
+    key = AuditMetricsHandler.getCacheKey(queryKey, end, now);
+    Assert.assertEquals(queryKey, key);
+    Assert.assertEquals(key, AuditMetricsHandler.getCacheKey(queryKey, end, now + 10 * HOUR));
+    // Until the hour they end in is over
+    Assert.assertNotEquals(key, AuditMetricsHandler.getCacheKey(queryKey, end, end));
+  }
+
+  @Test
+  public void testCoveredBuckets() {
+    // Buckets are covered if they start in the time range
+    Assert.assertArrayEquals(new long[] { 11 * HOUR, 20 * HOUR },
+                             AuditMetricsHandler.getCoveredBuckets(10 * HOUR + 1, 20 * HOUR + 1800, HOUR));
+    Assert.assertArrayEquals(new long[] { 10 * HOUR, 20 * HOUR },
+                             AuditMetricsHandler.getCoveredBuckets(10 * HOUR, 21 * HOUR - 1, HOUR));
+    // Polls that end at different times within the same bucket share a cache entry
+    Assert.assertArrayEquals(AuditMetricsHandler.getCoveredBuckets(HOUR, 10 * DAY + 1, DAY),
+                             AuditMetricsHandler.getCoveredBuckets(HOUR, 11 * DAY - 1, DAY));
+  }
+}
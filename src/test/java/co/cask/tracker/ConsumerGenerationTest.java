@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker;
+
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for {@link ConsumerGeneration}.
+ */
+public class ConsumerGenerationTest {
+  private static final Gson GSON = new Gson();
+  private static final int MESSAGES = 1000;
+
+  private final int[] hashes = new int[MESSAGES];
+  private final int[] emitted = new int[MESSAGES];
+
+  @Test
+  public void testOffsetKeys() {
+    ConsumerGeneration initial = ConsumerGeneration.initial();
+    Assert.assertEquals("tms.offset", initial.getOffsetKey(0));
+    ConsumerGeneration next = initial.next(new HashMap<Integer, String>(), 3);
+    Assert.assertEquals(3, next.getInstanceCount());
+    Assert.assertEquals("tms.offset.1.2", next.getOffsetKey(2));
+    Assert.assertNull(next.getStartOffset());
+  }
+
+  @Test
+  public void testHandoff() {
+    Random random = new Random(0);
+    for (int i = 0; i < MESSAGES; i++) {
+      hashes[i] = random.nextInt();
+    }
+
+    // One instance, then three instances that stop at different offsets, one of them before fetching anything
+    ConsumerGeneration generation = ConsumerGeneration.initial();
+    Map<Integer, String> offsets = run(generation, new int[] { 100 });
+    generation = roundTrip(generation.next(offsets, 3));
+    Assert.assertEquals(getId(100), generation.getStartOffset());
+    offsets = run(generation, new int[] { 400, -1, 250 });
+    // Two instances, that start from the first instance that did not fetch anything
+    generation = roundTrip(generation.next(offsets, 2));
+    Assert.assertEquals(getId(100), generation.getStartOffset());
+    offsets = run(generation, new int[] { 300, 600 });
+    // Back to one instance, that reads the rest of the topic
+    generation = roundTrip(generation.next(offsets, 1));
+    Assert.assertEquals(getId(300), generation.getStartOffset());
+    run(generation, new int[] { MESSAGES - 1 });
+
+    for (int i = 0; i < MESSAGES; i++) {
+      Assert.assertEquals(String.format("Message %d", i), 1, emitted[i]);
+    }
+  }
+
+  /**
+   * Runs every instance of a generation up to an offset, or not at all for -1, as {@link AuditLogConsumer} does.
+   *
+   * @return the offsets stored by the instances
+   */
+  private Map<Integer, String> run(ConsumerGeneration generation, int[] stopAt) {
+    Assert.assertEquals(generation.getInstanceCount(), stopAt.length);
+    Map<Integer, String> offsets = new HashMap<>();
+    for (int instanceId = 0; instanceId < stopAt.length; instanceId++) {
+      if (stopAt[instanceId] < 0) {
+        continue;
+      }
+      String start = generation.getStartOffset();
+      for (int i = start == null ? 0 : Integer.parseInt(start) + 1; i <= stopAt[instanceId]; i++) {
+        if (ConsumerGeneration.getOwner(hashes[i], generation.getInstanceCount()) == instanceId
+          && !generation.isEmitted(getId(i), hashes[i])) {
+          emitted[i]++;
+        }
+      }
+      offsets.put(instanceId, getId(stopAt[instanceId]));
+    }
+    return offsets;
+  }
+
+  // Generations are stored as JSON
+  private static ConsumerGeneration roundTrip(ConsumerGeneration generation) {
+    return GSON.fromJson(GSON.toJson(generation), ConsumerGeneration.class);
+  }
+
+  // Message ids sort in publish order
+  private static String getId(int message) {
+    return String.format("%04d", message);
+  }
+}
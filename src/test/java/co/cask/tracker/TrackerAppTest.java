@@ -19,6 +19,7 @@ package co.cask.tracker;
 import co.cask.cdap.api.dataset.lib.cube.TimeValue;
 import co.cask.cdap.api.messaging.MessagePublisher;
 import co.cask.cdap.api.metrics.RuntimeMetrics;
+import co.cask.cdap.common.conf.Constants;
 import co.cask.cdap.internal.guava.reflect.TypeToken;
 import co.cask.cdap.proto.NamespaceMeta;
 import co.cask.cdap.proto.audit.AuditMessage;
@@ -33,10 +34,12 @@ import co.cask.cdap.proto.id.EntityId;
 import co.cask.cdap.proto.id.NamespaceId;
 import co.cask.cdap.proto.id.SystemServiceId;
 import co.cask.cdap.test.ApplicationManager;
+import co.cask.cdap.test.DataSetManager;
 import co.cask.cdap.test.FlowManager;
 import co.cask.cdap.test.ServiceManager;
 import co.cask.cdap.test.TestBase;
 import co.cask.cdap.test.TestConfiguration;
+import co.cask.cdap.test.WorkerManager;
 import co.cask.tracker.config.AuditLogConfig;
 import co.cask.tracker.config.TrackerAppConfig;
 import co.cask.tracker.entity.AuditHistogramResult;
@@ -47,8 +50,12 @@ import co.cask.tracker.entity.TopDatasetsResult;
 import co.cask.tracker.entity.TopProgramsResult;
 import co.cask.tracker.entity.TrackerMeterRequest;
 import co.cask.tracker.entity.TrackerMeterResult;
+import co.cask.tracker.entity.TrackerScoreResult;
+import co.cask.tracker.entity.TrackerScoreTable;
 import co.cask.tracker.entity.ValidateTagsResult;
 import co.cask.tracker.utils.ParameterCheck;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
@@ -105,6 +112,8 @@ public class TrackerAppTest extends TestBase {
     testFlowManager.waitForStatus(true);
     trackerServiceManager = testAppManager.getServiceManager(TrackerService.SERVICE_NAME).start();
     trackerServiceManager.waitForStatus(true);
+    WorkerManager trackerWorkerManager = testAppManager.getWorkerManager(TrackerWorker.WORKER_NAME).start();
+    trackerWorkerManager.waitForStatus(true);
   }
 
   @Before
@@ -144,6 +153,74 @@ public class TrackerAppTest extends TestBase {
     Assert.assertNotEquals(0, result.getTotalResults());
   }
 
+  @Test
+  public void testAuditLogCursor() throws Exception {
+    String response = TestUtils.getServiceResponse(trackerServiceManager,
+                                                   "v1/auditlog/dataset/ds1?limit=20",
+                                                   HttpResponseStatus.OK.getCode());
+    AuditLogResponse expected = GSON.fromJson(response, AuditLogResponse.class);
+
+    List<AuditMessage> paged = new ArrayList<>();
+    String cursor = "";
+    do {
+      response = TestUtils.getServiceResponse(trackerServiceManager,
+                                              "v1/auditlog/dataset/ds1?limit=1&cursor=" + cursor,
+                                              HttpResponseStatus.OK.getCode());
+      AuditLogResponse page = GSON.fromJson(response, AuditLogResponse.class);
+      Assert.assertTrue(page.getResults().size() <= 1);
+      paged.addAll(page.getResults());
+      cursor = page.getNextCursor();
+    } while (cursor != null);
+    Assert.assertEquals(GSON.toJson(expected.getResults()), GSON.toJson(paged));
+
+    response = TestUtils.getServiceResponse(trackerServiceManager,
+                                            "v1/auditlog/dataset/ds1?cursor=00",
+                                            HttpResponseStatus.BAD_REQUEST.getCode());
+    Assert.assertEquals(ParameterCheck.CURSOR_INVALID, response);
+  }
+
+  @Test
+  public void testAuditLogFilter() throws Exception {
+    String response = TestUtils.getServiceResponse(trackerServiceManager,
+                                                   "v1/auditlog/dataset/ds1?auditType=create",
+                                                   HttpResponseStatus.OK.getCode());
+    AuditLogResponse result = GSON.fromJson(response, AuditLogResponse.class);
+    Assert.assertEquals(2, result.getTotalResults());
+    response = TestUtils.getServiceResponse(trackerServiceManager,
+                                            "v1/auditlog/dataset/ds1?user=user4&accessType=write",
+                                            HttpResponseStatus.OK.getCode());
+    result = GSON.fromJson(response, AuditLogResponse.class);
+    Assert.assertEquals(1, result.getTotalResults());
+    Assert.assertEquals(1456956659506L, result.getResults().get(0).getTime());
+    response = TestUtils.getServiceResponse(trackerServiceManager,
+                                            "v1/auditlog/dataset/ds1?auditType=unknown",
+                                            HttpResponseStatus.BAD_REQUEST.getCode());
+    Assert.assertEquals(ParameterCheck.INVALID_AUDIT_TYPE, response);
+  }
+
+  @Test
+  public void testActivity() throws Exception {
+    String response = TestUtils.getServiceResponse(trackerServiceManager,
+                                                   "v1/activity/user/user1?limit=100",
+                                                   HttpResponseStatus.OK.getCode());
+    AuditLogResponse result = GSON.fromJson(response, AuditLogResponse.class);
+    Assert.assertEquals(7, result.getTotalResults());
+    response = TestUtils.getServiceResponse(trackerServiceManager,
+                                            "v1/activity/accessor/system_service:explore?limit=3",
+                                            HttpResponseStatus.OK.getCode());
+    result = GSON.fromJson(response, AuditLogResponse.class);
+    Assert.assertEquals(3, result.getTotalResults());
+    Assert.assertEquals(1456956659504L, result.getResults().get(0).getTime());
+    Assert.assertNotNull(result.getNextCursor());
+    response = TestUtils.getServiceResponse(trackerServiceManager,
+                                            "v1/activity/accessor/system_service:explore?limit=3&cursor=" +
+                                              result.getNextCursor(),
+                                            HttpResponseStatus.OK.getCode());
+    result = GSON.fromJson(response, AuditLogResponse.class);
+    Assert.assertEquals(2, result.getTotalResults());
+    Assert.assertNull(result.getNextCursor());
+  }
+
   @Test
   public void testInvalidDatesError() throws Exception {
     String response = TestUtils.getServiceResponse(trackerServiceManager,
@@ -240,6 +317,51 @@ public class TrackerAppTest extends TestBase {
     Assert.assertEquals(5, total);
   }
 
+  @Test
+  public void testCachedResults() throws Exception {
+    long hits = getMetricsManager().getTotalMetric(getServiceTags(), "user.query.cache.hits");
+    long misses = getMetricsManager().getTotalMetric(getServiceTags(), "user.query.cache.misses");
+    long end = System.currentTimeMillis() / 1000 + TimeUnit.DAYS.toSeconds(1L);
+    String request = "v1/auditmetrics/top-entities/datasets?limit=20&startTime=%d&endTime=" + end;
+    String uncached = TestUtils.getServiceResponse(trackerServiceManager, String.format(request, 0),
+                                                   HttpResponseStatus.OK.getCode());
+    String cached = TestUtils.getServiceResponse(trackerServiceManager, String.format(request, 0),
+                                                 HttpResponseStatus.OK.getCode());
+    Assert.assertEquals(uncached, cached);
+    // Times are aligned to whole hours, so a start time within the same hour is the same query
+    Assert.assertEquals(uncached, TestUtils.getServiceResponse(trackerServiceManager, String.format(request, 1),
+                                                               HttpResponseStatus.OK.getCode()));
+    // A start time in a different hour is a different query, computed again, with the same result as no event is
+    // that old
+    Assert.assertEquals(uncached, TestUtils.getServiceResponse(
+      trackerServiceManager, String.format(request, TimeUnit.HOURS.toSeconds(1L)), HttpResponseStatus.OK.getCode()));
+    getMetricsManager().waitForTotalMetricCount(getServiceTags(), "user.query.cache.misses", misses + 2,
+                                                60L, TimeUnit.SECONDS);
+    getMetricsManager().waitForTotalMetricCount(getServiceTags(), "user.query.cache.hits", hits + 2,
+                                                60L, TimeUnit.SECONDS);
+
+    // Histograms that end at different times within the same bucket are the same, so they share a cache entry
+    String histogram = "v1/auditmetrics/audit-histogram?entityType=dataset&entityName=ds1&startTime=%d&endTime=%d";
+    long bucketEnd = end - end % TimeUnit.HOURS.toSeconds(1L);
+    String first = TestUtils.getServiceResponse(trackerServiceManager, String.format(histogram, 0, bucketEnd),
+                                                HttpResponseStatus.OK.getCode());
+    Assert.assertEquals(first, TestUtils.getServiceResponse(
+      trackerServiceManager, String.format(histogram, 0, bucketEnd + 1), HttpResponseStatus.OK.getCode()));
+    getMetricsManager().waitForTotalMetricCount(getServiceTags(), "user.query.cache.hits", hits + 3,
+                                                60L, TimeUnit.SECONDS);
+
+    // Histogram times are not rounded to whole hours, so events ingested earlier in the hour are not counted
+    String response = TestUtils.getServiceResponse(trackerServiceManager, String.format(
+      "v1/auditmetrics/audit-histogram?startTime=%d&endTime=%d", end - TimeUnit.DAYS.toSeconds(1L) + 60, end),
+                                                   HttpResponseStatus.OK.getCode());
+    AuditHistogramResult result = GSON.fromJson(response, AuditHistogramResult.class);
+    int total = 0;
+    for (TimeValue t : result.getResults()) {
+      total += t.getValue();
+    }
+    Assert.assertEquals(0, total);
+  }
+
   @Test
   public void testResolutionBucket() throws Exception {
     String response = TestUtils.getServiceResponse(trackerServiceManager,
@@ -329,6 +451,24 @@ public class TrackerAppTest extends TestBase {
     Assert.assertEquals(2, result.getPreferredSize());
   }
 
+  @Test
+  public void testGetPreferredTagPages() throws Exception {
+    // The random preferred tags of testAddPreferredTags never start with a 'z'
+    TestUtils.getServiceResponse(trackerServiceManager, "v1/tags/promote", "POST",
+                                 "[ \"zz_pgB\", \"ZZ_PGa\", \"zz_pgc\" ]", HttpResponseStatus.OK.getCode());
+    String response = TestUtils.getServiceResponse(trackerServiceManager, "v1/tags?type=preferred&prefix=Zz_Pg&limit=2",
+                                                   HttpResponseStatus.OK.getCode());
+    TagsResult result = GSON.fromJson(response, TagsResult.class);
+    Assert.assertEquals(ImmutableSet.of("ZZ_PGa", "zz_pgB"), result.getPreferredTags().keySet());
+    Assert.assertEquals("zz_pgB", result.getNextCursor());
+    response = TestUtils.getServiceResponse(trackerServiceManager,
+                                            "v1/tags?type=preferred&prefix=Zz_Pg&limit=2&cursor=zz_pgB",
+                                            HttpResponseStatus.OK.getCode());
+    result = GSON.fromJson(response, TagsResult.class);
+    Assert.assertEquals(ImmutableSet.of("zz_pgc"), result.getPreferredTags().keySet());
+    Assert.assertNull(result.getNextCursor());
+  }
+
   @Test
   public void testDemoteTags() throws Exception {
     TestUtils.getServiceResponse(trackerServiceManager, "v1/tags/demote", "POST", TEST_JSON_TAGS,
@@ -347,9 +487,12 @@ public class TrackerAppTest extends TestBase {
     datasets.add("ds6");
     datasets.add("ds8");
     streams.add("strm123");
+    waitForScoreRefresh();
     TrackerMeterResult result = getTrackerMeterResponse(datasets, streams, HttpResponseStatus.OK.getCode());
     Assert.assertEquals(3, result.getDatasets().size());
     Assert.assertEquals(1, result.getStreams().size());
+    Assert.assertTrue(result.getDatasets().get("ds1") > 0);
+    Assert.assertTrue(result.getStreams().get("strm123") > 0);
   }
 
   @Test
@@ -363,7 +506,9 @@ public class TrackerAppTest extends TestBase {
     datasets.add("ds1");
     streams.add("strm123");
     streams.add("stream1");
+    waitForScoreRefresh();
     TrackerMeterResult result = getTrackerMeterResponse(datasets, streams, HttpResponseStatus.OK.getCode());
+    Assert.assertTrue(result.getDatasets().get("ds8") > 0);
     Assert.assertEquals(result.getDatasets().get("ds8"), result.getDatasets().get("ds9"));
   }
 
@@ -374,8 +519,12 @@ public class TrackerAppTest extends TestBase {
     datasets.add("ds_invalid");
     datasets.add("ds_does_not_exit");
     datasets.add("ds_test");
+    datasets.add("ds1");
     streams.add("strm_test");
+    waitForScoreRefresh();
     TrackerMeterResult result = getTrackerMeterResponse(datasets, streams, HttpResponseStatus.OK.getCode());
+    // Entities without audit messages have no score, unlike the ones with
+    Assert.assertTrue(result.getDatasets().remove("ds1") > 0);
     for (Map.Entry<String, Integer> entry : result.getDatasets().entrySet()) {
       Assert.assertEquals(0, (int) entry.getValue());
     }
@@ -384,6 +533,50 @@ public class TrackerAppTest extends TestBase {
     }
   }
 
+  @Test
+  public void testTopScores() throws Exception {
+    // Before the TrackerWorker first refreshes the scores, they are computed for each request
+    TrackerScoreResult[] computed = getTopScores(3);
+    waitForScoreRefresh();
+    TrackerScoreResult[] top = getTopScores(3);
+    Assert.assertEquals(GSON.toJson(computed), GSON.toJson(top));
+    Assert.assertEquals(3, top.length);
+    for (int i = 1; i < top.length; i++) {
+      Assert.assertTrue(top[i - 1].getScore() >= top[i].getScore());
+    }
+    String response = TestUtils.getServiceResponse(trackerServiceManager, "v1/tracker-meter/bottom?limit=1",
+                                                   HttpResponseStatus.OK.getCode());
+    TrackerScoreResult[] bottom = GSON.fromJson(response, TrackerScoreResult[].class);
+    Assert.assertEquals(1, bottom.length);
+    Assert.assertTrue(bottom[0].getScore() <= top[top.length - 1].getScore());
+    TestUtils.getServiceResponse(trackerServiceManager, "v1/tracker-meter/top?limit=0",
+                                 HttpResponseStatus.BAD_REQUEST.getCode());
+  }
+
+  // Scores are computed by the TrackerWorker after the audit messages are ingested
+  private void waitForScoreRefresh() throws Exception {
+    DataSetManager<TrackerScoreTable> trackerScores = getDataset(TrackerApp.TRACKER_SCORES_DATASET_NAME);
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60L);
+    while (trackerScores.get().getRefreshTime(NamespaceId.DEFAULT.getNamespace()) == null
+      && System.currentTimeMillis() < deadline) {
+      TimeUnit.SECONDS.sleep(1L);
+      trackerScores.flush();
+    }
+    Assert.assertNotNull(trackerScores.get().getRefreshTime(NamespaceId.DEFAULT.getNamespace()));
+  }
+
+  private TrackerScoreResult[] getTopScores(int limit) throws Exception {
+    String response = TestUtils.getServiceResponse(trackerServiceManager, "v1/tracker-meter/top?limit=" + limit,
+                                                   HttpResponseStatus.OK.getCode());
+    return GSON.fromJson(response, TrackerScoreResult[].class);
+  }
+
+  private static Map<String, String> getServiceTags() {
+    return ImmutableMap.of(Constants.Metrics.Tag.NAMESPACE, NamespaceId.DEFAULT.getNamespace(),
+                           Constants.Metrics.Tag.APP, TrackerApp.APP_NAME,
+                           Constants.Metrics.Tag.SERVICE, TrackerService.SERVICE_NAME);
+  }
+
   private TrackerMeterResult getTrackerMeterResponse(List<String> datasets,
                                                      List<String> streams,
                                                      int expectedResponse) throws Exception {
@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.lib.cube.TimeSeries;
+import co.cask.cdap.api.dataset.lib.cube.TimeValue;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessPayload;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.proto.id.ProgramId;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.tephra.TransactionContext;
+import org.apache.tephra.inmemory.DetachedTxSystemClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link AuditLeaderboardTable}
+ */
+public class AuditLeaderboardTableTest {
+  private static final String NAMESPACE = "ns1";
+  private static final long HOUR = TimeUnit.HOURS.toSeconds(1L);
+  private static final long DAY = TimeUnit.DAYS.toSeconds(1L);
+  private static final NamespaceId NAMESPACE_ID = new NamespaceId(NAMESPACE);
+  private static final ProgramId FLOW = NAMESPACE_ID.app("app1").flow("flow1");
+  private static final ProgramId SERVICE = NAMESPACE_ID.app("app2").service("service1");
+
+  private AuditLeaderboardTable leaderboards;
+  private TransactionContext txContext;
+
+  @Before
+  public void before() throws Exception {
+    InMemoryTableService.reset();
+    InMemoryTableService.create("leaderboards");
+    DatasetSpecification spec = DatasetSpecification.builder("leaderboards", "table")
+      .properties(new HashMap<String, String>()).build();
+    leaderboards = new AuditLeaderboardTable(spec, new InMemoryTable("leaderboards"));
+    txContext = new TransactionContext(new DetachedTxSystemClient(), leaderboards);
+  }
+
+  @Test
+  public void testTopNAcrossBucketsAndShards() throws Exception {
+    // Three days ago, at 05:00, and two days ago, at 10:00
+    long firstDay = (System.currentTimeMillis() / 1000) / DAY * DAY - 3 * DAY;
+    long firstHour = firstDay + 5 * HOUR;
+    long secondHour = firstDay + DAY + 10 * HOUR;
+
+    txContext.start();
+    leaderboards.setLiveTime(NAMESPACE, 0L);
+    leaderboards.seed(NAMESPACE,
+                      ImmutableList.of(getTimeSeries("read", "dataset", "ds2", null, null, firstHour, 10L,
+                                                     secondHour, 3L)),
+                      ImmutableList.of(getTimeSeries("read", null, null, "app2", "service", firstHour, 10L,
+                                                     secondHour, 3L)),
+                      ImmutableList.of(getTimeSeries("read", null, null, "app2", null, firstHour, 10L,
+                                                     secondHour, 3L)));
+    txContext.finish();
+
+    // Two publisher instances write their own rows
+    txContext.start();
+    leaderboards.write(ImmutableList.of(getAccess("ds1", AccessType.READ, FLOW),
+                                        getAccess("ds1", AccessType.READ, FLOW)), 0);
+    leaderboards.write(ImmutableList.of(getAccess("ds1", AccessType.READ, SERVICE),
+                                        getAccess("ds2", AccessType.WRITE, FLOW)), 1);
+    txContext.finish();
+    long now = System.currentTimeMillis() / 1000;
+
+    txContext.start();
+    // The whole history merges the seeded day buckets with the live hour buckets of both shards
+    List<TopDatasetsResult> datasets = leaderboards.getTopNDatasets(5, 0L, now, NAMESPACE);
+    Assert.assertEquals(2, datasets.size());
+    Assert.assertEquals(13L, datasets.get(0).getRead());
+    Assert.assertEquals(1L, datasets.get(0).getWrite());
+    Assert.assertEquals(3L, datasets.get(1).getRead());
+    Assert.assertEquals(0L, datasets.get(1).getWrite());
+
+    // Within two days, only hour buckets are read
+    datasets = leaderboards.getTopNDatasets(5, firstDay + 3 * HOUR, firstDay + DAY + 11 * HOUR - 1, NAMESPACE);
+    Assert.assertEquals(1, datasets.size());
+    Assert.assertEquals(13L, datasets.get(0).getRead());
+    datasets = leaderboards.getTopNDatasets(5, firstDay + 6 * HOUR, firstDay + DAY + 10 * HOUR - 1, NAMESPACE);
+    Assert.assertEquals(0, datasets.size());
+
+    // Whole days are read from the day buckets, and the edges from the hour buckets
+    datasets = leaderboards.getTopNDatasets(5, firstDay - 12 * HOUR, firstDay + 2 * DAY + 2 * HOUR, NAMESPACE);
+    Assert.assertEquals(1, datasets.size());
+    Assert.assertEquals(13L, datasets.get(0).getRead());
+    datasets = leaderboards.getTopNDatasets(5, firstDay + 6 * HOUR, now, NAMESPACE);
+    Assert.assertEquals(2, datasets.size());
+    Assert.assertEquals(3L, datasets.get(0).getRead());
+    Assert.assertEquals(1L, datasets.get(0).getWrite());
+    Assert.assertEquals(3L, datasets.get(1).getRead());
+    Assert.assertEquals(0L, datasets.get(1).getWrite());
+
+    List<TopProgramsResult> programs = leaderboards.getTopNPrograms(5, 0L, now, NAMESPACE);
+    Assert.assertEquals(2, programs.size());
+    Assert.assertEquals("service1", programs.get(0).getEntityName());
+    Assert.assertEquals("app2", programs.get(0).getApplication());
+    Assert.assertEquals(14L, programs.get(0).getValue());
+    Assert.assertEquals("flow1", programs.get(1).getEntityName());
+    Assert.assertEquals(3L, programs.get(1).getValue());
+
+    List<TopApplicationsResult> applications = leaderboards.getTopNApplications(1, firstDay + 6 * HOUR, now,
+                                                                                NAMESPACE);
+    Assert.assertEquals(1, applications.size());
+    Assert.assertEquals("app2", applications.get(0).getEntityName());
+    Assert.assertEquals(4L, applications.get(0).getValue());
+    txContext.finish();
+  }
+
+  @Test
+  public void testMessagesBeforeLiveTime() throws Exception {
+    txContext.start();
+    leaderboards.setLiveTime(NAMESPACE, System.currentTimeMillis() / 1000 + HOUR);
+    leaderboards.write(ImmutableList.of(getAccess("ds1", AccessType.READ, FLOW)), 0);
+    txContext.finish();
+
+    // Messages ingested before the live time are left to seeding
+    txContext.start();
+    Assert.assertTrue(leaderboards.getTopNDatasets(5, 0L, System.currentTimeMillis() / 1000, NAMESPACE).isEmpty());
+    Assert.assertFalse(leaderboards.isSeeded(NAMESPACE));
+    txContext.finish();
+  }
+
+  private static AuditMessage getAccess(String dataset, AccessType accessType, ProgramId program) {
+    return new AuditMessage(System.currentTimeMillis(), NAMESPACE_ID.dataset(dataset).toMetadataEntity(), "user1",
+                            AuditType.ACCESS, new AccessPayload(accessType, program));
+  }
+
+  private static TimeSeries getTimeSeries(String measure, String entityType, String entityName, String appName,
+                                          String programType, long time1, long value1, long time2, long value2) {
+    ImmutableMap.Builder<String, String> dimensions = ImmutableMap.builder();
+    if (entityType != null) {
+      dimensions.put("entity_type", entityType).put("entity_name", entityName);
+    }
+    if (appName != null) {
+      dimensions.put("app_name", appName);
+    }
+    if (programType != null) {
+      dimensions.put("program_type", programType).put("program_name", "service1");
+    }
+    return new TimeSeries(measure, dimensions.build(),
+                          ImmutableList.of(new TimeValue(time1, value1), new TimeValue(time2, value2)));
+  }
+}
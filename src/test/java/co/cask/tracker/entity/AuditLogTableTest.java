@@ -1,5 +1,6 @@
 package co.cask.tracker.entity;
 
+import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.dataset.DatasetSpecification;
 import co.cask.cdap.api.dataset.table.Put;
 import co.cask.cdap.api.dataset.table.Result;
@@ -9,12 +10,16 @@ import co.cask.cdap.api.metadata.MetadataScope;
 import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
 import co.cask.cdap.proto.audit.AuditMessage;
 import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessPayload;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
 import co.cask.cdap.proto.audit.payload.metadata.MetadataPayload;
 import co.cask.cdap.proto.codec.AuditMessageTypeAdapter;
 import co.cask.cdap.proto.codec.EntityIdTypeAdapter;
 import co.cask.cdap.proto.element.EntityType;
 import co.cask.cdap.proto.id.ApplicationId;
+import co.cask.cdap.proto.id.DatasetId;
 import co.cask.cdap.proto.id.EntityId;
+import co.cask.cdap.proto.id.NamespaceId;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
@@ -25,6 +30,7 @@ import org.junit.Test;
 import java.lang.reflect.Type;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -57,7 +63,7 @@ public class AuditLogTableTest {
     AuditMessage expected = getAuditMessageV2();
 
     // verify write of new format can be converted back
-    Put put = auditLogTable.writeHelper(expected);
+    Put put = auditLogTable.writeHelper(expected, 0);
     AuditMessage actual = AuditLogTable.createAuditMessage(new Result(put.getRow(), put.getValues()));
     Assert.assertEquals(jsonToMap(GSON.toJson(expected)), jsonToMap(GSON.toJson(actual)));
     // verify that the old format can be converted back
@@ -67,12 +73,67 @@ public class AuditLogTableTest {
     Assert.assertEquals(jsonToMap(GSON.toJson(expected)), jsonToMap(GSON.toJson(actual)));
   }
 
+  @Test
+  public void testAccessMessageEncoding() throws Exception {
+    DatasetId datasetId = new DatasetId("ns1", "ds1");
+    AccessPayload payload = new AccessPayload(AccessType.READ,
+                                              new NamespaceId("ns1").app("app1").flow("flow1").run("run1"));
+    AuditMessage expected = new AuditMessage(4000L, datasetId.toMetadataEntity(), "",
+                                             AuditType.ACCESS, payload);
+
+    Put put = auditLogTable.writeHelper(expected, 0);
+    AuditMessage actual = AuditLogTable.createAuditMessage(new Result(put.getRow(), put.getValues()));
+    Assert.assertEquals(4000L, actual.getTime());
+    Assert.assertEquals(AuditType.ACCESS, actual.getType());
+    Assert.assertEquals("unknown", actual.getUser());
+    Assert.assertEquals(datasetId.toMetadataEntity(), actual.getEntity());
+    Assert.assertEquals(payload.getAccessType(), ((AccessPayload) actual.getPayload()).getAccessType());
+    Assert.assertEquals(payload.getAccessor(), ((AccessPayload) actual.getPayload()).getAccessor());
+  }
+
+  @Test
+  public void testEntryHeader() throws Exception {
+    for (Put put : new Put[] {auditLogTable.writeHelper(getAuditMessageV2(), 0), getAuditMessageV1()}) {
+      AuditLogEntry entry = new AuditLogEntry(new Result(put.getRow(), put.getValues()));
+      Assert.assertEquals(3000L, entry.getTime());
+      Assert.assertEquals("user1", entry.getUser());
+      Assert.assertEquals(AuditType.METADATA_CHANGE, entry.getType());
+      Assert.assertArrayEquals(put.getRow(), entry.getRowKey());
+    }
+  }
+
+  @Test
+  public void testKeyUniqueness() throws Exception {
+    DatasetSpecification spec = DatasetSpecification.builder("other", "table")
+      .properties(new HashMap<String, String>()).build();
+    // Two writers of the same flowlet instance, created within the same second
+    AuditLogTable writer1 = new AuditLogTable(spec, new InMemoryTable("test"));
+    AuditLogTable writer2 = new AuditLogTable(spec, new InMemoryTable("test"));
+    Set<String> keys = new HashSet<>();
+    byte[] previousKey = null;
+    for (int i = 0; i < 3; i++) {
+      for (AuditLogTable writer : new AuditLogTable[] {writer1, writer2, auditLogTable}) {
+        for (int instanceId = 0; instanceId < 2; instanceId++) {
+          byte[] key = writer.getKey("ns1", "dataset", "ds1", 3000L, instanceId);
+          Assert.assertTrue(keys.add(Bytes.toStringBinary(key)));
+        }
+      }
+      // The rows of a writer are ordered by their sequence
+      byte[] key = writer1.getKey("ns1", "dataset", "ds1", 3000L, 0);
+      Assert.assertTrue(keys.add(Bytes.toStringBinary(key)));
+      if (previousKey != null) {
+        Assert.assertTrue(Bytes.compareTo(previousKey, key) < 0);
+      }
+      previousKey = key;
+    }
+  }
+
   private Put getAuditMessageV1() {
     // return the audit message in old format
     EntityId entityId = new ApplicationId("ns1", "app1", "v1");
     String entityType = EntityType.APPLICATION.toString().toLowerCase();
     String entityName = ((ApplicationId) entityId).getApplication();
-    return new Put(auditLogTable.getKey(((ApplicationId) entityId).getNamespace(), entityType, entityName, 3000L))
+    return new Put(auditLogTable.getKey(((ApplicationId) entityId).getNamespace(), entityType, entityName, 3000L, 0))
       .add("timestamp", 3000L)
       .add("entityId", GSON.toJson(entityId))
       .add("user", "user1")
@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.metadata.MetadataPayload;
+import co.cask.cdap.proto.id.EntityId;
+import co.cask.cdap.proto.id.NamespaceId;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.Gson;
+import org.apache.tephra.TransactionContext;
+import org.apache.tephra.inmemory.DetachedTxSystemClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+/**
+ * Tests {@link AuditTagsTable}
+ */
+public class AuditTagsTableTest {
+  private static final Gson GSON = new Gson();
+  private static final String NAMESPACE = "ns1";
+  private static final NamespaceId NAMESPACE_ID = new NamespaceId(NAMESPACE);
+
+  private Table preferredTagsTable;
+  private AuditTagsTable auditTags;
+  private TagIndexTable tagIndex;
+  private TransactionContext txContext;
+
+  @Before
+  public void before() throws Exception {
+    InMemoryTableService.reset();
+    InMemoryTableService.create("auditTags");
+    InMemoryTableService.create("tagIndex");
+    preferredTagsTable = new InMemoryTable("auditTags");
+    auditTags = new AuditTagsTable(getSpec("auditTags"), preferredTagsTable);
+    tagIndex = new TagIndexTable(getSpec("tagIndex"), new InMemoryTable("tagIndex"));
+    txContext = new TransactionContext(new DetachedTxSystemClient(), auditTags, tagIndex);
+  }
+
+  @Test
+  public void testMigrateLegacyTags() throws Exception {
+    // Preferred tags written before they were keyed by their lower case form
+    txContext.start();
+    for (String tag : ImmutableList.of("Legacy1", "legacy2", "other")) {
+      preferredTagsTable.put(Bytes.toBytes(tag), Bytes.toBytes("total_entities"), Bytes.toBytes(0));
+    }
+    txContext.finish();
+
+    // Until they are migrated, legacy tags are read along with the current ones, in the same order
+    txContext.start();
+    auditTags.addPreferredTags(ImmutableList.of("LEGACY0"));
+    txContext.finish();
+    txContext.start();
+    Assert.assertEquals(ImmutableList.of("LEGACY0", "Legacy1"), auditTags.getPreferredTags("leg", null, 2));
+    Assert.assertEquals(ImmutableList.of("legacy2"), auditTags.getPreferredTags("leg", "Legacy1", 2));
+    Assert.assertEquals(ImmutableMap.of("other", 0),
+                        auditTags.getEntityTags(ImmutableSet.of("other", "user"),
+                                                ImmutableMap.<String, Integer>of()).getPreferredTags());
+    Assert.assertEquals(2, auditTags.migrateLegacyTags(2));
+    Assert.assertFalse(auditTags.isLegacyMigrated());
+    txContext.finish();
+    txContext.start();
+    Assert.assertEquals(1, auditTags.migrateLegacyTags(2));
+    txContext.finish();
+    txContext.start();
+    Assert.assertEquals(0, auditTags.migrateLegacyTags(2));
+    txContext.finish();
+
+    txContext.start();
+    Assert.assertTrue(auditTags.isLegacyMigrated());
+    Assert.assertEquals(ImmutableList.of("LEGACY0", "Legacy1", "legacy2"), auditTags.getPreferredTags("LEG", null, 10));
+    Assert.assertEquals(ImmutableList.of("other"), auditTags.getPreferredTags("o", null, 10));
+    // The marker row is never read as a tag
+    Assert.assertEquals(4, auditTags.getPreferredTags("", null, 10).size());
+    txContext.finish();
+  }
+
+  @Test
+  public void testDeleteLegacyTags() throws Exception {
+    txContext.start();
+    for (String tag : ImmutableList.of("Legacy1", "legacy2")) {
+      preferredTagsTable.put(Bytes.toBytes(tag), Bytes.toBytes("total_entities"), Bytes.toBytes(0));
+    }
+    txContext.finish();
+
+    // Legacy tags can be demoted and deleted before they are migrated
+    txContext.start();
+    Assert.assertEquals(ImmutableList.of("Legacy1"),
+                        auditTags.demoteTag(ImmutableList.of("Legacy1", "legacy3")).getValidTags());
+    Assert.assertTrue(auditTags.deleteTag("legacy2"));
+    Assert.assertFalse(auditTags.deleteTag("legacy2"));
+    txContext.finish();
+
+    txContext.start();
+    Assert.assertTrue(auditTags.getPreferredTags("", null, 10).isEmpty());
+    Assert.assertEquals(0, auditTags.migrateLegacyTags(10));
+    txContext.finish();
+  }
+
+  @Test
+  public void testPreferredTagPaging() throws Exception {
+    txContext.start();
+    auditTags.addPreferredTags(ImmutableList.of("tagB", "TagA", "tagc", "other"));
+    txContext.finish();
+
+    // Prefixes ignore case, and tags are ordered by their lower case form
+    txContext.start();
+    TagsResult page = auditTags.getPreferredTags(auditTags.getPreferredTags("TAG", null, 2),
+                                                 ImmutableMap.of("tagB", 3), 2);
+    Assert.assertEquals(ImmutableMap.of("TagA", 0, "tagB", 3), page.getPreferredTags());
+    Assert.assertEquals("tagB", page.getNextCursor());
+    page = auditTags.getPreferredTags(auditTags.getPreferredTags("TAG", page.getNextCursor(), 2),
+                                      ImmutableMap.<String, Integer>of(), 2);
+    Assert.assertEquals(ImmutableMap.of("tagc", 0), page.getPreferredTags());
+    Assert.assertNull(page.getNextCursor());
+    // A cursor before the prefix starts from the prefix
+    Assert.assertEquals(ImmutableList.of("other"), auditTags.getPreferredTags("ot", "a", 10));
+    txContext.finish();
+  }
+
+  @Test
+  public void testUserTagPaging() throws Exception {
+    txContext.start();
+    tagIndex.write(ImmutableList.of(
+      getMetadataChange(NAMESPACE_ID.dataset("ds1"), "[ \"tagA\", \"TagB\", \"tagC\", \"tagD\", \"other\" ]"),
+      getMetadataChange(NAMESPACE_ID.stream("strm1"), "[ \"tagC\" ]")));
+    auditTags.addPreferredTags(ImmutableList.of("tagA", "TagB"));
+    txContext.finish();
+
+    // Preferred tags are skipped, and the index is read on until the page is full
+    txContext.start();
+    TagsResult page = auditTags.getUserTags(tagIndex, NAMESPACE, "TAG", null, 1);
+    Assert.assertEquals(ImmutableMap.of("tagC", 2), page.getUserTags());
+    Assert.assertEquals(1, page.getUserSize());
+    Assert.assertEquals("tagC", page.getNextCursor());
+    page = auditTags.getUserTags(tagIndex, NAMESPACE, "TAG", page.getNextCursor(), 2);
+    Assert.assertEquals(ImmutableMap.of("tagD", 1), page.getUserTags());
+    Assert.assertNull(page.getNextCursor());
+    // A page that only held preferred tags comes back empty, without a cursor once the index is read to the end
+    page = auditTags.getUserTags(tagIndex, NAMESPACE, "tagb", null, 1);
+    Assert.assertTrue(page.getUserTags().isEmpty());
+    Assert.assertNull(page.getNextCursor());
+    txContext.finish();
+  }
+
+  // Builds a metadata change the way the audit log fixture of TrackerAppTest does
+  private static AuditMessage getMetadataChange(EntityId entityId, String addedTags) {
+    String metadataPayload = "{ \"previous\": {}, " +
+      "\"additions\": { \"USER\": { \"properties\": {}, \"tags\": " + addedTags + " } }, " +
+      "\"deletions\": {} }";
+    return new AuditMessage(System.currentTimeMillis(), entityId, "user1", AuditType.METADATA_CHANGE,
+                            GSON.fromJson(metadataPayload, MetadataPayload.class));
+  }
+
+  private static DatasetSpecification getSpec(String name) {
+    return DatasetSpecification.builder(name, "table").properties(new HashMap<String, String>()).build();
+  }
+}
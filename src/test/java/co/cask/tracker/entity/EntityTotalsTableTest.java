@@ -0,0 +1,140 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.lib.cube.TimeSeries;
+import co.cask.cdap.api.dataset.lib.cube.TimeValue;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessPayload;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.proto.id.ProgramId;
+import co.cask.tracker.utils.EntityIdHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.tephra.TransactionContext;
+import org.apache.tephra.inmemory.DetachedTxSystemClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests {@link EntityTotalsTable}
+ */
+public class EntityTotalsTableTest {
+  private static final String NAMESPACE = "ns1";
+  private static final NamespaceId NAMESPACE_ID = new NamespaceId(NAMESPACE);
+  private static final ProgramId FLOW = NAMESPACE_ID.app("app1").flow("flow1");
+  private static final ProgramId SERVICE = NAMESPACE_ID.app("app2").service("service1");
+
+  private EntityTotalsTable entityTotals;
+  private TransactionContext txContext;
+
+  @Before
+  public void before() throws Exception {
+    InMemoryTableService.reset();
+    InMemoryTableService.create("totals");
+    DatasetSpecification spec = DatasetSpecification.builder("totals", "table")
+      .properties(new HashMap<String, String>()).build();
+    entityTotals = new EntityTotalsTable(spec, new InMemoryTable("totals"));
+    txContext = new TransactionContext(new DetachedTxSystemClient(), entityTotals);
+  }
+
+  @Test
+  public void testTotalsAcrossShardsAndSeed() throws Exception {
+    txContext.start();
+    entityTotals.setLiveTime(NAMESPACE, 0L);
+    // The history of the cube: ds1 had 7 messages, 3 of them reads by flow1, and ds3 had 2 non access messages
+    entityTotals.seed(NAMESPACE,
+                      ImmutableList.of(getTimeSeries("count", "ds1", null, 5L, 2L),
+                                       getTimeSeries("count", "ds3", null, 2L, 0L)),
+                      ImmutableList.of(getTimeSeries("read", "ds1", FLOW, 1L, 2L)));
+    txContext.finish();
+
+    // Two publisher instances write their own rows
+    txContext.start();
+    entityTotals.write(ImmutableList.of(getAccess("ds1", AccessType.READ, FLOW),
+                                        getAccess("ds2", AccessType.READ, FLOW)), 0);
+    entityTotals.write(ImmutableList.of(getAccess("ds1", AccessType.READ, SERVICE),
+                                        getAccess("ds2", AccessType.WRITE, FLOW)), 1);
+    txContext.finish();
+
+    txContext.start();
+    Map<Entity, EntityTotalsTable.Totals> totals = entityTotals.getEntityTotals(NAMESPACE);
+    Assert.assertEquals(3, totals.size());
+    // The seeded and the live accesses of flow1 count as one program
+    EntityTotalsTable.Totals ds1 = totals.get(new Entity("dataset", "ds1"));
+    Assert.assertEquals(9L, ds1.getActivity());
+    Assert.assertEquals(2L, ds1.getProgramsCount());
+    EntityTotalsTable.Totals ds2 = totals.get(new Entity("dataset", "ds2"));
+    Assert.assertEquals(2L, ds2.getActivity());
+    Assert.assertEquals(1L, ds2.getProgramsCount());
+    EntityTotalsTable.Totals ds3 = totals.get(new Entity("dataset", "ds3"));
+    Assert.assertEquals(2L, ds3.getActivity());
+    Assert.assertEquals(0L, ds3.getProgramsCount());
+
+    // The single entity reads and the namespace totals merge the same rows
+    Assert.assertEquals(9L, entityTotals.getTotalActivity(NAMESPACE, "dataset", "ds1"));
+    Assert.assertEquals(2L, entityTotals.getTotalProgramsCount(NAMESPACE, "dataset", "ds1"));
+    Assert.assertEquals(13L, entityTotals.getTotalActivity(NAMESPACE));
+    Assert.assertEquals(2L, entityTotals.getTotalProgramsCount(NAMESPACE));
+    // Other namespaces and the marker rows are not read
+    Assert.assertTrue(entityTotals.getEntityTotals("ns").isEmpty());
+    Assert.assertFalse(entityTotals.isSeeded(NAMESPACE));
+    txContext.finish();
+  }
+
+  @Test
+  public void testMessagesBeforeLiveTime() throws Exception {
+    txContext.start();
+    entityTotals.setLiveTime(NAMESPACE, System.currentTimeMillis() / 1000 + 3600);
+    entityTotals.write(ImmutableList.of(getAccess("ds1", AccessType.READ, FLOW)), 0);
+    txContext.finish();
+
+    // Messages ingested before the live time are left to seeding
+    txContext.start();
+    Assert.assertTrue(entityTotals.getEntityTotals(NAMESPACE).isEmpty());
+    Assert.assertEquals(0L, entityTotals.getTotalActivity(NAMESPACE));
+    Assert.assertFalse(entityTotals.isSeeded(NAMESPACE));
+    txContext.finish();
+  }
+
+  private static AuditMessage getAccess(String dataset, AccessType accessType, ProgramId program) {
+    return new AuditMessage(System.currentTimeMillis(), NAMESPACE_ID.dataset(dataset).toMetadataEntity(), "user1",
+                            AuditType.ACCESS, new AccessPayload(accessType, program));
+  }
+
+  private static TimeSeries getTimeSeries(String measure, String dataset, ProgramId program, long value1,
+                                          long value2) throws IOException {
+    ImmutableMap.Builder<String, String> dimensions = ImmutableMap.builder();
+    dimensions.put("entity_type", "dataset").put("entity_name", dataset);
+    if (program != null) {
+      dimensions.put("program_type", EntityIdHelper.getProgramType(program))
+        .put("program_name", program.getProgram());
+    }
+    return new TimeSeries(measure, dimensions.build(),
+                          ImmutableList.of(new TimeValue(3600L, value1), new TimeValue(7200L, value2)));
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.table.Put;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessPayload;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.cdap.proto.id.EntityId;
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.proto.id.ProgramId;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.apache.tephra.TransactionContext;
+import org.apache.tephra.inmemory.DetachedTxSystemClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests {@link LatestEntityTable}
+ */
+public class LatestEntityTableTest {
+  private static final NamespaceId NS1 = new NamespaceId("ns1");
+  private static final NamespaceId NS10 = new NamespaceId("ns10");
+  private static final ProgramId FLOW = NS1.app("app1").flow("flow1");
+
+  private Table timeSinceTable;
+  private LatestEntityTable latestEntityTable;
+  private TransactionContext txContext;
+
+  @Before
+  public void before() throws Exception {
+    InMemoryTableService.reset();
+    InMemoryTableService.create("timeSince");
+    timeSinceTable = new InMemoryTable("timeSince");
+    latestEntityTable = new LatestEntityTable(getSpec("timeSince"), timeSinceTable);
+    txContext = new TransactionContext(new DetachedTxSystemClient(), latestEntityTable);
+  }
+
+  @Test
+  public void testScanReadTimestamps() throws Exception {
+    txContext.start();
+    latestEntityTable.write(ImmutableList.of(
+      getAccess(NS1.dataset("ds1"), AccessType.READ, 1000L),
+      getAccess(NS1.stream("Strm1"), AccessType.READ, 2000L),
+      // Only read times are scanned
+      getAccess(NS1.dataset("ds2"), AccessType.WRITE, 3000L),
+      // Only datasets and streams are scanned
+      getAccess(NS1.app("app1"), AccessType.READ, 4000L),
+      // Namespaces that start with the scanned one are not scanned
+      getAccess(NS10.dataset("ds10"), AccessType.READ, 5000L)));
+    txContext.finish();
+
+    txContext.start();
+    // Entities are lower case, as they are stored
+    Assert.assertEquals(ImmutableMap.of(new Entity("dataset", "ds1"), 1L, new Entity("stream", "strm1"), 2L),
+                        latestEntityTable.scanReadTimestamps("ns1"));
+    Assert.assertEquals(ImmutableMap.of(new Entity("dataset", "ds10"), 5L),
+                        latestEntityTable.scanReadTimestamps("ns10"));
+    Assert.assertTrue(latestEntityTable.scanReadTimestamps("ns").isEmpty());
+    txContext.finish();
+  }
+
+  @Test
+  public void testCoalesceWrites() throws Exception {
+    final int[] puts = new int[1];
+    InMemoryTable countingTable = new InMemoryTable("timeSince") {
+      @Override
+      public void put(Put put) {
+        puts[0]++;
+        super.put(put);
+      }
+    };
+    LatestEntityTable table = new LatestEntityTable(getSpec("timeSince"), countingTable);
+    TransactionContext context = new TransactionContext(new DetachedTxSystemClient(), table);
+
+    context.start();
+    // The latest time of each entity and column is written, whatever the order of the messages
+    table.write(ImmutableList.of(getAccess(NS1.dataset("ds1"), AccessType.READ, 3000L),
+                                 getAccess(NS1.dataset("DS1"), AccessType.READ, 5000L),
+                                 getAccess(NS1.dataset("ds1"), AccessType.READ, 4000L),
+                                 getAccess(NS1.dataset("ds1"), AccessType.WRITE, 1000L),
+                                 getAccess(NS1.dataset("ds1"), AccessType.WRITE, 2000L),
+                                 getAccess(NS1.stream("strm1"), AccessType.READ, 6000L),
+                                 getAccess(NS1.stream("strm1"), AccessType.READ, 1000L)));
+    // One put per entity
+    Assert.assertEquals(2, puts[0]);
+    Assert.assertEquals(ImmutableMap.of(new Entity("dataset", "ds1"), 5L, new Entity("stream", "strm1"), 6L),
+                        table.scanReadTimestamps("ns1"));
+    Map<String, Long> timeSince = table.read("ns1", "dataset", "ds1").getTimeSinceEvents();
+    Assert.assertEquals(3L, timeSince.get("write") - timeSince.get("read"));
+    context.finish();
+  }
+
+  @Test
+  public void testParseLegacyKey() {
+    Assert.assertArrayEquals(new String[] { "ns1", "dataset", "ds1" },
+                             LatestEntityTable.parseLegacyKey("3ns17dataset3ds1"));
+    // Namespaces and names that start with digits
+    Assert.assertArrayEquals(new String[] { "1ns", "stream", "12abc" },
+                             LatestEntityTable.parseLegacyKey("31ns6stream512abc"));
+    // Lengths of more than one digit, including a namespace that starts with its own length
+    Assert.assertArrayEquals(new String[] { "namespace10", "dataset", "1234567890ab" },
+                             LatestEntityTable.parseLegacyKey("11namespace107dataset121234567890ab"));
+    Assert.assertArrayEquals(new String[] { "1namespace", "dataset", "ds1" },
+                             LatestEntityTable.parseLegacyKey("101namespace7dataset3ds1"));
+    // Namespaces made of more digits than an int holds
+    Assert.assertArrayEquals(new String[] { "123456789012", "dataset", "ds1" },
+                             LatestEntityTable.parseLegacyKey("121234567890127dataset3ds1"));
+
+    Assert.assertNull(LatestEntityTable.parseLegacyKey("9junk"));
+    Assert.assertNull(LatestEntityTable.parseLegacyKey("3ns17dataset4ds1"));
+    Assert.assertNull(LatestEntityTable.parseLegacyEntity("dataset3ds1"));
+    Assert.assertNull(LatestEntityTable.parseLegacyEntity("12345678901dataset3ds1"));
+  }
+
+  @Test
+  public void testMergeAndMigrateLegacyRows() throws Exception {
+    txContext.start();
+    putLegacyRow("3ns17dataset3ds1", ImmutableMap.of("read", 5L, "write", 1L));
+    putLegacyRow("3ns17dataset3ds2", ImmutableMap.of("read", 6L));
+    putLegacyRow("3ns16stream5strm1", ImmutableMap.of("read", 7L));
+    // Not a legacy key, so it is never migrated
+    putLegacyRow("9junk", ImmutableMap.of("read", 8L));
+    latestEntityTable.write(ImmutableList.of(getAccess(NS1.dataset("ds1"), AccessType.READ, 3000L),
+                                             getAccess(NS1.dataset("ds1"), AccessType.WRITE, 2000L)));
+    txContext.finish();
+
+    // Reads merge the legacy and the current row of an entity, keeping the latest time of each column
+    Map<Entity, Long> readTimes = ImmutableMap.of(new Entity("dataset", "ds1"), 5L, new Entity("dataset", "ds2"), 6L,
+                                                  new Entity("stream", "strm1"), 7L);
+    txContext.start();
+    assertTimes(latestEntityTable.read("ns1", "dataset", "ds1"));
+    Assert.assertEquals(readTimes, latestEntityTable.scanReadTimestamps("ns1"));
+    Assert.assertFalse(latestEntityTable.isLegacyMigrated());
+    txContext.finish();
+
+    // Rows are migrated a limited number at a time, until a transaction finds none left
+    txContext.start();
+    Assert.assertEquals(2, latestEntityTable.migrateLegacyRows(2));
+    txContext.finish();
+    txContext.start();
+    Assert.assertEquals(1, latestEntityTable.migrateLegacyRows(2));
+    Assert.assertFalse(latestEntityTable.isLegacyMigrated());
+    txContext.finish();
+    txContext.start();
+    Assert.assertEquals(0, latestEntityTable.migrateLegacyRows(2));
+    txContext.finish();
+
+    txContext.start();
+    Assert.assertTrue(latestEntityTable.isLegacyMigrated());
+    Assert.assertNull(timeSinceTable.get(Bytes.toBytes("3ns17dataset3ds1"), Bytes.toBytes("read")));
+    Assert.assertNotNull(timeSinceTable.get(Bytes.toBytes("9junk"), Bytes.toBytes("read")));
+    assertTimes(latestEntityTable.read("ns1", "dataset", "ds1"));
+    Assert.assertEquals(readTimes, latestEntityTable.scanReadTimestamps("ns1"));
+    // Once migrated, legacy rows are no longer read
+    putLegacyRow("3ns17dataset3ds3", ImmutableMap.of("read", 9L));
+    Assert.assertEquals(readTimes, latestEntityTable.scanReadTimestamps("ns1"));
+    txContext.finish();
+  }
+
+  // ds1 was last read at 5 seconds, by its legacy row, and last written at 2 seconds, by its current row
+  private static void assertTimes(TimeSinceResult result) {
+    Map<String, Long> timeSince = result.getTimeSinceEvents();
+    Assert.assertEquals(ImmutableSet.of("read", "write"), timeSince.keySet());
+    Assert.assertEquals(3L, timeSince.get("write") - timeSince.get("read"));
+  }
+
+  private void putLegacyRow(String key, Map<String, Long> times) {
+    for (Map.Entry<String, Long> time : times.entrySet()) {
+      timeSinceTable.put(Bytes.toBytes(key), Bytes.toBytes(time.getKey()), Bytes.toBytes(time.getValue()));
+    }
+  }
+
+  private static AuditMessage getAccess(EntityId entityId, AccessType accessType, long timeMillis) {
+    return new AuditMessage(timeMillis, entityId.toMetadataEntity(), "user1", AuditType.ACCESS,
+                            new AccessPayload(accessType, FLOW));
+  }
+
+  private static DatasetSpecification getSpec(String name) {
+    return DatasetSpecification.builder(name, "table").properties(new HashMap<String, String>()).build();
+  }
+}
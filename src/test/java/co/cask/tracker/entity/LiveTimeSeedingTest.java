@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
+import org.apache.tephra.TransactionContext;
+import org.apache.tephra.inmemory.DetachedTxSystemClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tests {@link LiveTimeSeeding}
+ */
+public class LiveTimeSeedingTest {
+  private static final String NAMESPACE = "ns1";
+
+  private LiveTimeSeeding seeding;
+  private TransactionContext txContext;
+
+  @Before
+  public void before() throws Exception {
+    InMemoryTableService.reset();
+    InMemoryTableService.create("counters");
+    InMemoryTable table = new InMemoryTable("counters");
+    seeding = new LiveTimeSeeding(table);
+    txContext = new TransactionContext(new DetachedTxSystemClient(), table);
+  }
+
+  @Test
+  public void testSeedInChunks() throws Exception {
+    final List<Long> chunks = new ArrayList<>();
+    LiveTimeSeeding.Seeder seeder = new LiveTimeSeeding.Seeder() {
+      @Override
+      public long getStartTime(long liveTime) {
+        return 1000L;
+      }
+
+      @Override
+      public long seed(long startTime, long liveTime) {
+        chunks.add(startTime);
+        return Math.min(liveTime, startTime + 1000L);
+      }
+    };
+
+    txContext.start();
+    seeding.setLiveTime(NAMESPACE, 2500L);
+    txContext.finish();
+    boolean seeded = false;
+    while (!seeded) {
+      txContext.start();
+      Assert.assertFalse(seeding.isSeeded(NAMESPACE));
+      seeded = seeding.seed(NAMESPACE, seeder);
+      txContext.finish();
+    }
+
+    // Each chunk starts where the previous one ended
+    Assert.assertEquals(2, chunks.size());
+    Assert.assertEquals(Long.valueOf(1000L), chunks.get(0));
+    Assert.assertEquals(Long.valueOf(2000L), chunks.get(1));
+    txContext.start();
+    Assert.assertTrue(seeding.isSeeded(NAMESPACE));
+    Assert.assertTrue(seeding.seed(NAMESPACE, seeder));
+    Assert.assertEquals(2500L, seeding.getLiveTime(NAMESPACE, new HashMap<String, Long>()));
+    txContext.finish();
+    Assert.assertEquals(2, chunks.size());
+  }
+
+  @Test
+  public void testSeedWaitsForLiveTime() throws Exception {
+    LiveTimeSeeding.Seeder seeder = new LiveTimeSeeding.Seeder() {
+      @Override
+      public long getStartTime(long liveTime) {
+        return liveTime;
+      }
+
+      @Override
+      public long seed(long startTime, long liveTime) {
+        throw new AssertionError("Nothing to seed");
+      }
+    };
+
+    // The first writer sets the live time to a whole hour, at least an hour ahead
+    txContext.start();
+    long liveTime = seeding.getLiveTime(NAMESPACE, new HashMap<String, Long>());
+    Assert.assertEquals(0L, liveTime % 3600);
+    Assert.assertTrue(liveTime > System.currentTimeMillis() / 1000 + 3600);
+    Assert.assertFalse(seeding.seed(NAMESPACE, seeder));
+    Assert.assertFalse(seeding.isSeeded(NAMESPACE));
+    txContext.finish();
+
+    // A namespace without history is seeded at once
+    txContext.start();
+    seeding.setLiveTime("ns2", 3600L);
+    Assert.assertTrue(seeding.seed("ns2", seeder));
+    txContext.finish();
+    txContext.start();
+    Assert.assertTrue(seeding.isSeeded("ns2"));
+    txContext.finish();
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.metadata.MetadataPayload;
+import co.cask.cdap.proto.id.EntityId;
+import co.cask.cdap.proto.id.NamespaceId;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.Gson;
+import org.apache.tephra.TransactionContext;
+import org.apache.tephra.inmemory.DetachedTxSystemClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Tests {@link TagIndexTable}
+ */
+public class TagIndexTableTest {
+  private static final Gson GSON = new Gson();
+  private static final String NAMESPACE = "ns1";
+  private static final NamespaceId NAMESPACE_ID = new NamespaceId(NAMESPACE);
+
+  private TagIndexTable tagIndex;
+  private TransactionContext txContext;
+
+  @Before
+  public void before() throws Exception {
+    InMemoryTableService.reset();
+    InMemoryTableService.create("tagIndex");
+    DatasetSpecification spec = DatasetSpecification.builder("tagIndex", "table")
+      .properties(new HashMap<String, String>()).build();
+    tagIndex = new TagIndexTable(spec, new InMemoryTable("tagIndex"));
+    txContext = new TransactionContext(new DetachedTxSystemClient(), tagIndex);
+  }
+
+  @Test
+  public void testMetadataChanges() throws Exception {
+    txContext.start();
+    // System tags, and the tags of entities other than datasets and streams, are not indexed
+    tagIndex.write(ImmutableList.of(
+      getMetadataChange(NAMESPACE_ID.dataset("ds1"), "[ \"ut1\", \"UT2\" ]", "[]"),
+      getMetadataChange(NAMESPACE_ID.stream("strm1"), "[ \"ut1\" ]", "[]"),
+      getMetadataChange(NAMESPACE_ID.app("app1"), "[ \"ut1\" ]", "[]")));
+    txContext.finish();
+
+    txContext.start();
+    Assert.assertEquals(ImmutableSet.of("ut1", "UT2"), tagIndex.getEntityTags(NAMESPACE, "dataset", "ds1"));
+    Assert.assertEquals(ImmutableMap.of("ut1", 2, "UT2", 1), tagIndex.getTagCounts(NAMESPACE, "u"));
+    txContext.finish();
+
+    // Deletions are applied before the additions of the same message
+    txContext.start();
+    tagIndex.write(ImmutableList.of(
+      getMetadataChange(NAMESPACE_ID.dataset("ds1"), "[ \"ut3\" ]", "[ \"ut1\" ]"),
+      getMetadataChange(NAMESPACE_ID.stream("strm1"), "[]", "[ \"ut1\", \"missing\" ]")));
+    txContext.finish();
+
+    txContext.start();
+    Assert.assertEquals(ImmutableSet.of("UT2", "ut3"), tagIndex.getEntityTags(NAMESPACE, "dataset", "ds1"));
+    Assert.assertTrue(tagIndex.getEntityTags(NAMESPACE, "stream", "strm1").isEmpty());
+    Assert.assertEquals(ImmutableMap.of("UT2", 1, "ut3", 1), tagIndex.getTagCounts(NAMESPACE, "UT"));
+    Assert.assertEquals(ImmutableMap.of("ut1", 0), tagIndex.getTagCounts(NAMESPACE, ImmutableSet.of("ut1")));
+    txContext.finish();
+  }
+
+  @Test
+  public void testSeedKeepsNewerDeletions() throws Exception {
+    // A snapshot taken before ut1 was deleted from ds1, and before ut2 was deleted and added back
+    ImmutableMap<Entity, Set<String>> snapshot = ImmutableMap.<Entity, Set<String>>of(
+      new Entity("dataset", "ds1"), ImmutableSet.of("ut1", "ut2", "ut3"));
+
+    txContext.start();
+    tagIndex.write(ImmutableList.of(
+      getMetadataChange(NAMESPACE_ID.dataset("ds1"), "[]", "[ \"ut1\", \"ut2\" ]"),
+      getMetadataChange(NAMESPACE_ID.dataset("ds1"), "[ \"ut2\" ]", "[]")));
+    txContext.finish();
+
+    txContext.start();
+    Assert.assertFalse(tagIndex.isSeeded(NAMESPACE));
+    tagIndex.seed(NAMESPACE, snapshot);
+    txContext.finish();
+
+    txContext.start();
+    Assert.assertTrue(tagIndex.isSeeded(NAMESPACE));
+    Assert.assertEquals(ImmutableSet.of("ut2", "ut3"), tagIndex.getEntityTags(NAMESPACE, "dataset", "ds1"));
+    txContext.finish();
+  }
+
+  // Builds a metadata change the way the audit log fixture of TrackerAppTest does
+  private static AuditMessage getMetadataChange(EntityId entityId, String addedTags, String deletedTags) {
+    String metadataPayload = "{ \"previous\": {}, " +
+      "\"additions\": { \"USER\": { \"properties\": {}, \"tags\": " + addedTags + " }, " +
+      "\"SYSTEM\": { \"properties\": {}, \"tags\": [ \"st1\" ] } }, " +
+      "\"deletions\": { \"USER\": { \"properties\": {}, \"tags\": " + deletedTags + " } } }";
+    return new AuditMessage(System.currentTimeMillis(), entityId, "user1", AuditType.METADATA_CHANGE,
+                            GSON.fromJson(metadataPayload, MetadataPayload.class));
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.entity;
+
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTable;
+import co.cask.cdap.data2.dataset2.lib.table.inmemory.InMemoryTableService;
+import co.cask.cdap.proto.audit.AuditMessage;
+import co.cask.cdap.proto.audit.AuditType;
+import co.cask.cdap.proto.audit.payload.access.AccessPayload;
+import co.cask.cdap.proto.audit.payload.access.AccessType;
+import co.cask.cdap.proto.id.NamespaceId;
+import co.cask.cdap.proto.id.ProgramId;
+import co.cask.tracker.utils.TrackerMeterScorer;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.tephra.TransactionContext;
+import org.apache.tephra.inmemory.DetachedTxSystemClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests {@link TrackerScoreTable}
+ */
+public class TrackerScoreTableTest {
+  private static final String NAMESPACE = "ns1";
+  private static final NamespaceId NAMESPACE_ID = new NamespaceId(NAMESPACE);
+  private static final ProgramId FLOW = NAMESPACE_ID.app("app1").flow("flow1");
+  private static final ProgramId SERVICE = NAMESPACE_ID.app("app2").service("service1");
+  private static final Entity DS1 = new Entity("dataset", "ds1");
+  private static final Entity DS2 = new Entity("dataset", "ds2");
+
+  private EntityTotalsTable entityTotals;
+  private TrackerScoreTable trackerScores;
+  private TransactionContext txContext;
+
+  @Before
+  public void before() throws Exception {
+    InMemoryTableService.reset();
+    InMemoryTableService.create("totals");
+    InMemoryTableService.create("scores");
+    entityTotals = new EntityTotalsTable(getSpec("totals"), new InMemoryTable("totals"));
+    trackerScores = new TrackerScoreTable(getSpec("scores"), new InMemoryTable("scores"));
+    txContext = new TransactionContext(new DetachedTxSystemClient(), entityTotals, trackerScores);
+  }
+
+  @Test
+  public void testRefreshAfterNewEvents() throws Exception {
+    txContext.start();
+    entityTotals.setLiveTime(NAMESPACE, 0L);
+    entityTotals.write(ImmutableList.of(getAccess("ds1", FLOW), getAccess("ds1", FLOW),
+                                        getAccess("ds2", SERVICE)), 0);
+    txContext.finish();
+    refresh(1L);
+
+    txContext.start();
+    Assert.assertEquals(Long.valueOf(1L), trackerScores.getVersion(NAMESPACE));
+    Assert.assertEquals(ImmutableMap.of(DS1, 60, DS2, 20),
+                        trackerScores.getScores(NAMESPACE, ImmutableList.of(DS1, DS2)));
+    assertScores(trackerScores.getTopScores(NAMESPACE, 10), "ds1", 60, "ds2", 20);
+    txContext.finish();
+
+    // New audit events make ds2 the most active dataset
+    txContext.start();
+    entityTotals.write(ImmutableList.of(getAccess("ds2", FLOW), getAccess("ds2", FLOW),
+                                        getAccess("ds2", FLOW)), 1);
+    txContext.finish();
+    refresh(2L);
+
+    txContext.start();
+    Assert.assertEquals(Long.valueOf(2L), trackerScores.getVersion(NAMESPACE));
+    Assert.assertEquals(ImmutableMap.of(DS1, 30, DS2, 60),
+                        trackerScores.getScores(NAMESPACE, ImmutableList.of(DS1, DS2)));
+    // The index rows of the previous scores are gone
+    assertScores(trackerScores.getTopScores(NAMESPACE, 10), "ds2", 60, "ds1", 30);
+    assertScores(trackerScores.getBottomScores(NAMESPACE, 10), "ds1", 30, "ds2", 60);
+    txContext.finish();
+
+    // Entities without a score are removed
+    txContext.start();
+    Assert.assertTrue(trackerScores.replace(NAMESPACE, 3L, ImmutableMap.of(DS2, 60), 10));
+    txContext.finish();
+    txContext.start();
+    Assert.assertEquals(ImmutableMap.of(DS1, 0), trackerScores.getScores(NAMESPACE, ImmutableList.of(DS1)));
+    Assert.assertEquals(1, trackerScores.getTopScores(NAMESPACE, 10).size());
+    Assert.assertEquals(1, trackerScores.getBottomScores(NAMESPACE, 10).size());
+    txContext.finish();
+  }
+
+  @Test
+  public void testReplaceInChunks() throws Exception {
+    Entity ds3 = new Entity("dataset", "ds3");
+    txContext.start();
+    Assert.assertTrue(trackerScores.replace(NAMESPACE, 1L, ImmutableMap.of(DS1, 10, DS2, 20), 10));
+    txContext.finish();
+
+    // Deleting the rows of ds1 and ds2, and writing those of ds2 and ds3, takes two chunks of two entities
+    Map<Entity, Integer> scores = ImmutableMap.of(DS2, 30, ds3, 40);
+    txContext.start();
+    Assert.assertFalse(trackerScores.replace(NAMESPACE, 2L, scores, 2));
+    // The version is only written with the last chunk
+    Assert.assertEquals(Long.valueOf(1L), trackerScores.getVersion(NAMESPACE));
+    txContext.finish();
+    txContext.start();
+    Assert.assertTrue(trackerScores.replace(NAMESPACE, 2L, scores, 2));
+    txContext.finish();
+
+    txContext.start();
+    Assert.assertEquals(Long.valueOf(2L), trackerScores.getVersion(NAMESPACE));
+    Assert.assertEquals(ImmutableMap.of(DS1, 0, DS2, 30, ds3, 40),
+                        trackerScores.getScores(NAMESPACE, ImmutableList.of(DS1, DS2, ds3)));
+    assertScores(trackerScores.getTopScores(NAMESPACE, 10), "ds3", 40, "ds2", 30);
+    // Nothing is left to write
+    Assert.assertTrue(trackerScores.replace(NAMESPACE, 3L, scores, 0));
+    txContext.finish();
+  }
+
+  // Refreshes the scores as the TrackerWorker does
+  private void refresh(long version) throws Exception {
+    txContext.start();
+    Assert.assertTrue(trackerScores.replace(NAMESPACE, version,
+                                            TrackerMeterScorer.computeScores(entityTotals.getTotals(NAMESPACE),
+                                                                             entityTotals.getEntityTotals(NAMESPACE),
+                                                                             Collections.<Entity, Long>emptyMap(),
+                                                                             System.currentTimeMillis() / 1000),
+                                            10));
+    txContext.finish();
+  }
+
+  private static void assertScores(List<TrackerScoreResult> results, String name1, int score1, String name2,
+                                   int score2) {
+    Assert.assertEquals(2, results.size());
+    Assert.assertEquals(name1, results.get(0).getEntityName());
+    Assert.assertEquals(score1, results.get(0).getScore());
+    Assert.assertEquals(name2, results.get(1).getEntityName());
+    Assert.assertEquals(score2, results.get(1).getScore());
+  }
+
+  private static AuditMessage getAccess(String dataset, ProgramId program) {
+    return new AuditMessage(System.currentTimeMillis(), NAMESPACE_ID.dataset(dataset).toMetadataEntity(), "user1",
+                            AuditType.ACCESS, new AccessPayload(AccessType.READ, program));
+  }
+
+  private static DatasetSpecification getSpec(String name) {
+    return DatasetSpecification.builder(name, "table").properties(new HashMap<String, String>()).build();
+  }
+}
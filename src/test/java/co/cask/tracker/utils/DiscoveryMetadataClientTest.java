@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.utils;
+
+import co.cask.cdap.api.metadata.Metadata;
+import co.cask.cdap.api.metadata.MetadataScope;
+import co.cask.cdap.proto.id.DatasetId;
+import co.cask.cdap.proto.metadata.MetadataSearchResultRecord;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DiscoveryMetadataClient}.
+ */
+public class DiscoveryMetadataClientTest {
+  private static final DatasetId DATASET = new DatasetId("ns1", "ds1");
+
+  @Test
+  public void testUserTagsFromSearchResult() {
+    Metadata user = new Metadata(ImmutableMap.<String, String>of(), ImmutableSet.of("tag1"));
+    Metadata system = new Metadata(ImmutableMap.of("schema", "{}"), ImmutableSet.of("batch"));
+    // Only user tags are counted
+    Assert.assertEquals(ImmutableSet.of("tag1"), DiscoveryMetadataClient.getUserTags(
+      new MetadataSearchResultRecord(DATASET, ImmutableMap.of(MetadataScope.USER, user,
+                                                              MetadataScope.SYSTEM, system))));
+    Assert.assertEquals(ImmutableSet.of(), DiscoveryMetadataClient.getUserTags(
+      new MetadataSearchResultRecord(DATASET, ImmutableMap.of(MetadataScope.SYSTEM, system))));
+    // Results without metadata are looked up
+    Assert.assertNull(DiscoveryMetadataClient.getUserTags(
+      new MetadataSearchResultRecord(DATASET, ImmutableMap.<MetadataScope, Metadata>of())));
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2018 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.tracker.utils;
+
+import co.cask.tracker.entity.AuditMetricsCube;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ParameterCheck}.
+ */
+public class ParameterCheckTest {
+  private static final long HOUR = TimeUnit.HOURS.toSeconds(1L);
+  private static final long DAY = TimeUnit.DAYS.toSeconds(1L);
+
+  @Test
+  public void testAlignTimeRange() {
+    Assert.assertArrayEquals(new long[] { 10 * HOUR, 21 * HOUR - 1 },
+                             ParameterCheck.alignTimeRange(10 * HOUR + 1, 20 * HOUR + 1800, HOUR));
+    // Aligned ranges stay the same
+    Assert.assertArrayEquals(new long[] { 10 * HOUR, 21 * HOUR - 1 },
+                             ParameterCheck.alignTimeRange(10 * HOUR, 21 * HOUR - 1, HOUR));
+  }
+
+  @Test
+  public void testAlignAtResolutionThreshold() {
+    // Just under six days, computed and aligned at the hour resolution
+    long[] aligned = ParameterCheck.alignHistogramTimeRange(100 * DAY + 1800, 106 * DAY - 1);
+    Assert.assertArrayEquals(new long[] { 100 * DAY, 106 * DAY - 1 }, aligned);
+    Assert.assertEquals(AuditMetricsCube.Bucket.HOUR, AuditMetricsCube.getResolutionBucket(aligned[0], aligned[1]));
+
+    // Under six days, but over once aligned to hours, so it is aligned to the day resolution it is computed at
+    aligned = ParameterCheck.alignHistogramTimeRange(100 * DAY + 1800, 106 * DAY + 1200);
+    Assert.assertArrayEquals(new long[] { 100 * DAY, 107 * DAY - 1 }, aligned);
+    Assert.assertEquals(AuditMetricsCube.Bucket.DAY, AuditMetricsCube.getResolutionBucket(aligned[0], aligned[1]));
+  }
+}